@@ -11,10 +11,14 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.RecyclerView;
 import android.test.ActivityInstrumentationTestCase2;
 
+import java.util.Collections;
+
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
+import io.v.todos.persistence.EventTrace;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.MainPersistence;
+import io.v.todos.persistence.PersistenceFactory;
 
 import static android.support.test.espresso.Espresso.onView;
 import static android.support.test.espresso.action.ViewActions.*;
@@ -47,6 +51,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        PersistenceFactory.resetStore();
 
         // Certain methods must be called before getActivity. Surprise!
         setActivityInitialTouchMode(true);
@@ -206,13 +211,28 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertEquals(recycler.getAdapter().getItemCount(), 1);
     }
 
-    // Swipe a todo list item to the right to... have nothing happen.
+    // Replay a storm of interleaved list updates, deletes and re-adds.
+    public void testReplayListChurn() {
+        mockPersistence();
+        EventTrace trace = new TrafficGenerator(1).listChurn(200, 50, 100);
+
+        TrafficReplay.replayMain(getInstrumentation(), "list churn", trace,
+                mActivity.createMainListener());
+
+        RecyclerView recycler = (RecyclerView) mActivity.findViewById(R.id.recycler);
+        assertEquals(TrafficGenerator.countLiveItems(trace), recycler.getAdapter().getItemCount());
+    }
+
+    // Swipe a todo list item to the right to complete it.
     public void testAttemptSwipeRight() {
         MainPersistence mocked = mockPersistence();
         addInitialData();
 
         pause();
 
+        RecyclerView recycler = (RecyclerView) mActivity.findViewById(R.id.recycler);
+        String key = (String) recycler.findViewHolderForAdapterPosition(1).itemView.getTag();
+
         // DO UI INTERACTION
         onView(withId(R.id.recycler)).perform(RecyclerViewActions.actionOnItemAtPosition(1,
                 swipeRight()));
@@ -220,7 +240,8 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         pause();
 
         verify(mocked, never()).addTodoList(any(ListSpec.class));
-        verify(mocked, never()).deleteTodoList(anyString()); // Nothing should happen.
+        verify(mocked, never()).deleteTodoList(anyString());
+        verify(mocked).completeTodoLists(Collections.singleton(key));
     }
 
     // Swipe a todo list item to the left to attempt to delete it.
@@ -14,6 +14,8 @@ import android.test.ActivityInstrumentationTestCase2;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
 import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.EventTrace;
+import io.v.todos.persistence.PersistenceFactory;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.persistence.TodoListPersistence;
 
@@ -45,6 +47,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        PersistenceFactory.resetStore();
 
         Intent i = new Intent();
         i.putExtra(MainActivity.INTENT_SNACKOO_KEY, TEST_LIST_KEY);
@@ -78,14 +81,18 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
     }
 
     // Helper to verify the number of calls that occurred on the mock.
-    private void verifyMockPersistence(TodoListPersistence mocked, int updateTodoList,
-            int deleteTodoList, int completeTodoList, int addTask, int updateTask, int deleteTask,
-            int setShowDone) {
-        verify(mocked, times(updateTodoList)).updateTodoList(any(ListSpec.class));
+    private void verifyMockPersistence(TodoListPersistence mocked, int setListName,
+            int deleteTodoList, int completeTodoList, int addTask, int setTaskDone,
+            int setTaskText, int deleteTask, int setShowDone) {
+        // Edits only write the changed fields.
+        verify(mocked, never()).updateTodoList(any(ListSpec.class));
+        verify(mocked, never()).updateTask(any(Task.class));
+        verify(mocked, times(setListName)).setListName(anyString());
         verify(mocked, times(deleteTodoList)).deleteTodoList();
         verify(mocked, times(completeTodoList)).completeTodoList();
         verify(mocked, times(addTask)).addTask(any(TaskSpec.class));
-        verify(mocked, times(updateTask)).updateTask(any(Task.class));
+        verify(mocked, times(setTaskDone)).setTaskDone(anyString(), anyBoolean());
+        verify(mocked, times(setTaskText)).setTaskText(anyString(), anyString());
         verify(mocked, times(deleteTask)).deleteTask(anyString());
         verify(mocked, times(setShowDone)).setShowDone(anyBoolean());
     }
@@ -101,7 +108,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
 
         assertFalse(dialog.isShowing());
 
-        verifyMockPersistence(mocked, 0, 0, 0, 1, 0, 0, 0);
+        verifyMockPersistence(mocked, 0, 0, 0, 1, 0, 0, 0, 0);
     }
 
     // Press the fab but don't actually add the item.
@@ -312,7 +319,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
 
         pause();
 
-        verifyMockPersistence(mocked, 0, 0, 0, 0, 1, 0, 0);
+        verifyMockPersistence(mocked, 0, 0, 0, 0, 1, 0, 0, 0);
     }
 
     // Swipe a task item to the left to attempt to delete it.
@@ -328,7 +335,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
 
         pause();
 
-        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 1, 0);
+        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 0, 1, 0);
     }
 
     // Tap a todo list item to enter its edit dialog. Tests dismiss, cancel, save, and delete.
@@ -379,7 +386,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
         pause();
         assertFalse(dialog.isShowing());
 
-        verifyMockPersistence(mocked, 0, 0, 0, 0, 1, 0, 0);
+        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 1, 0, 0);
 
         // 4. DO UI INTERACTION (AND THEN DELETE!)
         onView(withId(R.id.recycler)).perform(RecyclerViewActions.actionOnItemAtPosition(1, click
@@ -393,7 +400,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
         pause();
         assertFalse(dialog.isShowing());
 
-        verifyMockPersistence(mocked, 0, 0, 0, 0, 1, 1, 0);
+        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 1, 1, 0);
     }
 
     private void tapMenuItemInMenu(int stringId) {
@@ -459,7 +466,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
         pause();
         assertFalse(dialog.isShowing());
 
-        verifyMockPersistence(mocked, 1, 0, 0, 0, 0, 0, 0);
+        verifyMockPersistence(mocked, 1, 0, 0, 0, 0, 0, 0, 0);
 
         // 4. PRESS DELETE
         tapMenuItemInMenu(R.string.action_edit);
@@ -472,7 +479,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
         pause();
         assertFalse(dialog.isShowing());
 
-        verifyMockPersistence(mocked, 1, 1, 0, 0, 0, 0, 0);
+        verifyMockPersistence(mocked, 1, 1, 0, 0, 0, 0, 0, 0);
     }
 
     public void testTapMenuMarkAllDone() {
@@ -482,7 +489,7 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
 
         pause();
 
-        verifyMockPersistence(mocked, 0, 0, 1, 0, 0, 0, 0);
+        verifyMockPersistence(mocked, 0, 0, 1, 0, 0, 0, 0, 0);
     }
 
     public void testTapMenuShowDone() {
@@ -492,6 +499,18 @@ public class TodoListActivityTest extends ActivityInstrumentationTestCase2<TodoL
 
         pause();
 
-        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 0, 1);
+        verifyMockPersistence(mocked, 0, 0, 0, 0, 0, 0, 0, 1);
+    }
+
+    // Replay a collaborator completing every task of a large list at once.
+    public void testReplayBulkComplete() {
+        mockPersistence();
+        EventTrace trace = new TrafficGenerator(1).bulkComplete(TEST_LIST_NAME, 5000);
+
+        TrafficReplay.replayList(getInstrumentation(), "bulk complete", trace,
+                mActivity.createTodoListListener());
+
+        RecyclerView recycler = (RecyclerView) mActivity.findViewById(R.id.recycler);
+        assertEquals(5000, recycler.getAdapter().getItemCount());
     }
 }
@@ -0,0 +1,123 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.Task;
+import io.v.todos.persistence.EventTrace;
+import io.v.todos.persistence.EventTrace.Event;
+import io.v.todos.persistence.EventTrace.Type;
+
+/**
+ * Generates synthetic but realistic persistence event traces: an initial load, bursts of
+ * changes separated by idle gaps, changes interleaved across lists, and lists being deleted and
+ * re-added. Generated traces are valid, i.e. items are only updated or deleted while present.
+ */
+class TrafficGenerator {
+    // Events within a burst are this far apart.
+    private static final long EVENT_GAP = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long BURST_GAP = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final Random mRandom;
+    private long mTime;
+
+    TrafficGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    private long nextEvent() {
+        return mTime += EVENT_GAP;
+    }
+
+    private void nextBurst() {
+        mTime += BURST_GAP;
+    }
+
+    /**
+     * A collaborator completing every task of a large list at once.
+     */
+    EventTrace bulkComplete(String listName, int numTasks) {
+        EventTrace trace = new EventTrace();
+        trace.add(new Event(nextEvent(), Type.LIST_UPDATE, null, listName, 0, false, 0, 0));
+        trace.add(new Event(nextEvent(), Type.SHOW_DONE, null, null, 0, true, 0, 0));
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < numTasks; i++) {
+            Task task = new Task(String.format("task%06d", i), "Task " + i, i, false);
+            tasks.add(task);
+            trace.add(Event.ofTask(nextEvent(), Type.ITEM_ADD, task));
+        }
+        nextBurst();
+        for (Task task : tasks) {
+            trace.add(Event.ofTask(nextEvent(), Type.ITEM_UPDATE, task.withToggleDone()));
+        }
+        return trace;
+    }
+
+    /**
+     * Churn across many lists: bursts of progress on a few lists at a time, interleaved, with
+     * lists occasionally deleted and later re-added under the same key.
+     */
+    EventTrace listChurn(int numLists, int numBursts, int burstSize) {
+        EventTrace trace = new EventTrace();
+        List<ListMetadata> live = new ArrayList<>();
+        List<ListMetadata> deleted = new ArrayList<>();
+        for (int i = 0; i < numLists; i++) {
+            ListMetadata list = new ListMetadata(String.format("list%04d", i), "List " + i, i,
+                    0, mRandom.nextInt(20));
+            live.add(list);
+            trace.add(Event.ofList(nextEvent(), Type.ITEM_ADD, list));
+        }
+
+        for (int burst = 0; burst < numBursts; burst++) {
+            nextBurst();
+            // Each burst focuses on a few lists, as when a few collaborators are active.
+            int numActive = Math.min(live.size(), 1 + mRandom.nextInt(3));
+            for (int i = 0; i < burstSize && !live.isEmpty(); i++) {
+                int index = mRandom.nextInt(Math.max(1, Math.min(numActive, live.size())));
+                int roll = mRandom.nextInt(100);
+                if (roll < 3) {
+                    ListMetadata list = live.remove(index);
+                    deleted.add(list);
+                    trace.add(Event.of(nextEvent(), Type.ITEM_DELETE, list.key));
+                } else if (roll < 6 && !deleted.isEmpty()) {
+                    ListMetadata list = deleted.remove(mRandom.nextInt(deleted.size()));
+                    live.add(list);
+                    trace.add(Event.ofList(nextEvent(), Type.ITEM_ADD, list));
+                } else {
+                    ListMetadata list = live.get(index);
+                    ListMetadata updated = mRandom.nextBoolean() ?
+                            new ListMetadata(list.key, list.name, mTime, list.numCompleted,
+                                    list.numTasks + 1) :
+                            new ListMetadata(list.key, list.name, mTime,
+                                    Math.min(list.numTasks, list.numCompleted + 1),
+                                    list.numTasks);
+                    live.set(index, updated);
+                    trace.add(Event.ofList(nextEvent(), Type.ITEM_UPDATE, updated));
+                }
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @return the number of items present after the whole trace
+     */
+    static int countLiveItems(EventTrace trace) {
+        int live = 0;
+        for (Event event : trace.getEvents()) {
+            if (event.type == Type.ITEM_ADD) {
+                live++;
+            } else if (event.type == Type.ITEM_DELETE) {
+                live--;
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import android.app.Instrumentation;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.persistence.EventTrace;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.TodoListListener;
+
+/**
+ * Replays an {@link EventTrace} against an activity's listeners and measures how the UI keeps up.
+ * Events less than {@link #BURST_THRESHOLD_NANOS} apart are delivered together in a single main
+ * thread message, as the persistence dispatcher would deliver them within a frame. Each burst is
+ * timed until the main thread is idle again, so that layout and drawing are included.
+ */
+class TrafficReplay {
+    private static final String TAG = "TrafficReplay";
+    private static final long BURST_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static class Result {
+        final String name;
+        final int numEvents;
+        final int numBursts;
+        final long totalNanos;
+        final long medianBurstNanos;
+        final long maxBurstNanos;
+
+        Result(String name, int numEvents, List<Long> burstNanos) {
+            this.name = name;
+            this.numEvents = numEvents;
+            numBursts = burstNanos.size();
+            long total = 0;
+            for (long nanos : burstNanos) {
+                total += nanos;
+            }
+            totalNanos = total;
+            List<Long> sorted = new ArrayList<>(burstNanos);
+            Collections.sort(sorted);
+            medianBurstNanos = sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2);
+            maxBurstNanos = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1);
+        }
+
+        double eventsPerSecond() {
+            return totalNanos == 0 ? 0 : numEvents * 1e9 / totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d events in %d bursts, %.0f events/s, " +
+                            "burst latency median %.2f ms, max %.2f ms", name, numEvents,
+                    numBursts, eventsPerSecond(), medianBurstNanos / 1e6, maxBurstNanos / 1e6);
+        }
+    }
+
+    private interface Deliverer {
+        void deliver(EventTrace.Event event);
+    }
+
+    static Result replayMain(Instrumentation instrumentation, String name, EventTrace trace,
+                             final ListEventListener<ListMetadata> listener) {
+        return replay(instrumentation, name, trace, new Deliverer() {
+            @Override
+            public void deliver(EventTrace.Event event) {
+                EventTrace.replayMain(event, listener);
+            }
+        });
+    }
+
+    static Result replayList(Instrumentation instrumentation, String name, EventTrace trace,
+                             final TodoListListener listener) {
+        return replay(instrumentation, name, trace, new Deliverer() {
+            @Override
+            public void deliver(EventTrace.Event event) {
+                EventTrace.replayList(event, listener);
+            }
+        });
+    }
+
+    private static Result replay(Instrumentation instrumentation, String name, EventTrace trace,
+                                 final Deliverer deliverer) {
+        List<EventTrace.Event> events = trace.getEvents();
+        List<Long> burstNanos = new ArrayList<>();
+        int start = 0;
+        while (start < events.size()) {
+            int end = start + 1;
+            while (end < events.size() &&
+                    events.get(end).time - events.get(end - 1).time < BURST_THRESHOLD_NANOS) {
+                end++;
+            }
+            final List<EventTrace.Event> burst = events.subList(start, end);
+            long burstStart = System.nanoTime();
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    for (EventTrace.Event event : burst) {
+                        deliverer.deliver(event);
+                    }
+                }
+            });
+            instrumentation.waitForIdleSync();
+            burstNanos.add(System.nanoTime() - burstStart);
+            start = end;
+        }
+
+        Result result = new Result(name, events.size(), burstNanos);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+}
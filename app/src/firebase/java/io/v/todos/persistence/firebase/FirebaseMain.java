@@ -9,17 +9,23 @@ import android.content.Context;
 import com.firebase.client.ChildEventListener;
 import com.firebase.client.DataSnapshot;
 import com.firebase.client.Firebase;
+import com.firebase.client.FirebaseError;
+import com.firebase.client.ValueEventListener;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.MainPersistence;
+import io.v.todos.persistence.TaskSearchIndex;
+import io.v.todos.persistence.TaskSearchIndexStore;
 
 public class FirebaseMain extends FirebasePersistence implements MainPersistence {
     public static final String TODO_LISTS = "snackoos (TodoList)";
@@ -31,35 +37,64 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
 
     private final Map<String, ChildEventListener> mTodoListTaskListeners;
     private final Map<String, TodoListTasksListener> mTodoListTrackers;
+    private final TaskSearchIndex mSearchIndex;
 
     public FirebaseMain(Context context, final ListEventListener<ListMetadata> listener) {
         super(context);
+        mSearchIndex = TaskSearchIndexStore.getIndex(context);
 
         mTodoLists = getFirebase().child(TODO_LISTS);
 
         // This handler will forward events to the passed in listener after ensuring that all the
-        // data in the ListMetadata is set and can automatically update.
+        // data in the ListMetadata is set and can automatically update. A field write racing a
+        // delete can leave a list with no name, which is ignored.
         mTodoListsListener = mTodoLists.addChildEventListener(
                 new ChildEventListenerAdapter() {
                     @Override
                     public void onChildAdded(DataSnapshot dataSnapshot, String prevKey) {
-                        mListener.onItemAdd(startWatchTodoListTasks(
-                                dataSnapshot.getKey(), dataSnapshot.getValue(ListSpec.class)));
+                        ListSpec listSpec = dataSnapshot.getValue(ListSpec.class);
+                        if (listSpec.getName() != null) {
+                            mListener.onItemAdd(startWatchTodoListTasks(
+                                    dataSnapshot.getKey(), listSpec));
+                        }
                     }
 
                     @Override
                     public void onChildChanged(DataSnapshot dataSnapshot, String prevKey) {
-                        mListener.onItemUpdate(updateListSpec(
-                                dataSnapshot.getKey(), dataSnapshot.getValue(ListSpec.class)));
+                        String key = dataSnapshot.getKey();
+                        ListSpec listSpec = dataSnapshot.getValue(ListSpec.class);
+                        if (mTodoListTrackers.containsKey(key)) {
+                            mListener.onItemUpdate(updateListSpec(key, listSpec));
+                        } else if (listSpec.getName() != null) {
+                            // onChildAdded skipped the list because it had no name yet.
+                            mListener.onItemAdd(startWatchTodoListTasks(key, listSpec));
+                        }
                     }
 
                     @Override
                     public void onChildRemoved(DataSnapshot dataSnapshot) {
+                        if (!mTodoListTrackers.containsKey(dataSnapshot.getKey())) {
+                            return;
+                        }
                         stopWatchTodoListTasks(dataSnapshot.getKey());
+                        mSearchIndex.removeList(dataSnapshot.getKey());
                         mListener.onItemDelete(dataSnapshot.getKey());
                     }
                 });
 
+        // Value events follow the child events for the same data, so once this fires every list
+        // has been seen, and lists deleted while the app was closed can leave the search index.
+        mTodoLists.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                mSearchIndex.retainLists(mTodoListTrackers.keySet());
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+            }
+        });
+
         mListener = listener;
         mTodoListTaskListeners = new HashMap<>();
         mTodoListTrackers = new HashMap<>();
@@ -67,18 +102,66 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
 
     @Override
     public String addTodoList(ListSpec listSpec) {
-        Firebase newListItem = mTodoLists.push();
-        newListItem.setValue(listSpec);
-        return newListItem.getKey();
+        // Push keys are generated locally, so this works offline.
+        String key = mTodoLists.push().getKey();
+        write(path(TODO_LISTS, key), listSpec);
+        return key;
     }
 
     @Override
     public void deleteTodoList(String key) {
-        mTodoLists.child(key).removeValue();
+        write(path(TODO_LISTS, key), null);
 
         // After deleting the list itself, delete all the orphaned tasks!
-        Firebase tasksRef = getFirebase().child(FirebaseTodoList.TASKS).child(key);
-        tasksRef.removeValue();
+        write(path(FirebaseTodoList.TASKS, key), null);
+    }
+
+    // Writes made together are sent to Firebase as a single multi-path update, so the bulk
+    // operations below write each list in turn.
+
+    @Override
+    public void deleteTodoLists(Iterable<String> keys) {
+        for (String key : keys) {
+            deleteTodoList(key);
+        }
+    }
+
+    @Override
+    public void completeTodoLists(Iterable<String> keys) {
+        // Unlike FirebaseTodoList.completeTodoList, this writes the done field of each open task
+        // from the watched state rather than running a transaction, so it works offline.
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            TodoListTasksListener tracker = mTodoListTrackers.get(key);
+            if (tracker == null) {
+                continue;
+            }
+            for (String taskKey : tracker.tasks.keySet()) {
+                if (!tracker.completedTaskKeys.contains(taskKey)) {
+                    write(path(FirebaseTodoList.TASKS, key, taskKey, TASK_DONE), true);
+                }
+            }
+            write(path(TODO_LISTS, key, LIST_UPDATED_AT), now);
+        }
+    }
+
+    @Override
+    public String duplicateTodoList(String key, ListSpec listSpec) {
+        TodoListTasksListener tracker = mTodoListTrackers.get(key);
+        if (tracker == null) {
+            return null;
+        }
+        String newKey = addTodoList(listSpec);
+        Firebase tasksRef = getFirebase().child(FirebaseTodoList.TASKS).child(newKey);
+        for (TaskSpec task : tracker.tasks.values()) {
+            write(path(FirebaseTodoList.TASKS, newKey, tasksRef.push().getKey()), task);
+        }
+        return newKey;
+    }
+
+    @Override
+    public List<TaskSearchIndex.Hit> searchTasks(String query, int limit) {
+        return mSearchIndex.search(query, limit);
     }
 
     private ListMetadata updateListSpec(String key, ListSpec updatedSpec) {
@@ -89,9 +172,23 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
 
     private ListMetadata startWatchTodoListTasks(String key, final ListSpec listSpec) {
         Firebase taskRef = getFirebase().child(FirebaseTodoList.TASKS).child(key);
-        TodoListTasksListener tasksListener = new TodoListTasksListener(key, listSpec);
+        final TodoListTasksListener tasksListener = new TodoListTasksListener(key, listSpec);
         ChildEventListener l = taskRef.addChildEventListener(
                 new TaskChildEventListener(tasksListener));
+        // As with the lists, drop tasks deleted while the app was closed once every task is seen.
+        taskRef.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                if (mTodoListTrackers.get(tasksListener.listKey) == tasksListener) {
+                    mSearchIndex.retainTasks(tasksListener.listKey,
+                            tasksListener.tasks.keySet());
+                }
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+            }
+        });
         mTodoListTrackers.put(key, tasksListener);
         mTodoListTaskListeners.put(key, l);
         return tasksListener.getListMetadata();
@@ -114,14 +211,15 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
     private class TodoListTasksListener implements ListEventListener<Task> {
         final String listKey;
         ListSpec listSpec;
+        final Map<String, TaskSpec> tasks;
         final Set<String> completedTaskKeys;
-        int numTasks;
         boolean disabled;
 
         TodoListTasksListener(String listKey, ListSpec listSpec) {
             this.listKey = listKey;
             this.listSpec = listSpec;
 
+            tasks = new HashMap<>();
             completedTaskKeys = new HashSet<>();
         }
 
@@ -133,7 +231,7 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
         }
 
         ListMetadata getListMetadata() {
-            return new ListMetadata(listKey, listSpec, completedTaskKeys.size(), numTasks);
+            return new ListMetadata(listKey, listSpec, completedTaskKeys.size(), tasks.size());
         }
 
         @Override
@@ -141,7 +239,8 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
             if (disabled) {
                 return;
             }
-            numTasks++;
+            mSearchIndex.put(listKey, item.key, item.text);
+            tasks.put(item.key, item.toSpec());
             if (item.done) {
                 completedTaskKeys.add(item.key);
             }
@@ -154,6 +253,8 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
             if (disabled) {
                 return;
             }
+            mSearchIndex.put(listKey, item.key, item.text);
+            tasks.put(item.key, item.toSpec());
 
             // Short-circuiting performs the appropriate Set update (add if done, remove if not).
             boolean changedDone =
@@ -170,7 +271,8 @@ public class FirebaseMain extends FirebasePersistence implements MainPersistence
             if (disabled) {
                 return;
             }
-            numTasks--;
+            mSearchIndex.remove(listKey, key);
+            tasks.remove(key);
             completedTaskKeys.remove(key);
 
             mListener.onItemUpdate(getListMetadata());
@@ -19,6 +19,22 @@ import io.v.todos.persistence.Persistence;
 public abstract class FirebasePersistence implements Persistence {
     private static final String FIREBASE_EXAMPLE_URL = "https://vivid-heat-7354.firebaseio.com/";
 
+    /**
+     * Selects the local persistence tier for writes. If true, writes are kept in a
+     * {@link FirebaseWriteLog} until Firebase acknowledges them, and are held there, coalesced,
+     * while Firebase is offline. Firebase's own disk persistence stays on either way, since it
+     * also caches data for offline reads across restarts.
+     */
+    private static final boolean USE_WRITE_LOG = true;
+
+    // Child names of the spec fields, as serialized by Firebase.
+    protected static final String
+            LIST_NAME = "name",
+            LIST_UPDATED_AT = "updatedAt",
+            TASK_TEXT = "text",
+            TASK_ADDED_AT = "addedAt",
+            TASK_DONE = "done";
+
     static {
         // Set up Firebase to persist data locally even when offline. This must be set before
         // Firebase is used.
@@ -26,6 +42,7 @@ public abstract class FirebasePersistence implements Persistence {
     }
 
     private final Firebase mFirebase;
+    private final FirebaseWriteLog mWriteLog;
 
     protected Firebase getFirebase() {
         return mFirebase;
@@ -42,10 +59,37 @@ public abstract class FirebasePersistence implements Persistence {
         Firebase.setAndroidContext(context);
 
         mFirebase = new Firebase(FIREBASE_EXAMPLE_URL);
+        mWriteLog = USE_WRITE_LOG ? FirebaseWriteLog.get(context, mFirebase) : null;
+    }
+
+    /**
+     * Sets the value at a path below the root, or removes it if the value is null, through the
+     * local persistence tier. The value is a spec, or a field value to write a single field.
+     */
+    protected void write(String path, Object value) {
+        if (mWriteLog != null) {
+            mWriteLog.write(path, value);
+        } else if (value == null) {
+            mFirebase.child(path).removeValue();
+        } else {
+            mFirebase.child(path).setValue(value);
+        }
+    }
+
+    protected static String path(String... children) {
+        StringBuilder path = new StringBuilder();
+        for (String child : children) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(child);
+        }
+        return path.toString();
     }
 
     @Override
     public String debugDetails() {
-        return FIREBASE_EXAMPLE_URL;
+        return mWriteLog == null ? FIREBASE_EXAMPLE_URL :
+                FIREBASE_EXAMPLE_URL + "\n" + mWriteLog.debugDetails();
     }
 }
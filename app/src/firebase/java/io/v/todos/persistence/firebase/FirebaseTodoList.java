@@ -13,12 +13,19 @@ import com.firebase.client.DataSnapshot;
 import com.firebase.client.Firebase;
 import com.firebase.client.FirebaseError;
 import com.firebase.client.MutableData;
+import com.firebase.client.Query;
 import com.firebase.client.Transaction;
 import com.firebase.client.ValueEventListener;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
 import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.TaskWindow;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.persistence.TodoListPersistence;
 
@@ -26,16 +33,22 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
     public static final String TASKS = "snackoo lists (Task)";
     private static final String SHOW_DONE_KEY = "ShowDone";
 
+    private final String mTodoListKey;
     private final Firebase mTodoList, mTasks;
     private final ValueEventListener mTodoListListener;
+    private final ListEventListener<Task> mTasksDelegate;
     private final ChildEventListener mTasksListener;
     private final SharedPreferences mSharedPreferences;
-
-    private ListSpec mListSpec;
+    // The tasks query for the current window, and the tasks reported to the listener so far. These
+    // are only used on the main thread, where Firebase calls back.
+    private Query mTasksQuery;
+    private int mTaskWindow = TaskWindow.DEFAULT_PAGE_SIZE;
+    private final Set<String> mShownTasks = new HashSet<>();
 
     public FirebaseTodoList(Context context, String todoListKey, final TodoListListener listener) {
         super(context);
 
+        mTodoListKey = todoListKey;
         mTodoList = getFirebase().child(FirebaseMain.TODO_LISTS).child(todoListKey);
         mTasks = getFirebase().child(TASKS).child(todoListKey);
 
@@ -44,10 +57,10 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
                 ListSpec listSpec = dataSnapshot.getValue(ListSpec.class);
-                if (listSpec == null) {
+                // A field write racing a delete can leave a list with no name.
+                if (listSpec == null || listSpec.getName() == null) {
                     listener.onDelete();
                 } else {
-                    mListSpec = listSpec;
                     listener.onUpdate(listSpec);
                 }
             }
@@ -57,8 +70,34 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
             }
         });
 
-        // Listen and forward changes to task items in this list.
-        mTasksListener = mTasks.addChildEventListener(new TaskChildEventListener(listener));
+        // Listen and forward changes to task items in the window. Firebase orders the tasks by
+        // done, then by key, which is the same order as TaskIndex, so each window is a prefix of
+        // the list as displayed. When a larger window is queried, Firebase adds the tasks already
+        // shown again, so those are forwarded as updates.
+        mTasksDelegate = new ListEventListener<Task>() {
+            @Override
+            public void onItemAdd(Task item) {
+                onItemUpdate(item);
+            }
+
+            @Override
+            public void onItemUpdate(Task item) {
+                if (mShownTasks.add(item.key)) {
+                    listener.onItemAdd(item);
+                } else {
+                    listener.onItemUpdate(item);
+                }
+            }
+
+            @Override
+            public void onItemDelete(String key) {
+                if (mShownTasks.remove(key)) {
+                    listener.onItemDelete(key);
+                }
+            }
+        };
+        mTasksListener = new TaskChildEventListener(mTasksDelegate);
+        queryTasks();
 
         // Listen and forward changes to the show done toggle.
         // TODO(alexfandrianto): This setting is currently shared across all todo lists, but it is
@@ -78,17 +117,18 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
 
     @Override
     public void updateTodoList(ListSpec listSpec) {
-        mTodoList.setValue(listSpec);
+        write(listPath(), listSpec);
     }
 
     @Override
     public void deleteTodoList() {
-        mTodoList.removeValue();
+        write(listPath(), null);
     }
 
     @Override
     public void completeTodoList() {
-        // Update all child tasks for this key to have done = true.
+        // Update all child tasks for this key to have done = true. Transactions need a connection,
+        // so this bypasses the local persistence tier.
         Firebase tasksRef = mTasks;
         tasksRef.runTransaction(new Transaction.Handler() {
             @Override
@@ -112,30 +152,33 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
         });
 
         // Further, update this todo list to set its last updated time.
-        updateListTimestamp();
+        touchList();
     }
 
-    private void updateListTimestamp() {
-        mListSpec.setUpdatedAt(System.currentTimeMillis());
-        mTodoList.setValue(mListSpec);
+    private String taskPath(String key) {
+        return path(TASKS, mTodoListKey, key);
+    }
+
+    private String listPath() {
+        return path(FirebaseMain.TODO_LISTS, mTodoListKey);
     }
 
     @Override
     public void addTask(TaskSpec task) {
-        mTasks.push().setValue(task);
-        updateListTimestamp();
+        write(taskPath(mTasks.push().getKey()), task);
+        touchList();
     }
 
     @Override
     public void updateTask(Task task) {
-        mTasks.child(task.key).setValue(task.toSpec());
-        updateListTimestamp();
+        write(taskPath(task.key), task.toSpec());
+        touchList();
     }
 
     @Override
     public void deleteTask(String key) {
-        mTasks.child(key).removeValue();
-        updateListTimestamp();
+        write(taskPath(key), null);
+        touchList();
     }
 
     @Override
@@ -145,9 +188,66 @@ public class FirebaseTodoList extends FirebasePersistence implements TodoListPer
         editor.apply();
     }
 
+    @Override
+    public void setTaskDone(String key, boolean done) {
+        write(path(taskPath(key), TASK_DONE), done);
+        touchList();
+    }
+
+    @Override
+    public void setTaskText(String key, String text) {
+        write(path(taskPath(key), TASK_TEXT), text);
+        touchList();
+    }
+
+    @Override
+    public void setListName(String name) {
+        write(path(listPath(), LIST_NAME), name);
+        touchList();
+    }
+
+    @Override
+    public void touchList() {
+        write(path(listPath(), LIST_UPDATED_AT), System.currentTimeMillis());
+    }
+
+    private void queryTasks() {
+        mTasksQuery = mTasks.orderByChild(TASK_DONE).limitToFirst(mTaskWindow);
+        mTasksQuery.addChildEventListener(mTasksListener);
+    }
+
+    /**
+     * Re-queries the tasks with the new limit.
+     */
+    @Override
+    public void setTaskWindow(int limit) {
+        if (limit == mTaskWindow) {
+            return;
+        }
+        mTasksQuery.removeEventListener(mTasksListener);
+        mTaskWindow = limit;
+        queryTasks();
+        // The new query only reports the tasks within it. Value events follow the child events
+        // for the same data, so once this fires, any task not in the snapshot has left the window.
+        mTasksQuery.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                for (String key : new ArrayList<>(mShownTasks)) {
+                    if (!dataSnapshot.hasChild(key)) {
+                        mTasksDelegate.onItemDelete(key);
+                    }
+                }
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+            }
+        });
+    }
+
     @Override
     public void close() {
         getFirebase().removeEventListener(mTodoListListener);
-        getFirebase().removeEventListener(mTasksListener);
+        mTasksQuery.removeEventListener(mTasksListener);
     }
 }
@@ -0,0 +1,302 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence.firebase;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.firebase.client.DataSnapshot;
+import com.firebase.client.Firebase;
+import com.firebase.client.FirebaseError;
+import com.firebase.client.ValueEventListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.WriteAheadLog;
+
+/**
+ * Keeps Firebase writes in an app-level {@link WriteAheadLog} until Firebase acknowledges them,
+ * in front of Firebase's own write queue. Writes made on the main thread within the same message
+ * are group committed: they are appended to the log file with a single sync, and sent to Firebase
+ * as a single multi-path update.
+ * <p>
+ * Writes are only handed to Firebase while it is connected. Writes made while offline stay in the
+ * log, where they are coalesced to the latest write to each path, and are sent in large batches
+ * once Firebase reconnects, so Firebase's queue only ever holds the writes that were in flight
+ * when the connection dropped. The tradeoff is visibility: Firebase only raises local events for
+ * writes it has been handed, so changes made while offline show up once Firebase reconnects.
+ * Order is kept, since the log sends writes in the order they were made and Firebase applies its
+ * queue in order, ahead of them.
+ * <p>
+ * Writes left pending by a previous process are sent the same way. Firebase restores its own
+ * queue of writes that were in flight, so those few are sent twice, in the same order.
+ * <p>
+ * The log file is read off the main thread. Writes made before it is read are held until then.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public final class FirebaseWriteLog {
+    private static final String TAG = FirebaseWriteLog.class.getSimpleName();
+    private static final String FILE_NAME = "firebase_write_log";
+    private static final String CONNECTED_PATH = ".info/connected";
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private static FirebaseWriteLog sInstance;
+
+    private final Firebase mRoot;
+    private final File mFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mCommitter = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mCommitScheduled = new AtomicBoolean();
+    private final List<WriteAheadLog.Write> mUnsent = new ArrayList<>();
+    // Writes made before the log was read, as paths and values.
+    private final List<Map.Entry<String, Object>> mEarly = new ArrayList<>();
+    // Set on the main thread once the log is read.
+    private volatile WriteAheadLog mLog;
+    private boolean mConnected;
+    // The last write handed to Firebase by this process.
+    private long mLastSent = -1;
+    // Only used on the committer thread.
+    private FileOutputStream mOut;
+
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            List<WriteAheadLog.Write> writes = new ArrayList<>(mUnsent);
+            mUnsent.clear();
+            send(writes);
+        }
+    };
+
+    private final Runnable mCommit = new Runnable() {
+        @Override
+        public void run() {
+            mCommitScheduled.set(false);
+            try {
+                if (mOut == null || mLog.needsCompaction()) {
+                    compact();
+                } else {
+                    byte[] records = mLog.takeUncommitted();
+                    if (records.length > 0) {
+                        mOut.write(records);
+                        mOut.getFD().sync();
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not commit pending Firebase writes", e);
+            }
+        }
+    };
+
+    /**
+     * @return the shared write log, reading writes left pending by a previous process in the
+     * background if this is the first call
+     */
+    public static FirebaseWriteLog get(Context context, Firebase root) {
+        if (sInstance == null) {
+            sInstance = new FirebaseWriteLog(context.getApplicationContext(), root);
+        }
+        return sInstance;
+    }
+
+    private FirebaseWriteLog(Context context, Firebase root) {
+        mRoot = root;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mCommitter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final WriteAheadLog log = readLog();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLogRead(log);
+                    }
+                });
+            }
+        });
+
+        mRoot.child(CONNECTED_PATH).addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                boolean connected = Boolean.TRUE.equals(dataSnapshot.getValue(Boolean.class));
+                if (connected && !mConnected && mLog != null) {
+                    sendPending();
+                }
+                mConnected = connected;
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+            }
+        });
+    }
+
+    private WriteAheadLog readLog() {
+        // The log is compacted as it goes, so this is quick to read even after a long time
+        // offline.
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            return WriteAheadLog.readFrom(in);
+        } catch (FileNotFoundException e) {
+            return new WriteAheadLog();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read pending Firebase writes; they are lost", e);
+            return new WriteAheadLog();
+        }
+    }
+
+    private void onLogRead(WriteAheadLog log) {
+        int numRecovered = log.getPendingCount();
+        if (numRecovered > 0) {
+            Log.d(TAG, "Recovered " + numRecovered + " pending writes");
+        }
+        for (Map.Entry<String, Object> write : mEarly) {
+            log.append(write.getKey(), write.getValue());
+        }
+        mEarly.clear();
+        mLog = log;
+        // Start from a compacted file, which also drops any torn record at its end.
+        scheduleCommit();
+        if (mConnected) {
+            sendPending();
+        }
+    }
+
+    /**
+     * Sets the value at a path below the root, or removes it if the value is null. The value must
+     * be a {@link ListSpec}, a {@link TaskSpec}, or a {@link String}, {@link Long} or
+     * {@link Boolean} field value.
+     */
+    public void write(String path, Object value) {
+        if (mLog == null) {
+            mEarly.add(new AbstractMap.SimpleImmutableEntry<>(path, value));
+            return;
+        }
+        WriteAheadLog.Write write = mLog.append(path, value);
+        if (mConnected) {
+            mUnsent.add(write);
+            if (mUnsent.size() == 1) {
+                mHandler.post(mSend);
+            }
+        }
+        scheduleCommit();
+    }
+
+    public int getPendingCount() {
+        return mLog == null ? mEarly.size() : mLog.getPendingCount();
+    }
+
+    /**
+     * Sends the pending writes that have not been handed to Firebase yet, coalesced.
+     */
+    private void sendPending() {
+        mUnsent.clear();
+        List<WriteAheadLog.Write> writes = new ArrayList<>();
+        for (WriteAheadLog.Write write : mLog.getPending()) {
+            if (write.sequence > mLastSent) {
+                writes.add(write);
+            }
+        }
+        if (!writes.isEmpty()) {
+            Log.d(TAG, "Sending " + writes.size() + " pending writes");
+            send(writes);
+        }
+    }
+
+    private void send(List<WriteAheadLog.Write> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        mLastSent = Math.max(mLastSent, writes.get(writes.size() - 1).sequence);
+        for (final List<WriteAheadLog.Write> batch :
+                WriteAheadLog.toBatches(writes, MAX_BATCH_SIZE)) {
+            Map<String, Object> update = new HashMap<>();
+            for (WriteAheadLog.Write write : batch) {
+                update.put(write.path, toFirebaseValue(write.value));
+            }
+            mRoot.updateChildren(update, new Firebase.CompletionListener() {
+                @Override
+                public void onComplete(FirebaseError firebaseError, Firebase firebase) {
+                    // Rejected writes will never succeed, so they are no longer pending either.
+                    if (firebaseError != null) {
+                        Log.w(TAG, "Firebase rejected " + batch.size() + " writes: " +
+                                firebaseError.getMessage());
+                    }
+                    mLog.acknowledge(batch);
+                    scheduleCommit();
+                }
+            });
+        }
+    }
+
+    private static Object toFirebaseValue(Object value) {
+        Map<String, Object> fields = new HashMap<>();
+        if (value instanceof ListSpec) {
+            ListSpec list = (ListSpec) value;
+            fields.put(FirebasePersistence.LIST_NAME, list.getName());
+            fields.put(FirebasePersistence.LIST_UPDATED_AT, list.getUpdatedAt());
+        } else if (value instanceof TaskSpec) {
+            TaskSpec task = (TaskSpec) value;
+            fields.put(FirebasePersistence.TASK_TEXT, task.getText());
+            fields.put(FirebasePersistence.TASK_ADDED_AT, task.getAddedAt());
+            fields.put(FirebasePersistence.TASK_DONE, task.getDone());
+        } else {
+            // A single field, or null to remove.
+            return value;
+        }
+        return fields;
+    }
+
+    private void scheduleCommit() {
+        if (mCommitScheduled.compareAndSet(false, true)) {
+            mCommitter.execute(mCommit);
+        }
+    }
+
+    private void compact() throws IOException {
+        // Write to a temporary file and rename so that a crash mid-write leaves the old log in
+        // place.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            mLog.writeSnapshotTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    public String debugDetails() {
+        return (mConnected ? "Connected, " : "Offline, ") +
+                (mLog == null ? "reading log" : mLog.debugDetails());
+    }
+}
@@ -21,14 +21,22 @@ public class TaskChildEventListener extends ChildEventListenerAdapter {
         return new Task(dataSnapshot.getKey(), dataSnapshot.getValue(TaskSpec.class));
     }
 
+    // A field write racing a delete can leave a task with no text, which is ignored.
+
     @Override
     public void onChildAdded(DataSnapshot dataSnapshot, String prevKey) {
-        mDelegate.onItemAdd(extractValue(dataSnapshot));
+        Task task = extractValue(dataSnapshot);
+        if (task.text != null) {
+            mDelegate.onItemAdd(task);
+        }
     }
 
     @Override
     public void onChildChanged(DataSnapshot dataSnapshot, String prevKey) {
-        mDelegate.onItemUpdate(extractValue(dataSnapshot));
+        Task task = extractValue(dataSnapshot);
+        if (task.text != null) {
+            mDelegate.onItemUpdate(task);
+        }
     }
 
     @Override
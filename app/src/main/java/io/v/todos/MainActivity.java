@@ -5,25 +5,35 @@
 package io.v.todos;
 
 import android.Manifest;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
+
+import java.util.Collections;
+import java.util.List;
 
 import io.v.todos.model.DataList;
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
+import io.v.todos.model.Orderings;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.MainPersistence;
 import io.v.todos.persistence.PersistenceFactory;
+import io.v.todos.persistence.TaskSearchIndex;
 
 /**
  * MainActivity for Vanadium TODOs
@@ -32,6 +42,7 @@ import io.v.todos.persistence.PersistenceFactory;
  * - Tap on a Todo List to launch its corresponding TodoListActivity.
  * - Swipe Left on a Todo List to delete it.
  * - Swipe Right in order to mark all of its Tasks as done.
+ * - Search Tasks from the menu to find tasks across every list and open one's list.
  *
  * @author alexfandrianto
  */
@@ -41,6 +52,9 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
     // We use mMainList to track a custom sorted list of the stored values.
     static final String INTENT_SNACKOO_KEY = "snackoo key";
     private DataList<ListMetadata> mMainList = new DataList<>();
+    private static final String SORT_RECENT_KEY = "SortListsByRecent";
+    private static final int MAX_SEARCH_HITS = 50;
+    private SharedPreferences mSharedPreferences;
 
     private RecyclerView mRecyclerView;
 
@@ -53,6 +67,14 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
         super.onCreate(savedInstanceState);
         mEmptyView.setText(R.string.no_lists);
 
+        // Keep both orderings indexed so that switching between them doesn't sort.
+        mMainList.addOrdering(null);
+        mMainList.addOrdering(Orderings.LISTS_BY_RECENT);
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (mSharedPreferences.getBoolean(SORT_RECENT_KEY, false)) {
+            mMainList.setOrdering(Orderings.LISTS_BY_RECENT);
+        }
+
         // Set up the todo list adapter
         mAdapter = new TodoListRecyclerAdapter(mMainList, new View.OnClickListener() {
             @Override
@@ -66,11 +88,16 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
         mRecyclerView.setAdapter(mAdapter);
         mRecyclerView.setHasFixedSize(true);
 
-        new ItemTouchHelper(new SwipeableTouchHelperCallback(0, ItemTouchHelper.LEFT) {
+        new ItemTouchHelper(new SwipeableTouchHelperCallback(0, ItemTouchHelper.LEFT |
+                ItemTouchHelper.RIGHT) {
             @Override
             public void onSwiped(final RecyclerView.ViewHolder viewHolder, final int direction) {
                 String todoListKey = (String)viewHolder.itemView.getTag();
-                if (direction == ItemTouchHelper.LEFT) {
+                if (direction == ItemTouchHelper.RIGHT) {
+                    mPersistence.completeTodoLists(Collections.singleton(todoListKey));
+                    // The list stays, so bring it back even if it was already done.
+                    mAdapter.notifyItemChanged(viewHolder.getAdapterPosition());
+                } else if (direction == ItemTouchHelper.LEFT) {
                     mPersistence.deleteTodoList(todoListKey);
                 }
             }
@@ -79,8 +106,12 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
         mPersistenceInitializer = new PersistenceInitializer<MainPersistence>(this) {
             @Override
             protected MainPersistence initPersistence() throws Exception {
+                ListEventListener<ListMetadata> listener = mDispatcher.wrap(createMainListener());
+                if (mEventTrace != null) {
+                    listener = mEventTrace.recordMain(listener);
+                }
                 return PersistenceFactory.getMainPersistence(mActivity, savedInstanceState,
-                        createMainListener());
+                        listener);
             }
 
             @Override
@@ -111,6 +142,11 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
             @Override
             public void onItemUpdate(final ListMetadata item) {
                 int start = mMainList.findIndexByKey(item.key);
+                int changes = start == -1 ? ~0 : mMainList.get(start).diff(item);
+                if (changes == 0) {
+                    return;
+                }
+                // This is a replacement in place unless the item has to move.
                 int end = mMainList.updateInOrder(item);
 
                 if (start != end) {
@@ -131,7 +167,8 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
                 if (vh != null && vh.itemView.getAlpha() < 1) {
                     mAdapter.bindViewHolder(vh, end);
                 } else {
-                    mAdapter.notifyItemChanged(end);
+                    // Only the changed fields are rebound; see TodoListRecyclerAdapter.
+                    mAdapter.notifyItemChanged(end, changes);
                 }
             }
 
@@ -155,6 +192,36 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
         });
     }
 
+    private void initiateSearch() {
+        String title = getString(R.string.action_search);
+        UIUtil.showSearchDialog(this, title, new UIUtil.DialogResponseListener() {
+            @Override
+            public void handleResponse(String response) {
+                showSearchResults(mPersistence.searchTasks(response, MAX_SEARCH_HITS));
+            }
+        });
+    }
+
+    private void showSearchResults(final List<TaskSearchIndex.Hit> hits) {
+        if (hits.isEmpty()) {
+            Toast.makeText(this, R.string.no_search_hits, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] texts = new String[hits.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = hits.get(i).text;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_search)
+                .setItems(texts, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        enterList(hits.get(which).listKey);
+                    }
+                })
+                .show();
+    }
+
     private void enterList(final String listKey) {
         new Handler().postDelayed(new Runnable() {
             @Override
@@ -172,6 +239,8 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_sort_recent)
+                .setChecked(mMainList.getOrdering() == Orderings.LISTS_BY_RECENT);
         return true;
     }
 
@@ -179,7 +248,17 @@ public class MainActivity extends TodosAppActivity<MainPersistence, TodoListRecy
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
 
-        if (id == R.id.action_debug) {
+        if (id == R.id.action_sort_recent) {
+            boolean sortRecent = !item.isChecked();
+            item.setChecked(sortRecent);
+            mSharedPreferences.edit().putBoolean(SORT_RECENT_KEY, sortRecent).apply();
+            mMainList.setOrdering(sortRecent ? Orderings.LISTS_BY_RECENT : null);
+            mAdapter.notifyDataSetChanged();
+            return true;
+        } else if (id == R.id.action_search) {
+            initiateSearch();
+            return true;
+        } else if (id == R.id.action_debug) {
             sharePersistenceDebugDetails();
             return true;
         }
@@ -0,0 +1,95 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import java.util.List;
+
+/**
+ * Computes the changes between two versions of a sorted list in a single linear merge. Since
+ * items in a sorted list cannot change position relative to one another, the changes are just
+ * insertions and removals, which are coalesced into contiguous ranges.
+ * <p>
+ * Positions are reported in the order the changes should be applied, each relative to the list
+ * with all previously reported changes applied, matching the semantics of
+ * {@link android.support.v7.widget.RecyclerView.Adapter#notifyItemRangeInserted(int, int)} and
+ * {@link android.support.v7.widget.RecyclerView.Adapter#notifyItemRangeRemoved(int, int)}.
+ */
+public class SortedListDiffer {
+    public interface Callback {
+        void onInserted(int position, int count);
+        void onRemoved(int position, int count);
+    }
+
+    private SortedListDiffer() {
+    }
+
+    /**
+     * Reports the changes that turn {@code oldList} into {@code newList}. Both lists must be
+     * sorted by their natural ordering and free of duplicates.
+     */
+    public static <T extends Comparable<? super T>> void diff(List<T> oldList, List<T> newList,
+                                                             Callback callback) {
+        int i = 0, j = 0;
+        // The position in the partially updated list.
+        int position = 0;
+        int insertStart = -1, insertCount = 0;
+        int removeStart = -1, removeCount = 0;
+
+        while (i < oldList.size() || j < newList.size()) {
+            int cmp;
+            if (i == oldList.size()) {
+                cmp = 1;
+            } else if (j == newList.size()) {
+                cmp = -1;
+            } else {
+                cmp = oldList.get(i).compareTo(newList.get(j));
+            }
+
+            if (cmp < 0) {
+                // Removal from the old list.
+                if (insertCount > 0) {
+                    callback.onInserted(insertStart, insertCount);
+                    insertCount = 0;
+                }
+                if (removeCount > 0 && removeStart != position) {
+                    callback.onRemoved(removeStart, removeCount);
+                    removeCount = 0;
+                }
+                if (removeCount == 0) {
+                    removeStart = position;
+                }
+                removeCount++;
+                i++;
+            } else if (cmp > 0) {
+                // Insertion from the new list.
+                if (removeCount > 0) {
+                    callback.onRemoved(removeStart, removeCount);
+                    removeCount = 0;
+                }
+                if (insertCount > 0 && insertStart + insertCount != position) {
+                    callback.onInserted(insertStart, insertCount);
+                    insertCount = 0;
+                }
+                if (insertCount == 0) {
+                    insertStart = position;
+                }
+                insertCount++;
+                position++;
+                j++;
+            } else {
+                i++;
+                j++;
+                position++;
+            }
+        }
+
+        if (removeCount > 0) {
+            callback.onRemoved(removeStart, removeCount);
+        }
+        if (insertCount > 0) {
+            callback.onInserted(insertStart, insertCount);
+        }
+    }
+}
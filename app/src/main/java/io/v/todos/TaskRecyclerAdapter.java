@@ -9,22 +9,24 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import io.v.todos.model.Task;
+import io.v.todos.model.TaskList;
 
 /**
  * @author alexfandrianto
  */
 public class TaskRecyclerAdapter extends RecyclerView.Adapter<TaskViewHolder> {
-    private ArrayList<Task> mBackup;
+    private TaskList mBackup;
     private View.OnClickListener mItemListener;
     private View.OnClickListener mDoneListener;
     private boolean mShowDone = true;
+    private TimeAgoTicker.Registration mTicking;
 
     private static final int RESOURCE_ID = R.layout.task_row;
 
-    public TaskRecyclerAdapter(ArrayList<Task> backup, View.OnClickListener itemListener,
+    public TaskRecyclerAdapter(TaskList backup, View.OnClickListener itemListener,
                                View.OnClickListener doneListener) {
         super();
         mBackup = backup;
@@ -36,13 +38,64 @@ public class TaskRecyclerAdapter extends RecyclerView.Adapter<TaskViewHolder> {
     public TaskViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(RESOURCE_ID, parent, false);
-        return new TaskViewHolder(view);
+        return new TaskViewHolder(view, mItemListener, mDoneListener);
     }
 
     @Override
     public void onBindViewHolder(TaskViewHolder holder, int position) {
         Task task = mBackup.get(position);
-        holder.bindTask(task, mItemListener, mDoneListener);
+        holder.bindTask(task);
+    }
+
+    /**
+     * Payloads are {@link Task#diff(Task)} masks, in which case only the changed fields are
+     * rebound.
+     */
+    @Override
+    public void onBindViewHolder(TaskViewHolder holder, int position, List<Object> payloads) {
+        int changes = 0;
+        for (Object payload : payloads) {
+            if (!(payload instanceof Integer)) {
+                changes = 0;
+                break;
+            }
+            changes |= (Integer) payload;
+        }
+        if (changes == 0) {
+            onBindViewHolder(holder, position);
+        } else {
+            holder.bindChanges(mBackup.get(position), changes);
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(final RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        // Keep the relative times of visible rows current.
+        mTicking = TimeAgoTicker.tickWhileAttached(recyclerView,
+                new TimeAgoTicker.OnTickListener() {
+                    @Override
+                    public void onTick() {
+                        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                            TaskViewHolder holder = (TaskViewHolder)
+                                    recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+                            int position = holder.getAdapterPosition();
+                            if (position == RecyclerView.NO_POSITION) {
+                                continue;
+                            }
+                            Task task = mBackup.get(position);
+                            if (holder.isCreatedStale(task)) {
+                                holder.bindChanges(task, Task.FIELD_ADDED_AT);
+                            }
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mTicking.unregister();
     }
 
     @Override
@@ -51,19 +104,15 @@ public class TaskRecyclerAdapter extends RecyclerView.Adapter<TaskViewHolder> {
     }
 
     private int nonDoneSize() {
-        for (int i = 0; i < mBackup.size(); i++) {
-            if (mBackup.get(i).done) {
-                return i;
-            }
-        }
-        return mBackup.size();
+        // Done tasks are sorted last.
+        return mBackup.getNonDoneCount();
     }
 
     public void setShowDone(boolean showDone) {
         if (mShowDone != showDone) {
             mShowDone = showDone;
             int nonDoneSize = nonDoneSize(),
-                doneSize = mBackup.size() - nonDoneSize;
+                doneSize = mBackup.getDoneCount();
 
             if (showDone) {
                 notifyItemRangeInserted(nonDoneSize, doneSize);
@@ -15,33 +15,57 @@ import io.v.todos.model.Task;
  * @author alexfandrianto
  */
 public class TaskViewHolder extends SwipeableCardViewHolder {
-    public TaskViewHolder(View itemView) {
+    private final ImageButton mDoneMark;
+    private final TextView mName, mCreated;
+
+    public TaskViewHolder(View itemView, View.OnClickListener itemListener,
+                          View.OnClickListener doneListener) {
         super(itemView);
-    }
+        mDoneMark = (ImageButton) itemView.findViewById(R.id.task_done);
+        mName = (TextView) itemView.findViewById(R.id.task_text);
+        mCreated = (TextView) itemView.findViewById(R.id.task_time);
 
-    public void bindTask(Task task, View.OnClickListener itemListener,
-                         View.OnClickListener doneListener) {
-        final ImageButton doneMark = (ImageButton) itemView.findViewById(R.id.task_done);
-        doneMark.setImageResource(task.done ? R.drawable.ic_check_box_black_24dp :
-                R.drawable.ic_check_box_outline_blank_black_24dp);
-        doneMark.setTag(task.key);
-        doneMark.setOnClickListener(doneListener);
-
-        final TextView name=(TextView) itemView.findViewById(R.id.task_text);
-        name.setText(task.text);
-        if (task.done) {
-            name.setPaintFlags(name.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            name.setTextColor(name.getTextColors().withAlpha(UIUtil.ALPHA_HINT));
-        } else {
-            name.setPaintFlags(name.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
-            name.setTextColor(name.getTextColors().withAlpha(UIUtil.ALPHA_PRIMARY));
-        }
+        mDoneMark.setOnClickListener(doneListener);
+        itemView.setOnClickListener(itemListener);
+    }
 
-        final TextView created=(TextView) itemView.findViewById(R.id.task_time);
-        created.setText(computeCreated(task));
+    public void bindTask(Task task) {
+        bindChanges(task, ~0);
 
+        mDoneMark.setTag(task.key);
         itemView.setTag(task.key);
-        itemView.setOnClickListener(itemListener);
+    }
+
+    /**
+     * Rebinds only the views showing the given fields.
+     *
+     * @param changes a mask of {@link Task} {@code FIELD_*} bits
+     */
+    public void bindChanges(Task task, int changes) {
+        if ((changes & Task.FIELD_DONE) != 0) {
+            mDoneMark.setImageResource(task.done ? R.drawable.ic_check_box_black_24dp :
+                    R.drawable.ic_check_box_outline_blank_black_24dp);
+            if (task.done) {
+                mName.setPaintFlags(mName.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+                mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_HINT));
+            } else {
+                mName.setPaintFlags(mName.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
+                mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_PRIMARY));
+            }
+        }
+        if ((changes & Task.FIELD_TEXT) != 0) {
+            mName.setText(task.text);
+        }
+        if ((changes & Task.FIELD_ADDED_AT) != 0) {
+            mCreated.setText(computeCreated(task));
+        }
+    }
+
+    /**
+     * @return whether the relative time shown for the task has changed since it was bound
+     */
+    public boolean isCreatedStale(Task task) {
+        return !computeCreated(task).contentEquals(mCreated.getText());
     }
 
     private String computeCreated(Task task) {
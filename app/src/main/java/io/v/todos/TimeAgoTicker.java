@@ -0,0 +1,131 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import android.util.LongSparseArray;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches relative time labels ("just now", "2 hours ago") and refreshes them while they are on
+ * screen. Labels are computed against the current minute, so each distinct time is formatted at
+ * most once a minute no matter how often rows are bound. A single ticker fires at the start of
+ * every minute while any listener is registered, so that visible rows whose labels changed can
+ * update them.
+ * <p>
+ * This class must only be used from the main thread.
+ */
+public final class TimeAgoTicker {
+    private TimeAgoTicker() {
+    }
+
+    public interface OnTickListener {
+        void onTick();
+    }
+
+    /**
+     * A listener registered by {@link #tickWhileAttached(View, OnTickListener)}.
+     */
+    public static final class Registration {
+        private final View mView;
+        private final View.OnAttachStateChangeListener mAttachListener;
+        private final OnTickListener mListener;
+
+        private Registration(View view, View.OnAttachStateChangeListener attachListener,
+                             OnTickListener listener) {
+            mView = view;
+            mAttachListener = attachListener;
+            mListener = listener;
+        }
+
+        public void unregister() {
+            mView.removeOnAttachStateChangeListener(mAttachListener);
+            removeOnTickListener(mListener);
+        }
+    }
+
+    private static final long TICK_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final List<OnTickListener> sListeners = new ArrayList<>();
+    // Time -> label, for the minute sLabelTick.
+    private static final LongSparseArray<String> sLabels = new LongSparseArray<>();
+    private static long sLabelTick = -1;
+
+    private static final Runnable sTick = new Runnable() {
+        @Override
+        public void run() {
+            // Listeners may unregister while being notified.
+            for (OnTickListener listener : new ArrayList<>(sListeners)) {
+                listener.onTick();
+            }
+            scheduleTick();
+        }
+    };
+
+    /**
+     * @return the label for the given time, as of the start of the current minute
+     */
+    public static String getLabel(Context context, long time) {
+        long tick = System.currentTimeMillis() / TICK_MS;
+        if (tick != sLabelTick) {
+            sLabels.clear();
+            sLabelTick = tick;
+        }
+        String label = sLabels.get(time);
+        if (label == null) {
+            label = UIUtil.formatTimeAgo(context, time, tick * TICK_MS);
+            sLabels.put(time, label);
+        }
+        return label;
+    }
+
+    private static void scheduleTick() {
+        sHandler.postDelayed(sTick, TICK_MS - System.currentTimeMillis() % TICK_MS);
+    }
+
+    public static void addOnTickListener(OnTickListener listener) {
+        if (sListeners.isEmpty()) {
+            scheduleTick();
+        }
+        sListeners.add(listener);
+    }
+
+    public static void removeOnTickListener(OnTickListener listener) {
+        if (sListeners.remove(listener) && sListeners.isEmpty()) {
+            sHandler.removeCallbacks(sTick);
+        }
+    }
+
+    /**
+     * Registers the listener whenever the view is attached to a window, ticking it once on each
+     * attach to catch up on any missed minutes, until the returned registration is unregistered.
+     */
+    public static Registration tickWhileAttached(View view, final OnTickListener listener) {
+        View.OnAttachStateChangeListener attachListener = new View.OnAttachStateChangeListener() {
+            @Override
+            public void onViewAttachedToWindow(View v) {
+                addOnTickListener(listener);
+                listener.onTick();
+            }
+
+            @Override
+            public void onViewDetachedFromWindow(View v) {
+                removeOnTickListener(listener);
+            }
+        };
+        view.addOnAttachStateChangeListener(attachListener);
+        if (view.isAttachedToWindow()) {
+            addOnTickListener(listener);
+        }
+        return new Registration(view, attachListener, listener);
+    }
+}
@@ -7,17 +7,21 @@ package io.v.todos;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.VisibleForTesting;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 
-import io.v.todos.model.DataList;
 import io.v.todos.model.ListSpec;
+import io.v.todos.model.Orderings;
 import io.v.todos.model.Task;
+import io.v.todos.model.TaskList;
 import io.v.todos.model.TaskSpec;
 import io.v.todos.persistence.PersistenceFactory;
+import io.v.todos.persistence.TaskWindow;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.persistence.TodoListPersistence;
 
@@ -30,16 +34,23 @@ import io.v.todos.persistence.TodoListPersistence;
  * - Swipe Right in order to mark the Task as done.
  * - Select Edit from the menu to Edit the Todo List.
  * - Toggle Show Done in the menu to show/hide completed Tasks.
+ * - Toggle Sort by Text in the menu to sort the loaded Tasks alphabetically.
  *
  * @author alexfandrianto
  */
 public class TodoListActivity extends TodosAppActivity<TodoListPersistence, TaskRecyclerAdapter> {
     private ListSpec snackoo;
-    private DataList<Task> snackoosList = new DataList<>();
+    private TaskList snackoosList = new TaskList();
 
     // The menu item that toggles whether done items are shown or not.
     private MenuItem mShowDoneMenuItem;
 
+    // How close to the end of the loaded tasks the user can scroll before the next page loads.
+    private static final int LOAD_AHEAD = 20;
+    // The number of tasks requested from persistence, which grows a page at a time on scroll and
+    // shrinks back when the user scrolls up.
+    private int mTaskWindow = TaskWindow.DEFAULT_PAGE_SIZE;
+
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -62,13 +73,39 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
             public void onClick(View view) {
                 String key = (String) view.getTag();
 
-                mPersistence.updateTask(snackoosList.findByKey(key).withToggleDone());
+                mPersistence.setTaskDone(key, !snackoosList.findByKey(key).done);
             }
         });
 
         RecyclerView recyclerView = (RecyclerView) findViewById(R.id.recycler);
         recyclerView.setAdapter(mAdapter);
         recyclerView.setHasFixedSize(true);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int lastVisible = ((LinearLayoutManager) recyclerView.getLayoutManager())
+                        .findLastVisibleItemPosition();
+                // The whole list is loaded while it is sorted by text.
+                if (mPersistence == null || snackoosList.getOrdering() != null) {
+                    return;
+                }
+                // Only a full window can have more tasks beyond it.
+                if (mAdapter.getItemCount() >= mTaskWindow &&
+                        lastVisible >= mAdapter.getItemCount() - LOAD_AHEAD) {
+                    mTaskWindow += TaskWindow.DEFAULT_PAGE_SIZE;
+                    mPersistence.setTaskWindow(mTaskWindow);
+                    return;
+                }
+                // Drop pages well below the visible tasks once the user scrolls back up, so that
+                // only the tasks near the visible ones are held.
+                int keep = (lastVisible / TaskWindow.DEFAULT_PAGE_SIZE + 2) *
+                        TaskWindow.DEFAULT_PAGE_SIZE;
+                if (mTaskWindow > keep + TaskWindow.DEFAULT_PAGE_SIZE) {
+                    mTaskWindow = keep;
+                    mPersistence.setTaskWindow(mTaskWindow);
+                }
+            }
+        });
 
         new ItemTouchHelper(new SwipeableTouchHelperCallback(0, ItemTouchHelper.LEFT |
                 ItemTouchHelper.RIGHT) {
@@ -76,7 +113,7 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
             public void onSwiped(final RecyclerView.ViewHolder viewHolder, final int direction) {
                 String fbKey = (String) viewHolder.itemView.getTag();
                 if (direction == ItemTouchHelper.RIGHT) {
-                    mPersistence.updateTask(snackoosList.findByKey(fbKey).withToggleDone());
+                    mPersistence.setTaskDone(fbKey, !snackoosList.findByKey(fbKey).done);
                 } else if (direction == ItemTouchHelper.LEFT) {
                     mPersistence.deleteTask(fbKey);
                 }
@@ -86,8 +123,12 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
         new PersistenceInitializer<TodoListPersistence>(this) {
             @Override
             protected TodoListPersistence initPersistence() throws Exception {
+                TodoListListener listener = mDispatcher.wrap(createTodoListListener());
+                if (mEventTrace != null) {
+                    listener = mEventTrace.recordList(listener);
+                }
                 return PersistenceFactory.getTodoListPersistence(mActivity, savedInstanceState,
-                        snackooKey, createTodoListListener());
+                        snackooKey, listener);
             }
 
             protected void onSuccess(TodoListPersistence persistence) {
@@ -141,9 +182,16 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
             @Override
             public void onItemUpdate(Task item) {
                 int start = snackoosList.findIndexByKey(item.key);
+                int changes = start == -1 ? ~0 : snackoosList.get(start).diff(item);
+                if (changes == 0) {
+                    return;
+                }
                 int end = snackoosList.updateInOrder(item);
-                mAdapter.notifyItemMoved(start, end);
-                mAdapter.notifyItemChanged(end);
+                if (start != end) {
+                    mAdapter.notifyItemMoved(start, end);
+                }
+                // Only the changed fields are rebound; see TaskRecyclerAdapter.
+                mAdapter.notifyItemChanged(end, changes);
                 setEmptyVisiblity();
             }
 
@@ -170,7 +218,7 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
                 new UIUtil.DialogResponseListener() {
                     @Override
                     public void handleResponse(String response) {
-                        mPersistence.updateTask(snackoosList.findByKey(fbKey).withText(response));
+                        mPersistence.setTaskText(fbKey, response);
                     }
 
                     @Override
@@ -185,7 +233,7 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
                 new UIUtil.DialogResponseListener() {
                     @Override
                     public void handleResponse(String response) {
-                        mPersistence.updateTodoList(new ListSpec(response));
+                        mPersistence.setListName(response);
                     }
 
                     @Override
@@ -220,6 +268,20 @@ public class TodoListActivity extends TodosAppActivity<TodoListPersistence, Task
             case R.id.show_done:
                 mPersistence.setShowDone(!item.isChecked());
                 return true;
+            case R.id.action_sort_text:
+                // Tasks are paged in their natural order, so later pages would be merged into
+                // the middle of a list sorted by text. Only sort a list that is loaded in full,
+                // and keep loading all of it while it is sorted.
+                if (!item.isChecked() && snackoosList.size() >= mTaskWindow) {
+                    Toast.makeText(this, R.string.err_sort_paged, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                item.setChecked(!item.isChecked());
+                mTaskWindow = item.isChecked() ? Integer.MAX_VALUE : TaskWindow.DEFAULT_PAGE_SIZE;
+                mPersistence.setTaskWindow(mTaskWindow);
+                snackoosList.setOrdering(item.isChecked() ? Orderings.TASKS_BY_TEXT : null);
+                mAdapter.notifyDataSetChanged();
+                return true;
             case R.id.action_edit:
                 initiateTodoListEdit();
                 return true;
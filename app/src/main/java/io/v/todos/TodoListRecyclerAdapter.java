@@ -10,6 +10,7 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import io.v.todos.model.ListMetadata;
 
@@ -19,6 +20,7 @@ import io.v.todos.model.ListMetadata;
 public class TodoListRecyclerAdapter extends RecyclerView.Adapter<TodoListViewHolder> {
     private ArrayList<ListMetadata> mBackup;
     private View.OnClickListener mItemListener;
+    private TimeAgoTicker.Registration mTicking;
 
     private static final int RESOURCE_ID = R.layout.todo_list_row;
 
@@ -32,13 +34,64 @@ public class TodoListRecyclerAdapter extends RecyclerView.Adapter<TodoListViewHo
     public TodoListViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(RESOURCE_ID, parent, false);
-        return new TodoListViewHolder(view);
+        return new TodoListViewHolder(view, mItemListener);
     }
 
     @Override
     public void onBindViewHolder(TodoListViewHolder holder, int position) {
         ListMetadata listMetadata = mBackup.get(position);
-        holder.bindTodoList(listMetadata, mItemListener);
+        holder.bindTodoList(listMetadata);
+    }
+
+    /**
+     * Payloads are {@link ListMetadata#diff(ListMetadata)} masks, in which case only the changed
+     * fields are rebound.
+     */
+    @Override
+    public void onBindViewHolder(TodoListViewHolder holder, int position, List<Object> payloads) {
+        int changes = 0;
+        for (Object payload : payloads) {
+            if (!(payload instanceof Integer)) {
+                changes = 0;
+                break;
+            }
+            changes |= (Integer) payload;
+        }
+        if (changes == 0) {
+            onBindViewHolder(holder, position);
+        } else {
+            holder.bindChanges(mBackup.get(position), changes);
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(final RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        // Keep the relative times of visible rows current.
+        mTicking = TimeAgoTicker.tickWhileAttached(recyclerView,
+                new TimeAgoTicker.OnTickListener() {
+                    @Override
+                    public void onTick() {
+                        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                            TodoListViewHolder holder = (TodoListViewHolder)
+                                    recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+                            int position = holder.getAdapterPosition();
+                            if (position == RecyclerView.NO_POSITION) {
+                                continue;
+                            }
+                            ListMetadata listMetadata = mBackup.get(position);
+                            if (holder.isTimeAgoStale(listMetadata)) {
+                                holder.bindChanges(listMetadata, ListMetadata.FIELD_UPDATED_AT);
+                            }
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mTicking.unregister();
     }
 
     @Override
@@ -16,27 +16,50 @@ import io.v.todos.model.ListMetadata;
 public class TodoListViewHolder extends SwipeableCardViewHolder {
     private final TextView mName, mCompletedStatus, mTimeAgo;
 
-    public TodoListViewHolder(View itemView) {
+    public TodoListViewHolder(View itemView, View.OnClickListener listener) {
         super(itemView);
         mName = (TextView) itemView.findViewById(R.id.todo_list_name);
         mCompletedStatus = (TextView) itemView.findViewById(R.id.todo_list_completed);
         mTimeAgo = (TextView) itemView.findViewById(R.id.todo_list_time);
+
+        itemView.setOnClickListener(listener);
     }
 
-    public void bindTodoList(ListMetadata listMetadata, View.OnClickListener listener) {
-        mName.setText(listMetadata.name);
-        mCompletedStatus.setText(computeCompleted(listMetadata));
-        if (listMetadata.isDone()) {
-            mName.setPaintFlags(mName.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_HINT));
-        } else {
-            mName.setPaintFlags(mName.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
-            mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_PRIMARY));
-        }
-        mTimeAgo.setText(computeTimeAgo(listMetadata));
+    public void bindTodoList(ListMetadata listMetadata) {
+        bindChanges(listMetadata, ~0);
 
         itemView.setTag(listMetadata.key);
-        itemView.setOnClickListener(listener);
+    }
+
+    /**
+     * Rebinds only the views showing the given fields.
+     *
+     * @param changes a mask of {@link ListMetadata} {@code FIELD_*} bits
+     */
+    public void bindChanges(ListMetadata listMetadata, int changes) {
+        if ((changes & ListMetadata.FIELD_NAME) != 0) {
+            mName.setText(listMetadata.name);
+        }
+        if ((changes & ListMetadata.FIELD_COUNTS) != 0) {
+            mCompletedStatus.setText(computeCompleted(listMetadata));
+            if (listMetadata.isDone()) {
+                mName.setPaintFlags(mName.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+                mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_HINT));
+            } else {
+                mName.setPaintFlags(mName.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
+                mName.setTextColor(mName.getTextColors().withAlpha(UIUtil.ALPHA_PRIMARY));
+            }
+        }
+        if ((changes & ListMetadata.FIELD_UPDATED_AT) != 0) {
+            mTimeAgo.setText(computeTimeAgo(listMetadata));
+        }
+    }
+
+    /**
+     * @return whether the relative time shown for the list has changed since it was bound
+     */
+    public boolean isTimeAgoStale(ListMetadata listMetadata) {
+        return !computeTimeAgo(listMetadata).contentEquals(mTimeAgo.getText());
     }
 
     private String computeTimeAgo(ListMetadata listMetadata) {
@@ -16,6 +16,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.Toolbar;
 
+import io.v.todos.persistence.EventTrace;
+import io.v.todos.persistence.EventTraces;
+import io.v.todos.persistence.MainThreadDispatcher;
 import io.v.todos.persistence.Persistence;
 
 public class TodosAppActivity<P extends Persistence, A extends RecyclerView.Adapter<?>>
@@ -25,6 +28,16 @@ public class TodosAppActivity<P extends Persistence, A extends RecyclerView.Adap
     protected P mPersistence;
     protected A mAdapter;
 
+    /**
+     * Delivers persistence events on the main thread, batched per frame.
+     */
+    protected final MainThreadDispatcher mDispatcher = new MainThreadDispatcher();
+
+    /**
+     * Records persistence events for replay, if enabled; otherwise null. See {@link EventTraces}.
+     */
+    protected final EventTrace mEventTrace = EventTraces.createIfEnabled();
+
     protected TextView mEmptyView;
 
     /**
@@ -49,6 +62,8 @@ public class TodosAppActivity<P extends Persistence, A extends RecyclerView.Adap
 
     @Override
     protected void onDestroy() {
+        mDispatcher.cancel();
+        EventTraces.save(this, mEventTrace, getClass().getSimpleName());
         if (mPersistence != null) {
             mPersistence.close();
             mPersistence = null;
@@ -38,8 +38,14 @@ public final class UIUtil {
     public static final int ALPHA_SECONDARY = (int)(255 * 0.54);
     public static final int ALPHA_HINT = (int)(255 * 0.38);
 
+    /**
+     * @return a cached label for how long ago the start time was; see {@link TimeAgoTicker}
+     */
     public static String computeTimeAgo(Context context, long startTime) {
-        long now = System.currentTimeMillis();
+        return TimeAgoTicker.getLabel(context, startTime);
+    }
+
+    static String formatTimeAgo(Context context, long startTime, long now) {
         // TODO(alexfandrianto): We could use even shorter strings for times.
         return (now - startTime > JUST_NOW_DURATION ?
                 DateUtils.getRelativeTimeSpanString(startTime, now, DateUtils.HOUR_IN_MILLIS,
@@ -55,6 +61,13 @@ public final class UIUtil {
 
     public static AlertDialog dialogMaker(Context context, String title, String defaultValue,
                                              final DialogResponseListener listener) {
+        return dialogMaker(context, title, defaultValue,
+                defaultValue == null ? "Add" : "Save", listener);
+    }
+
+    private static AlertDialog dialogMaker(Context context, String title, String defaultValue,
+                                           String positiveLabel,
+                                           final DialogResponseListener listener) {
         // Prepare the edit text.
         TextInputLayout inputLayout = (TextInputLayout)LayoutInflater.from(context).
                 inflate(R.layout.dialog_edittext, null);
@@ -68,7 +81,7 @@ public final class UIUtil {
         AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(context)
                 .setTitle(title)
                 .setView(inputLayout)
-                .setPositiveButton(adding ? "Add" : "Save", new DialogInterface.OnClickListener() {
+                .setPositiveButton(positiveLabel, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int whichButton) {
                         String response = editText.getText().toString();
                         if (response != null && response.length() > 0) {
@@ -117,6 +130,13 @@ public final class UIUtil {
         lastDialog = dialog;
     }
 
+    public static void showSearchDialog(Context context, String title,
+                                        final DialogResponseListener searchListener) {
+        AlertDialog dialog = dialogMaker(context, title, null, "Search", searchListener);
+
+        lastDialog = dialog;
+    }
+
     public static void showEditDialog(Context context, String title, String defaultValue,
                                       final DialogResponseListener editListener) {
 
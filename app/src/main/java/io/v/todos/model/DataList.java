@@ -4,43 +4,232 @@
 
 package io.v.todos.model;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * DataList is an ArrayList with additional helper methods to keep the entries sorted.
  * This list requires each entry to have a unique key.
- *
- * TODO(alexfandrianto): This should have tests.
+ * <p>
+ * Entries are sorted by their natural ordering unless another ordering is set. Orderings that may
+ * be switched to often can be registered with {@link #addOrdering(Comparator)}, which keeps a
+ * sorted index in that ordering up to date as entries are inserted, updated and removed, so that
+ * switching to it is a linear copy rather than a sort. Indices are maintained by the in-order
+ * helper methods below. Other structural changes, e.g. a raw {@link #add(Object)}, leave them
+ * stale, and they are rebuilt the next time they are needed.
+ * <p>
+ * Entries are also indexed by key, so that finding one by key is a hash lookup followed by a
+ * binary search in the current ordering.
  *
  * @author alexfandrianto
  */
 public class DataList<T extends KeyedData<T>> extends ArrayList<T> {
+    // Null for the natural ordering.
+    private Comparator<? super T> mOrdering;
+    private final List<SortedIndex<T>> mIndices = new ArrayList<>();
+    // Each entry by its key, kept alongside the sorted indices.
+    private final Map<String, T> mByKey = new HashMap<>();
+    // The modCount as of the last change the indices reflect.
+    private int mIndexedModCount;
+
+    private static class SortedIndex<T> {
+        final Comparator<? super T> ordering;
+        final ArrayList<T> items;
+
+        SortedIndex(Comparator<? super T> ordering, ArrayList<T> items) {
+            this.ordering = ordering;
+            this.items = items;
+        }
+    }
+
     public int insertInOrder(T item) {
-        // Note: binarySearch returns -|correct insert index| - 1 if it fails to find a match.
-        // For Java ints, this is the bitwise complement of the "correct" insertion index.
-        int searchIndex = Collections.binarySearch(this, item);
-        int insertIndex = searchIndex < 0 ? ~searchIndex : searchIndex;
+        syncIndices();
+        for (SortedIndex<T> index : mIndices) {
+            index.items.add(insertionPoint(index.items, item, index.ordering), item);
+        }
+        int insertIndex = insertionPoint(this, item, mOrdering);
         add(insertIndex, item);
+        mByKey.put(item.key, item);
+        mIndexedModCount = modCount;
         return insertIndex;
     }
 
-    // We have to replace the old item while keeping sort order.
-    // It is easiest to remove and then insertInOrder.
+    /**
+     * Rebuilds the indices if the list has been changed other than through the in-order helpers.
+     */
+    private void syncIndices() {
+        if (modCount == mIndexedModCount) {
+            return;
+        }
+        for (SortedIndex<T> index : mIndices) {
+            index.items.clear();
+            index.items.addAll(this);
+            Collections.sort(index.items, index.ordering);
+        }
+        mByKey.clear();
+        for (int i = 0; i < size(); i++) {
+            mByKey.put(get(i).key, get(i));
+        }
+        mIndexedModCount = modCount;
+    }
+
+    private static <T> int insertionPoint(List<T> list, T item, Comparator<? super T> ordering) {
+        // Note: binarySearch returns -|correct insert index| - 1 if it fails to find a match.
+        // For Java ints, this is the bitwise complement of the "correct" insertion index.
+        int searchIndex = Collections.binarySearch(list, item, ordering);
+        return searchIndex < 0 ? ~searchIndex : searchIndex;
+    }
+
+    // We have to replace the old item while keeping sort order. If the new item still sorts
+    // between its neighbors (e.g. only fields outside the ordering changed), it is replaced in
+    // place. Otherwise it is easiest to remove and then insertInOrder.
     public int updateInOrder(T item) {
-        removeByKey(item.key);
+        syncIndices();
+        int index = findIndexByKey(item.key);
+        if (index == -1) {
+            return insertInOrder(item);
+        }
+        if ((index == 0 || compare(get(index - 1), item) <= 0) &&
+                (index == size() - 1 || compare(item, get(index + 1)) <= 0)) {
+            T oldItem = set(index, item);
+            for (SortedIndex<T> sortedIndex : mIndices) {
+                removeFromIndex(sortedIndex, oldItem);
+                sortedIndex.items.add(
+                        insertionPoint(sortedIndex.items, item, sortedIndex.ordering), item);
+            }
+            mIndexedModCount = modCount;
+            return index;
+        }
+        removeAt(index);
         return insertInOrder(item);
     }
 
+    /**
+     * Replaces an entry, keeping the key index up to date. The sorted indices can't tell, since
+     * this is not a structural change, so prefer {@link #updateInOrder(KeyedData)}.
+     */
+    @Override
+    public T set(int index, T item) {
+        T oldItem = super.set(index, item);
+        mByKey.remove(oldItem.key);
+        mByKey.put(item.key, item);
+        return oldItem;
+    }
+
+    /**
+     * ArrayList's sub lists change the backing array directly, so the view returned here goes
+     * through this list's own methods instead, which subclasses can rely on to see every change.
+     */
+    @Override
+    public List<T> subList(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(
+                    "[" + fromIndex + ", " + toIndex + ") of " + size());
+        }
+        return new SubList(fromIndex, toIndex - fromIndex);
+    }
+
+    private class SubList extends AbstractList<T> {
+        private final int mOffset;
+        private int mSize;
+
+        SubList(int offset, int size) {
+            mOffset = offset;
+            mSize = size;
+        }
+
+        private int checkIndex(int index, int bound) {
+            if (index < 0 || index >= bound) {
+                throw new IndexOutOfBoundsException(index + " of " + mSize);
+            }
+            return mOffset + index;
+        }
+
+        @Override
+        public T get(int index) {
+            return DataList.this.get(checkIndex(index, mSize));
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public T set(int index, T item) {
+            return DataList.this.set(checkIndex(index, mSize), item);
+        }
+
+        @Override
+        public void add(int index, T item) {
+            DataList.this.add(checkIndex(index, mSize + 1), item);
+            mSize++;
+            modCount++;
+        }
+
+        @Override
+        public T remove(int index) {
+            T item = DataList.this.remove(checkIndex(index, mSize));
+            mSize--;
+            modCount++;
+            return item;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            DataList.this.removeRange(mOffset + fromIndex, mOffset + toIndex);
+            mSize -= toIndex - fromIndex;
+            modCount++;
+        }
+    }
+
+    private int compare(T a, T b) {
+        return mOrdering == null ? a.compareTo(b) : mOrdering.compare(a, b);
+    }
+
     public int removeByKey(String key) {
+        syncIndices();
         int index = findIndexByKey(key);
         if (index != -1) {
-            remove(index);
+            removeAt(index);
         }
         return index;
     }
 
+    private void removeAt(int index) {
+        T item = remove(index);
+        mByKey.remove(item.key);
+        for (SortedIndex<T> sortedIndex : mIndices) {
+            removeFromIndex(sortedIndex, item);
+        }
+        mIndexedModCount = modCount;
+    }
+
+    private static <T> void removeFromIndex(SortedIndex<T> sortedIndex, T item) {
+        // Absent if the item was replaced with a raw set(), which the indices can't detect.
+        int position = Collections.binarySearch(sortedIndex.items, item, sortedIndex.ordering);
+        if (position >= 0) {
+            sortedIndex.items.remove(position);
+        }
+    }
+
     public int findIndexByKey(String key) {
+        syncIndices();
+        T item = mByKey.get(key);
+        if (item == null) {
+            return -1;
+        }
+        // The ordering only considers entries equal if they have the same key.
+        int index = Collections.binarySearch(this, item, mOrdering);
+        if (index >= 0 && get(index).key.equals(key)) {
+            return index;
+        }
+        // The list is out of order, e.g. after a raw add(), so fall back on a scan.
         for (int i = 0; i < size(); i++) {
             T oldItem = get(i);
             if (oldItem.key.equals(key)) {
@@ -55,5 +244,68 @@ public class DataList<T extends KeyedData<T>> extends ArrayList<T> {
         return index == -1 ? null : get(index);
     }
 
+    /**
+     * @return the ordering the list is currently sorted by, or null for the natural ordering
+     */
+    public Comparator<? super T> getOrdering() {
+        return mOrdering;
+    }
 
+    private SortedIndex<T> findIndex(Comparator<? super T> ordering) {
+        for (SortedIndex<T> index : mIndices) {
+            if (index.ordering == ordering) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts maintaining a sorted index in the given ordering, so that switching to it with
+     * {@link #setOrdering(Comparator)} takes linear time. Building the index sorts the list once.
+     * Use null for the natural ordering. The ordering must only consider distinct entries equal
+     * if they have the same key; see {@link Orderings}.
+     */
+    public void addOrdering(Comparator<? super T> ordering) {
+        if (findIndex(ordering) != null) {
+            return;
+        }
+        syncIndices();
+        ArrayList<T> items = new ArrayList<>(this);
+        if (ordering != mOrdering) {
+            Collections.sort(items, ordering);
+        }
+        mIndices.add(new SortedIndex<T>(ordering, items));
+    }
+
+    public void removeOrdering(Comparator<? super T> ordering) {
+        SortedIndex<T> index = findIndex(ordering);
+        if (index != null) {
+            mIndices.remove(index);
+        }
+    }
+
+    /**
+     * Re-sorts the list in the given ordering, or the natural ordering if null. This is a linear
+     * copy if the ordering was registered with {@link #addOrdering(Comparator)} and a sort
+     * otherwise.
+     */
+    public void setOrdering(Comparator<? super T> ordering) {
+        if (ordering == mOrdering) {
+            return;
+        }
+        syncIndices();
+        SortedIndex<T> index = findIndex(ordering);
+        List<T> sorted;
+        if (index != null) {
+            sorted = index.items;
+        } else {
+            sorted = new ArrayList<>(this);
+            Collections.sort(sorted, ordering);
+        }
+        clear();
+        addAll(sorted);
+        mIndexedModCount = modCount;
+        mOrdering = ordering;
+    }
 }
@@ -7,11 +7,20 @@ package io.v.todos.model;
 import android.support.annotation.NonNull;
 
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * Tracks information regarding a particular todo list.
  */
 public class ListMetadata extends KeyedData<ListMetadata> {
+    /**
+     * Field bits for {@link #diff(ListMetadata)}.
+     */
+    public static final int
+            FIELD_NAME = 1,
+            FIELD_UPDATED_AT = 1 << 1,
+            FIELD_COUNTS = 1 << 2;
+
     public final String name;
     public final long updatedAt;
 
@@ -34,10 +43,36 @@ public class ListMetadata extends KeyedData<ListMetadata> {
         return numTasks > 0 && numCompleted == numTasks;
     }
 
+    /**
+     * @return whether the list is done and has not been updated for at least the given age, so
+     * that a backend can stop tracking its tasks
+     */
+    public boolean isArchivable(long now, long minAge) {
+        return isDone() && now - updatedAt >= minAge;
+    }
+
     public boolean canCompleteAll() {
         return numCompleted < numTasks;
     }
 
+    /**
+     * @return a mask of {@code FIELD_*} bits for the fields that differ from the other metadata
+     * for the same list, or 0 if they are the same
+     */
+    public int diff(ListMetadata other) {
+        int changes = 0;
+        if (!Objects.equals(name, other.name)) {
+            changes |= FIELD_NAME;
+        }
+        if (updatedAt != other.updatedAt) {
+            changes |= FIELD_UPDATED_AT;
+        }
+        if (numCompleted != other.numCompleted || numTasks != other.numTasks) {
+            changes |= FIELD_COUNTS;
+        }
+        return changes;
+    }
+
     @Override
     public boolean equals(Object o) {
         return this == o ||
@@ -65,7 +100,7 @@ public class ListMetadata extends KeyedData<ListMetadata> {
         } else {
             return key.compareTo(other.key);
         }
-        // TODO(rosswang): factor out ordering.
+        // Other orderings are in Orderings.
     }
 
     public ListSpec toSpec() {
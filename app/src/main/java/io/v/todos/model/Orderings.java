@@ -0,0 +1,95 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.model;
+
+import java.util.Comparator;
+
+/**
+ * Orderings for {@link DataList#setOrdering(Comparator)}. Each falls back on the key so that
+ * entries with equal sort values still have a stable, total order.
+ * <p>
+ * Task orderings all keep done tasks last, which the done partition in {@link TaskList} and
+ * {@link TaskIndex} relies on.
+ */
+public final class Orderings {
+    private Orderings() {
+    }
+
+    /**
+     * The natural ordering of tasks: not done before done, then by key. Since keys are generated
+     * in increasing order, this is also roughly the order tasks were added in.
+     */
+    public static final Comparator<Task> TASKS_BY_KEY = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            return a.compareTo(b);
+        }
+    };
+
+    /**
+     * Not done before done, then oldest first.
+     */
+    public static final Comparator<Task> TASKS_BY_ADDED_AT = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            int cmp = compareDone(a, b);
+            if (cmp == 0) {
+                cmp = a.addedAt < b.addedAt ? -1 : a.addedAt > b.addedAt ? 1 : 0;
+            }
+            return cmp == 0 ? compareKeys(a, b) : cmp;
+        }
+    };
+
+    /**
+     * Not done before done, then alphabetically by text, ignoring case.
+     */
+    public static final Comparator<Task> TASKS_BY_TEXT = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            int cmp = compareDone(a, b);
+            if (cmp == 0) {
+                cmp = String.CASE_INSENSITIVE_ORDER.compare(
+                        a.text == null ? "" : a.text, b.text == null ? "" : b.text);
+            }
+            return cmp == 0 ? compareKeys(a, b) : cmp;
+        }
+    };
+
+    /**
+     * The natural ordering of todo lists, by key.
+     */
+    public static final Comparator<ListMetadata> LISTS_BY_KEY = new Comparator<ListMetadata>() {
+        @Override
+        public int compare(ListMetadata a, ListMetadata b) {
+            return a.compareTo(b);
+        }
+    };
+
+    /**
+     * Most recently updated todo lists first.
+     */
+    public static final Comparator<ListMetadata> LISTS_BY_RECENT =
+            new Comparator<ListMetadata>() {
+                @Override
+                public int compare(ListMetadata a, ListMetadata b) {
+                    int cmp = a.updatedAt > b.updatedAt ? -1 : a.updatedAt < b.updatedAt ? 1 : 0;
+                    return cmp == 0 ? compareKeys(a, b) : cmp;
+                }
+            };
+
+    private static int compareKeys(KeyedData<?> a, KeyedData<?> b) {
+        if (a.key == null) {
+            return b.key == null ? 0 : 1;
+        } else if (b.key == null) {
+            return -1;
+        } else {
+            return a.key.compareTo(b.key);
+        }
+    }
+
+    private static int compareDone(Task a, Task b) {
+        return a.done == b.done ? 0 : a.done ? 1 : -1;
+    }
+}
@@ -14,6 +14,14 @@ import java.util.Objects;
  * @author alexfandrianto
  */
 public class Task extends KeyedData<Task> {
+    /**
+     * Field bits for {@link #diff(Task)}.
+     */
+    public static final int
+            FIELD_TEXT = 1,
+            FIELD_ADDED_AT = 1 << 1,
+            FIELD_DONE = 1 << 2;
+
     public final String text;
     public final long addedAt;
     public final boolean done;
@@ -38,6 +46,24 @@ public class Task extends KeyedData<Task> {
         return new Task(key, text, addedAt, !done);
     }
 
+    /**
+     * @return a mask of {@code FIELD_*} bits for the fields that differ from the other task with
+     * the same key, or 0 if they are the same
+     */
+    public int diff(Task other) {
+        int changes = 0;
+        if (!Objects.equals(text, other.text)) {
+            changes |= FIELD_TEXT;
+        }
+        if (addedAt != other.addedAt) {
+            changes |= FIELD_ADDED_AT;
+        }
+        if (done != other.done) {
+            changes |= FIELD_DONE;
+        }
+        return changes;
+    }
+
     @Override
     public boolean equals(Object o) {
         return this == o ||
@@ -57,7 +83,7 @@ public class Task extends KeyedData<Task> {
 
     @Override
     public int compareTo(@NonNull Task other) {
-        // TODO(rosswang): factor out ordering.
+        // Other orderings are in Orderings; they must keep done tasks last as well.
         if (other == this) {
             return 0;
         } else if (!other.canEqual(this)) {
@@ -0,0 +1,95 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TaskIndex tracks the keys and done bits of a list's tasks, in the order given by
+ * {@link Task#compareTo(Task)}, without holding on to the rest of each task. Positions in the
+ * index match positions in a sorted {@link TaskList} of the same tasks.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class TaskIndex {
+    private final List<String> mNotDone = new ArrayList<>();
+    private final List<String> mDone = new ArrayList<>();
+
+    public int size() {
+        return mNotDone.size() + mDone.size();
+    }
+
+    public int getNonDoneCount() {
+        return mNotDone.size();
+    }
+
+    public boolean contains(String key) {
+        return indexOf(key) != -1;
+    }
+
+    /**
+     * @return whether the task is done; only meaningful if the index {@link #contains} the key
+     */
+    public boolean isDone(String key) {
+        return Collections.binarySearch(mDone, key) >= 0;
+    }
+
+    /**
+     * @return the position of the task, or -1 if it is not in the index
+     */
+    public int indexOf(String key) {
+        int i = Collections.binarySearch(mNotDone, key);
+        if (i >= 0) {
+            return i;
+        }
+        i = Collections.binarySearch(mDone, key);
+        return i >= 0 ? mNotDone.size() + i : -1;
+    }
+
+    public String keyAt(int position) {
+        return position < mNotDone.size() ?
+                mNotDone.get(position) : mDone.get(position - mNotDone.size());
+    }
+
+    /**
+     * Adds a task that is not already in the index.
+     *
+     * @return the position of the task
+     */
+    public int insert(String key, boolean done) {
+        List<String> partition = done ? mDone : mNotDone;
+        int i = Collections.binarySearch(partition, key);
+        if (i >= 0) {
+            throw new IllegalArgumentException("Duplicate task key " + key);
+        }
+        i = ~i;
+        partition.add(i, key);
+        return done ? mNotDone.size() + i : i;
+    }
+
+    /**
+     * @return the former position of the task, or -1 if it was not in the index
+     */
+    public int remove(String key) {
+        int i = Collections.binarySearch(mNotDone, key);
+        if (i >= 0) {
+            mNotDone.remove(i);
+            return i;
+        }
+        i = Collections.binarySearch(mDone, key);
+        if (i >= 0) {
+            mDone.remove(i);
+            return mNotDone.size() + i;
+        }
+        return -1;
+    }
+
+    public void clear() {
+        mNotDone.clear();
+        mDone.clear();
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.model;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * TaskList is a DataList of tasks that keeps count of its done tasks as it is mutated. Since
+ * {@link Task#compareTo(Task)} sorts done tasks last, {@link #getNonDoneCount()} is also the
+ * index of the first done task in a sorted list.
+ * <p>
+ * The count is adjusted by the overrides below. Structural changes that bypass them, e.g.
+ * {@code removeIf} on runtimes that have it, are caught by the list's modCount, and the tasks are
+ * counted again the next time the count is needed.
+ */
+public class TaskList extends DataList<Task> {
+    private int mDoneCount;
+    // The modCount as of the last change the count reflects.
+    private int mCountedModCount;
+
+    public int getDoneCount() {
+        syncCount();
+        return mDoneCount;
+    }
+
+    public int getNonDoneCount() {
+        return size() - getDoneCount();
+    }
+
+    private static int doneCount(Task task) {
+        return task.done ? 1 : 0;
+    }
+
+    private void syncCount() {
+        if (modCount != mCountedModCount) {
+            recount();
+        }
+    }
+
+    private void recount() {
+        mDoneCount = 0;
+        for (int i = 0; i < size(); i++) {
+            mDoneCount += doneCount(get(i));
+        }
+        mCountedModCount = modCount;
+    }
+
+    private void countChange(int delta) {
+        mDoneCount += delta;
+        mCountedModCount = modCount;
+    }
+
+    @Override
+    public boolean add(Task task) {
+        syncCount();
+        super.add(task);
+        countChange(doneCount(task));
+        return true;
+    }
+
+    @Override
+    public void add(int index, Task task) {
+        syncCount();
+        super.add(index, task);
+        countChange(doneCount(task));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Task> tasks) {
+        return addAll(size(), tasks);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Task> tasks) {
+        syncCount();
+        int delta = 0;
+        for (Task task : tasks) {
+            delta += doneCount(task);
+        }
+        boolean changed = super.addAll(index, tasks);
+        countChange(delta);
+        return changed;
+    }
+
+    @Override
+    public Task set(int index, Task task) {
+        syncCount();
+        Task old = super.set(index, task);
+        countChange(doneCount(task) - doneCount(old));
+        return old;
+    }
+
+    @Override
+    public Task remove(int index) {
+        syncCount();
+        Task old = super.remove(index);
+        countChange(-doneCount(old));
+        return old;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index == -1) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        syncCount();
+        int delta = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            delta -= doneCount(get(i));
+        }
+        super.removeRange(fromIndex, toIndex);
+        countChange(delta);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean changed = super.removeAll(c);
+        recount();
+        return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        boolean changed = super.retainAll(c);
+        recount();
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mDoneCount = 0;
+        mCountedModCount = modCount;
+    }
+
+    @Override
+    public Iterator<Task> iterator() {
+        // Some ArrayList iterators remove elements directly from the backing array. List
+        // iterators go through remove(int) and set(int, Task), which keep the count.
+        return listIterator();
+    }
+}
@@ -0,0 +1,292 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * A compact table of a list's tasks, for persistence layers that cache every task in memory.
+ * Tasks are stored in columns: a key array, a packed {@code addedAt} array, a done bitset, and
+ * offsets into a character arena holding the task text, with an open-addressed hash index from
+ * key to row. {@link TaskSpec} and {@link Task} objects are only created on demand.
+ * <p>
+ * The table is updated in place. New tasks are appended to the columns and their text to the
+ * arena. Changed text overwrites the old text if it fits and is appended otherwise, and removed
+ * tasks leave a tombstone row. The columns are only rebuilt once they are full or tombstones
+ * outnumber live tasks, and the arena once it is full, so each change takes amortized constant
+ * time.
+ * <p>
+ * This class is thread-safe. Readers that need every task take a copy with {@link #getTasks()},
+ * and a batch applied with {@link #applyChanges(Map)} is seen all at once.
+ */
+public final class CompactTaskTable {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_ARENA_CAPACITY = 64;
+
+    // All of the following are guarded by this.
+    // Rows in the order they were added. A null key marks the tombstone of a removed task.
+    private String[] mKeys;
+    private long[] mAddedAt;
+    private long[] mDone;
+    private int[] mTextStart;
+    // -1 for null text.
+    private int[] mTextLength;
+    private int mNumRows;
+    private int mSize;
+    // Each slot holds a row + 1, or 0 if empty. Slots of removed tasks keep pointing at their
+    // tombstones until the next rebuild, so probing never stops early.
+    private int[] mSlots;
+    private char[] mArena = new char[MIN_ARENA_CAPACITY];
+    private int mArenaEnd;
+    private int mLiveChars;
+
+    public CompactTaskTable() {
+        rebuild(MIN_CAPACITY);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean contains(String key) {
+        return findRow(key) >= 0;
+    }
+
+    /**
+     * @return the task's spec, or null if the task is absent
+     */
+    public synchronized TaskSpec getSpec(String key) {
+        int row = findRow(key);
+        return row < 0 ? null : new TaskSpec(getText(row), mAddedAt[row], getBit(mDone, row));
+    }
+
+    /**
+     * @return a copy of every task, in the order they were added
+     */
+    public synchronized List<Task> getTasks() {
+        List<Task> tasks = new ArrayList<>(mSize);
+        for (int row = 0; row < mNumRows; row++) {
+            if (mKeys[row] != null) {
+                tasks.add(new Task(mKeys[row], getText(row), mAddedAt[row],
+                        getBit(mDone, row)));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * @return the key of every task, in the order they were added
+     */
+    public synchronized List<String> getKeys() {
+        List<String> keys = new ArrayList<>(mSize);
+        for (int row = 0; row < mNumRows; row++) {
+            if (mKeys[row] != null) {
+                keys.add(mKeys[row]);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of characters of task text held, live or dead, for diagnostics
+     */
+    public synchronized int getArenaSize() {
+        return mArenaEnd;
+    }
+
+    /**
+     * Adds or replaces a task.
+     */
+    public synchronized void put(String key, TaskSpec spec) {
+        putRow(key, spec);
+    }
+
+    /**
+     * Removes a task, if present.
+     */
+    public synchronized void remove(String key) {
+        removeRow(key);
+    }
+
+    /**
+     * Applies a batch of changes at once, so that readers see all of them or none.
+     *
+     * @param changes the new spec of each changed task, or null if it was removed
+     */
+    public synchronized void applyChanges(Map<String, TaskSpec> changes) {
+        for (Map.Entry<String, TaskSpec> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                removeRow(change.getKey());
+            } else {
+                putRow(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private void putRow(String key, TaskSpec spec) {
+        int row = findRow(key);
+        if (row < 0) {
+            if (mNumRows == mKeys.length) {
+                rebuild(mSize + 1);
+            }
+            row = mNumRows++;
+            mKeys[row] = key;
+            mTextLength[row] = -1;
+            insertSlot(key, row);
+            mSize++;
+        }
+        mAddedAt[row] = spec.getAddedAt();
+        setBit(mDone, row, spec.getDone());
+        setText(row, spec.getText());
+    }
+
+    private void removeRow(String key) {
+        int row = findRow(key);
+        if (row < 0) {
+            return;
+        }
+        mLiveChars -= Math.max(mTextLength[row], 0);
+        mKeys[row] = null;
+        mSize--;
+        if (mNumRows - mSize > Math.max(mSize, MIN_CAPACITY)) {
+            rebuild(mSize);
+            rebuildArena(mLiveChars);
+        }
+    }
+
+    private String getText(int row) {
+        int length = mTextLength[row];
+        if (length < 0) {
+            return null;
+        } else if (length == 0) {
+            return "";
+        } else {
+            return new String(mArena, mTextStart[row], length);
+        }
+    }
+
+    private void setText(int row, String text) {
+        int oldLength = Math.max(mTextLength[row], 0);
+        int length = text == null ? -1 : text.length();
+        mLiveChars += Math.max(length, 0) - oldLength;
+        if (length > oldLength) {
+            if (mArenaEnd + length > mArena.length) {
+                // The old text is dead either way, so leave it out of the rebuilt arena.
+                mTextLength[row] = -1;
+                rebuildArena(mLiveChars);
+            }
+            mTextStart[row] = mArenaEnd;
+            mArenaEnd += length;
+        }
+        if (length > 0) {
+            text.getChars(0, length, mArena, mTextStart[row]);
+        }
+        mTextLength[row] = length;
+    }
+
+    /**
+     * Copies the live text into a new arena with room for half again the given number of
+     * characters, rewriting the start offsets in place.
+     */
+    private void rebuildArena(int minChars) {
+        char[] arena = new char[Math.max(MIN_ARENA_CAPACITY, minChars + minChars / 2)];
+        int end = 0;
+        for (int row = 0; row < mNumRows; row++) {
+            int length = mTextLength[row];
+            if (mKeys[row] == null || length <= 0) {
+                continue;
+            }
+            System.arraycopy(mArena, mTextStart[row], arena, end, length);
+            mTextStart[row] = end;
+            end += length;
+        }
+        mArena = arena;
+        mArenaEnd = end;
+    }
+
+    /**
+     * Copies the live rows into new columns with room for half again the given number of rows, and
+     * rebuilds the hash index.
+     */
+    private void rebuild(int minRows) {
+        int capacity = Math.max(MIN_CAPACITY, minRows + minRows / 2);
+        String[] keys = new String[capacity];
+        long[] addedAt = new long[capacity];
+        long[] done = new long[bitsetLength(capacity)];
+        int[] textStart = new int[capacity];
+        int[] textLength = new int[capacity];
+        int size = 0;
+        for (int row = 0; row < mNumRows; row++) {
+            if (mKeys[row] == null) {
+                continue;
+            }
+            keys[size] = mKeys[row];
+            addedAt[size] = mAddedAt[row];
+            setBit(done, size, getBit(mDone, row));
+            textStart[size] = mTextStart[row];
+            textLength[size] = mTextLength[row];
+            size++;
+        }
+        mKeys = keys;
+        mAddedAt = addedAt;
+        mDone = done;
+        mTextStart = textStart;
+        mTextLength = textLength;
+        mNumRows = size;
+        // Keep the index at most half full. Its size is a power of two, so that hashes can be
+        // masked rather than divided.
+        mSlots = new int[Integer.highestOneBit(capacity) << 2];
+        for (int row = 0; row < size; row++) {
+            insertSlot(keys[row], row);
+        }
+    }
+
+    private int findRow(String key) {
+        int mask = mSlots.length - 1;
+        for (int slot = hash(key) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = mSlots[slot] - 1;
+            if (key.equals(mKeys[row])) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private void insertSlot(String key, int row) {
+        int mask = mSlots.length - 1;
+        int slot = hash(key) & mask;
+        while (mSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mSlots[slot] = row + 1;
+    }
+
+    private static int hash(String key) {
+        // Spread the high bits, as HashMap does, since the index is masked to its low bits.
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitsetLength(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+}
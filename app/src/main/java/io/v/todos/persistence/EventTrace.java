@@ -0,0 +1,278 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+
+/**
+ * A timed sequence of persistence listener events, either for the main list
+ * ({@link ListEventListener} of {@link ListMetadata}) or for a single todo list
+ * ({@link TodoListListener}). Traces can be recorded from a live backend by wrapping its listener,
+ * saved, and replayed later against the UI's listeners to reproduce event storms off-device.
+ * See {@link EventTraces} for recording from the app.
+ * <p>
+ * This class is thread-safe.
+ */
+public class EventTrace {
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Type {
+        ITEM_ADD, ITEM_UPDATE, ITEM_DELETE, LIST_UPDATE, LIST_DELETE, SHOW_DONE
+    }
+
+    /**
+     * A single event. Which fields are meaningful depends on the type and on whether this is a
+     * main or list trace.
+     */
+    public static class Event {
+        /**
+         * Nanoseconds since the start of the trace.
+         */
+        public final long time;
+        public final Type type;
+        public final String key;
+        // The list name or task text.
+        public final String text;
+        // When the list was updated or the task was added.
+        public final long timestamp;
+        // Whether the task is done, or whether done tasks are shown.
+        public final boolean done;
+        public final int numCompleted;
+        public final int numTasks;
+
+        public Event(long time, Type type, String key, String text, long timestamp,
+                     boolean done, int numCompleted, int numTasks) {
+            this.time = time;
+            this.type = type;
+            this.key = key;
+            this.text = text;
+            this.timestamp = timestamp;
+            this.done = done;
+            this.numCompleted = numCompleted;
+            this.numTasks = numTasks;
+        }
+
+        public static Event ofList(long time, Type type, ListMetadata list) {
+            return new Event(time, type, list.key, list.name, list.updatedAt, false,
+                    list.numCompleted, list.numTasks);
+        }
+
+        public static Event ofTask(long time, Type type, Task task) {
+            return new Event(time, type, task.key, task.text, task.addedAt, task.done, 0, 0);
+        }
+
+        public static Event of(long time, Type type, String key) {
+            return new Event(time, type, key, null, 0, false, 0, 0);
+        }
+
+        ListMetadata toListMetadata() {
+            return new ListMetadata(key, text, timestamp, numCompleted, numTasks);
+        }
+
+        Task toTask() {
+            return new Task(key, text, timestamp, done);
+        }
+    }
+
+    private final List<Event> mEvents = new ArrayList<>();
+    private long mStart = -1;
+
+    public synchronized void add(Event event) {
+        mEvents.add(event);
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<>(mEvents);
+    }
+
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    private synchronized long now() {
+        long now = System.nanoTime();
+        if (mStart == -1) {
+            mStart = now;
+        }
+        return now - mStart;
+    }
+
+    /**
+     * @return a listener that records each event before passing it on to the delegate
+     */
+    public ListEventListener<ListMetadata> recordMain(
+            final ListEventListener<ListMetadata> delegate) {
+        return new ListEventListener<ListMetadata>() {
+            @Override
+            public void onItemAdd(ListMetadata item) {
+                add(Event.ofList(now(), Type.ITEM_ADD, item));
+                delegate.onItemAdd(item);
+            }
+
+            @Override
+            public void onItemUpdate(ListMetadata item) {
+                add(Event.ofList(now(), Type.ITEM_UPDATE, item));
+                delegate.onItemUpdate(item);
+            }
+
+            @Override
+            public void onItemDelete(String key) {
+                add(Event.of(now(), Type.ITEM_DELETE, key));
+                delegate.onItemDelete(key);
+            }
+        };
+    }
+
+    /**
+     * @return a listener that records each event before passing it on to the delegate
+     */
+    public TodoListListener recordList(final TodoListListener delegate) {
+        return new TodoListListener() {
+            @Override
+            public void onUpdate(ListSpec value) {
+                add(new Event(now(), Type.LIST_UPDATE, null, value.getName(),
+                        value.getUpdatedAt(), false, 0, 0));
+                delegate.onUpdate(value);
+            }
+
+            @Override
+            public void onDelete() {
+                add(Event.of(now(), Type.LIST_DELETE, null));
+                delegate.onDelete();
+            }
+
+            @Override
+            public void onUpdateShowDone(boolean showDone) {
+                add(new Event(now(), Type.SHOW_DONE, null, null, 0, showDone, 0, 0));
+                delegate.onUpdateShowDone(showDone);
+            }
+
+            @Override
+            public void onItemAdd(Task item) {
+                add(Event.ofTask(now(), Type.ITEM_ADD, item));
+                delegate.onItemAdd(item);
+            }
+
+            @Override
+            public void onItemUpdate(Task item) {
+                add(Event.ofTask(now(), Type.ITEM_UPDATE, item));
+                delegate.onItemUpdate(item);
+            }
+
+            @Override
+            public void onItemDelete(String key) {
+                add(Event.of(now(), Type.ITEM_DELETE, key));
+                delegate.onItemDelete(key);
+            }
+        };
+    }
+
+    /**
+     * Delivers a main list event to the listener.
+     */
+    public static void replayMain(Event event, ListEventListener<ListMetadata> listener) {
+        switch (event.type) {
+            case ITEM_ADD:
+                listener.onItemAdd(event.toListMetadata());
+                break;
+            case ITEM_UPDATE:
+                listener.onItemUpdate(event.toListMetadata());
+                break;
+            case ITEM_DELETE:
+                listener.onItemDelete(event.key);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a main list event: " + event.type);
+        }
+    }
+
+    /**
+     * Delivers a todo list event to the listener.
+     */
+    public static void replayList(Event event, TodoListListener listener) {
+        switch (event.type) {
+            case ITEM_ADD:
+                listener.onItemAdd(event.toTask());
+                break;
+            case ITEM_UPDATE:
+                listener.onItemUpdate(event.toTask());
+                break;
+            case ITEM_DELETE:
+                listener.onItemDelete(event.key);
+                break;
+            case LIST_UPDATE:
+                listener.onUpdate(new ListSpec(event.text, event.timestamp));
+                break;
+            case LIST_DELETE:
+                listener.onDelete();
+                break;
+            case SHOW_DONE:
+                listener.onUpdateShowDone(event.done);
+                break;
+        }
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        List<Event> events = getEvents();
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(events.size());
+        for (Event event : events) {
+            out.writeLong(event.time);
+            out.writeByte(event.type.ordinal());
+            writeString(out, event.key);
+            writeString(out, event.text);
+            out.writeLong(event.timestamp);
+            out.writeBoolean(event.done);
+            out.writeInt(event.numCompleted);
+            out.writeInt(event.numTasks);
+        }
+    }
+
+    public static EventTrace readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown event trace version " + version);
+        }
+        EventTrace trace = new EventTrace();
+        int size = in.readInt();
+        Type[] types = Type.values();
+        for (int i = 0; i < size; i++) {
+            long time = in.readLong();
+            int type = in.readByte();
+            if (type < 0 || type >= types.length) {
+                throw new IOException("Unknown event type " + type);
+            }
+            trace.add(new Event(time, types[type], readString(in), readString(in),
+                    in.readLong(), in.readBoolean(), in.readInt(), in.readInt()));
+        }
+        return trace;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
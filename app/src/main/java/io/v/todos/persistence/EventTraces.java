@@ -0,0 +1,61 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the persistence events seen by the app's activities, for replay off-device. Recording
+ * is off unless enabled with {@code adb shell setprop log.tag.EventTrace VERBOSE}. Traces are
+ * saved to the app's files directory, under {@value #DIRECTORY}, when the activity is destroyed.
+ */
+public final class EventTraces {
+    private static final String TAG = "EventTrace";
+    private static final String DIRECTORY = "traces";
+
+    private EventTraces() {
+    }
+
+    /**
+     * @return a new trace if recording is enabled, otherwise null
+     */
+    public static EventTrace createIfEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE) ? new EventTrace() : null;
+    }
+
+    /**
+     * Saves the trace in the background, if there is anything to save.
+     */
+    public static void save(Context context, final EventTrace trace, String name) {
+        if (trace == null || trace.size() == 0) {
+            return;
+        }
+        File directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY);
+        final File file = new File(directory, name + "-" + System.currentTimeMillis() + ".trace");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                    Log.w(TAG, "Could not create " + file.getParent());
+                    return;
+                }
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)))) {
+                    trace.writeTo(out);
+                    Log.v(TAG, "Saved " + trace.size() + " events to " + file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save event trace", e);
+                }
+            }
+        }).start();
+    }
+}
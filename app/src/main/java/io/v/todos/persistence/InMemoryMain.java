@@ -0,0 +1,63 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.util.List;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+
+/**
+ * A {@link MainPersistence} backed by an {@link InMemoryStore}.
+ */
+public class InMemoryMain implements MainPersistence {
+    private final InMemoryStore mStore;
+    private final InMemoryStore.Watch mWatch;
+
+    public InMemoryMain(InMemoryStore store, ListEventListener<ListMetadata> listener) {
+        mStore = store;
+        mWatch = store.watchLists(listener);
+    }
+
+    @Override
+    public String addTodoList(ListSpec listSpec) {
+        return mStore.addList(listSpec);
+    }
+
+    @Override
+    public void deleteTodoList(String key) {
+        mStore.removeList(key);
+    }
+
+    @Override
+    public void deleteTodoLists(Iterable<String> keys) {
+        mStore.removeLists(keys);
+    }
+
+    @Override
+    public void completeTodoLists(Iterable<String> keys) {
+        mStore.completeLists(keys);
+    }
+
+    @Override
+    public String duplicateTodoList(String key, ListSpec listSpec) {
+        return mStore.duplicateList(key, listSpec);
+    }
+
+    @Override
+    public List<TaskSearchIndex.Hit> searchTasks(String query, int limit) {
+        return mStore.searchTasks(query, limit);
+    }
+
+    @Override
+    public void close() {
+        mWatch.cancel();
+    }
+
+    @Override
+    public String debugDetails() {
+        return mStore.debugDetails();
+    }
+}
@@ -0,0 +1,506 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import com.google.common.base.Function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * A fully functional in-memory database of todo lists, for exercising the UI and listener paths
+ * without Syncbase or Firebase, and for benchmarks against the same persistence interfaces that
+ * the real backends implement. See {@link InMemoryMain} and {@link InMemoryTodoList}.
+ * <p>
+ * Like a database watch, a watch on the store first reports the current state and then every
+ * subsequent change. Events are delivered in order on a single delivery thread, after a
+ * configurable synthetic latency. The mutation methods can also be called directly to inject
+ * changes, as if they had been synced from another device. Subclasses can also see each change
+ * as it is made, which the LoopbackSyncGroup in the unit tests uses to replicate stores.
+ * <p>
+ * This class is thread-safe.
+ */
+public class InMemoryStore {
+    public interface Watch {
+        /**
+         * Stops delivery of events, including any that are already queued.
+         */
+        void cancel();
+    }
+
+    private static class ListState {
+        ListSpec spec;
+        final Map<String, TaskSpec> tasks = new HashMap<>();
+        int numCompleted;
+
+        ListMetadata toMetadata(String key) {
+            return new ListMetadata(key, spec, numCompleted, tasks.size());
+        }
+    }
+
+    private static class WatchHandle<L> implements Watch {
+        final L listener;
+        volatile boolean cancelled;
+
+        WatchHandle(L listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private interface Event<L> {
+        void deliver(L listener);
+    }
+
+    private final ScheduledExecutorService mDelivery =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "InMemoryStore delivery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final TaskSearchIndex mSearchIndex = new TaskSearchIndex();
+
+    // All of the following are guarded by this.
+    private final Map<String, ListState> mLists = new HashMap<>();
+    private boolean mShowDone = true;
+    private final List<WatchHandle<ListEventListener<ListMetadata>>> mMainWatches =
+            new ArrayList<>();
+    private final Map<String, List<WatchHandle<TodoListListener>>> mListWatches = new HashMap<>();
+    private long mLatencyNanos;
+    // Events are never scheduled before earlier events, so that they are delivered in order even
+    // if the latency is lowered.
+    private long mLastDeliveryNanos;
+
+    public InMemoryStore() {
+        // Nothing is saved, so there is nothing to read.
+        mSearchIndex.markRead();
+    }
+
+    /**
+     * Delays the delivery of subsequent events, simulating the latency of a real backend.
+     */
+    public synchronized void setLatency(long latency, TimeUnit unit) {
+        mLatencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Called after each change to a list, while the store is locked. Does nothing by default.
+     *
+     * @param spec a copy of the new spec, or null if the list was removed
+     */
+    protected void onListChanged(String listKey, ListSpec spec) {
+    }
+
+    /**
+     * Called after each change to a task, while the store is locked. Does nothing by default.
+     *
+     * @param spec a copy of the new spec, or null if the task was removed
+     */
+    protected void onTaskChanged(String listKey, String taskKey, TaskSpec spec) {
+    }
+
+    private <L> void post(List<WatchHandle<L>> watches, final Event<L> event) {
+        if (watches == null || watches.isEmpty()) {
+            return;
+        }
+        final List<WatchHandle<L>> snapshot = new ArrayList<>(watches);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (WatchHandle<L> watch : snapshot) {
+                    if (!watch.cancelled) {
+                        event.deliver(watch.listener);
+                    }
+                }
+            }
+        });
+    }
+
+    private Future<?> schedule(Runnable delivery) {
+        long now = System.nanoTime();
+        mLastDeliveryNanos = Math.max(now + mLatencyNanos, mLastDeliveryNanos);
+        return mDelivery.schedule(delivery, mLastDeliveryNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Blocks until every event posted so far has been delivered.
+     */
+    public void awaitDelivery() throws InterruptedException {
+        Future<?> marker;
+        synchronized (this) {
+            marker = schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        try {
+            marker.get();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Watches the metadata of all lists. Existing lists are reported as adds.
+     */
+    public synchronized Watch watchLists(ListEventListener<ListMetadata> listener) {
+        WatchHandle<ListEventListener<ListMetadata>> watch = new WatchHandle<>(listener);
+        final List<ListMetadata> initial = new ArrayList<>();
+        for (Map.Entry<String, ListState> list : mLists.entrySet()) {
+            initial.add(list.getValue().toMetadata(list.getKey()));
+        }
+        post(Collections.singletonList(watch), new Event<ListEventListener<ListMetadata>>() {
+            @Override
+            public void deliver(ListEventListener<ListMetadata> listener) {
+                for (ListMetadata metadata : initial) {
+                    listener.onItemAdd(metadata);
+                }
+            }
+        });
+        mMainWatches.add(watch);
+        return removeOnCancel(mMainWatches, watch);
+    }
+
+    /**
+     * Watches a single list. If the list exists, its spec and tasks are reported first. The
+     * show done status is always reported.
+     */
+    public synchronized Watch watchList(String listKey, TodoListListener listener) {
+        WatchHandle<TodoListListener> watch = new WatchHandle<>(listener);
+        ListState list = mLists.get(listKey);
+        final ListSpec spec = list == null ? null : copy(list.spec);
+        final List<Task> tasks = new ArrayList<>();
+        if (list != null) {
+            for (Map.Entry<String, TaskSpec> task : list.tasks.entrySet()) {
+                tasks.add(new Task(task.getKey(), task.getValue()));
+            }
+        }
+        final boolean showDone = mShowDone;
+        post(Collections.singletonList(watch), new Event<TodoListListener>() {
+            @Override
+            public void deliver(TodoListListener listener) {
+                if (spec != null) {
+                    listener.onUpdate(spec);
+                }
+                for (Task task : tasks) {
+                    listener.onItemAdd(task);
+                }
+                listener.onUpdateShowDone(showDone);
+            }
+        });
+
+        List<WatchHandle<TodoListListener>> watches = mListWatches.get(listKey);
+        if (watches == null) {
+            watches = new ArrayList<>();
+            mListWatches.put(listKey, watches);
+        }
+        watches.add(watch);
+        return removeOnCancel(watches, watch);
+    }
+
+    private <L> Watch removeOnCancel(final List<WatchHandle<L>> watches,
+                                     final WatchHandle<L> watch) {
+        return new Watch() {
+            @Override
+            public void cancel() {
+                watch.cancel();
+                synchronized (InMemoryStore.this) {
+                    watches.remove(watch);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the key of the new list
+     */
+    public String addList(ListSpec spec) {
+        String key = UUID.randomUUID().toString();
+        putList(key, spec);
+        return key;
+    }
+
+    /**
+     * Adds or updates a list.
+     */
+    public synchronized void putList(final String listKey, ListSpec spec) {
+        ListState list = mLists.get(listKey);
+        final boolean isNew = list == null;
+        if (isNew) {
+            list = new ListState();
+            mLists.put(listKey, list);
+        }
+        list.spec = copy(spec);
+        onListChanged(listKey, copy(spec));
+        final ListSpec update = copy(spec);
+        post(mListWatches.get(listKey), new Event<TodoListListener>() {
+            @Override
+            public void deliver(TodoListListener listener) {
+                listener.onUpdate(update);
+            }
+        });
+        postMetadata(listKey, list, isNew);
+    }
+
+    private void postMetadata(String listKey, ListState list, final boolean isNew) {
+        final ListMetadata metadata = list.toMetadata(listKey);
+        post(mMainWatches, new Event<ListEventListener<ListMetadata>>() {
+            @Override
+            public void deliver(ListEventListener<ListMetadata> listener) {
+                if (isNew) {
+                    listener.onItemAdd(metadata);
+                } else {
+                    listener.onItemUpdate(metadata);
+                }
+            }
+        });
+    }
+
+    public synchronized void removeList(final String listKey) {
+        if (mLists.remove(listKey) == null) {
+            return;
+        }
+        mSearchIndex.removeList(listKey);
+        onListChanged(listKey, null);
+        post(mListWatches.get(listKey), new Event<TodoListListener>() {
+            @Override
+            public void deliver(TodoListListener listener) {
+                listener.onDelete();
+            }
+        });
+        post(mMainWatches, new Event<ListEventListener<ListMetadata>>() {
+            @Override
+            public void deliver(ListEventListener<ListMetadata> listener) {
+                listener.onItemDelete(listKey);
+            }
+        });
+    }
+
+    /**
+     * @return the key of the new task, or null if the list does not exist
+     */
+    public String addTask(String listKey, TaskSpec spec) {
+        String key = UUID.randomUUID().toString();
+        return putTask(listKey, key, spec) ? key : null;
+    }
+
+    /**
+     * Adds or updates a task.
+     *
+     * @return whether the list exists
+     */
+    public synchronized boolean putTask(String listKey, String taskKey, TaskSpec spec) {
+        ListState list = mLists.get(listKey);
+        if (list == null) {
+            return false;
+        }
+        putTask(listKey, list, taskKey, spec);
+        postMetadata(listKey, list, false);
+        return true;
+    }
+
+    private void putTask(String listKey, ListState list, String taskKey, TaskSpec spec) {
+        TaskSpec old = list.tasks.put(taskKey, copy(spec));
+        mSearchIndex.put(listKey, taskKey, spec.getText());
+        if (old != null && old.getDone()) {
+            list.numCompleted--;
+        }
+        if (spec.getDone()) {
+            list.numCompleted++;
+        }
+        onTaskChanged(listKey, taskKey, copy(spec));
+        final boolean isNew = old == null;
+        final Task task = new Task(taskKey, spec);
+        post(mListWatches.get(listKey), new Event<TodoListListener>() {
+            @Override
+            public void deliver(TodoListListener listener) {
+                if (isNew) {
+                    listener.onItemAdd(task);
+                } else {
+                    listener.onItemUpdate(task);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces a task with the result of the merge, atomically, so that a concurrent removal is
+     * not undone. The merge is called with a copy of the task while the store is locked, and may
+     * return null to leave the task as it is. Nothing is called if the task does not exist.
+     *
+     * @return whether the task exists
+     */
+    public synchronized boolean mergeTask(String listKey, String taskKey,
+                                          Function<? super TaskSpec, TaskSpec> merge) {
+        ListState list = mLists.get(listKey);
+        TaskSpec spec = list == null ? null : list.tasks.get(taskKey);
+        if (spec == null) {
+            return false;
+        }
+        TaskSpec merged = merge.apply(copy(spec));
+        if (merged != null) {
+            putTask(listKey, list, taskKey, merged);
+            postMetadata(listKey, list, false);
+        }
+        return true;
+    }
+
+    public synchronized void removeTask(String listKey, final String taskKey) {
+        ListState list = mLists.get(listKey);
+        TaskSpec old = list == null ? null : list.tasks.remove(taskKey);
+        if (old == null) {
+            return;
+        }
+        mSearchIndex.remove(listKey, taskKey);
+        if (old.getDone()) {
+            list.numCompleted--;
+        }
+        onTaskChanged(listKey, taskKey, null);
+        post(mListWatches.get(listKey), new Event<TodoListListener>() {
+            @Override
+            public void deliver(TodoListListener listener) {
+                listener.onItemDelete(taskKey);
+            }
+        });
+        postMetadata(listKey, list, false);
+    }
+
+    /**
+     * Marks every task in the list done, as a single batch.
+     */
+    public synchronized void completeList(String listKey) {
+        ListState list = mLists.get(listKey);
+        if (list == null || list.numCompleted == list.tasks.size()) {
+            return;
+        }
+        for (Map.Entry<String, TaskSpec> task : new ArrayList<>(list.tasks.entrySet())) {
+            TaskSpec spec = task.getValue();
+            if (!spec.getDone()) {
+                putTask(listKey, list, task.getKey(),
+                        new TaskSpec(spec.getText(), spec.getAddedAt(), true));
+            }
+        }
+        postMetadata(listKey, list, false);
+    }
+
+    /**
+     * Removes the lists, as a single batch.
+     */
+    public synchronized void removeLists(Iterable<String> listKeys) {
+        for (String listKey : listKeys) {
+            removeList(listKey);
+        }
+    }
+
+    /**
+     * Marks every task in each of the lists done, as a single batch.
+     */
+    public synchronized void completeLists(Iterable<String> listKeys) {
+        for (String listKey : listKeys) {
+            completeList(listKey);
+        }
+    }
+
+    /**
+     * Adds a list with copies of the tasks of an existing list, as a single batch.
+     *
+     * @return the key of the new list, or null if the existing list does not exist
+     */
+    public synchronized String duplicateList(String listKey, ListSpec spec) {
+        ListState source = mLists.get(listKey);
+        if (source == null) {
+            return null;
+        }
+        String key = addList(spec);
+        ListState list = mLists.get(key);
+        for (Map.Entry<String, TaskSpec> task : source.tasks.entrySet()) {
+            putTask(key, list, UUID.randomUUID().toString(), task.getValue());
+        }
+        postMetadata(key, list, false);
+        return key;
+    }
+
+    public synchronized void setShowDone(final boolean showDone) {
+        mShowDone = showDone;
+        for (List<WatchHandle<TodoListListener>> watches : mListWatches.values()) {
+            post(watches, new Event<TodoListListener>() {
+                @Override
+                public void deliver(TodoListListener listener) {
+                    listener.onUpdateShowDone(showDone);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a copy of the list, or null if it does not exist
+     */
+    public synchronized ListSpec getList(String listKey) {
+        ListState list = mLists.get(listKey);
+        return list == null ? null : copy(list.spec);
+    }
+
+    /**
+     * @return a copy of the task, or null if it does not exist
+     */
+    public synchronized TaskSpec getTask(String listKey, String taskKey) {
+        ListState list = mLists.get(listKey);
+        TaskSpec spec = list == null ? null : list.tasks.get(taskKey);
+        return spec == null ? null : copy(spec);
+    }
+
+    /**
+     * @see TaskSearchIndex#search(String, int)
+     */
+    public List<TaskSearchIndex.Hit> searchTasks(String query, int limit) {
+        return mSearchIndex.search(query, limit);
+    }
+
+    public synchronized String debugDetails() {
+        int numTasks = 0;
+        for (ListState list : mLists.values()) {
+            numTasks += list.tasks.size();
+        }
+        int numListWatches = 0;
+        for (List<WatchHandle<TodoListListener>> watches : mListWatches.values()) {
+            numListWatches += watches.size();
+        }
+        return "In-memory store: " + mLists.size() + " lists, " + numTasks + " tasks, " +
+                mMainWatches.size() + " main watches, " + numListWatches + " list watches, " +
+                TimeUnit.NANOSECONDS.toMillis(mLatencyNanos) + " ms latency";
+    }
+
+    private static ListSpec copy(ListSpec spec) {
+        return new ListSpec(spec.getName(), spec.getUpdatedAt());
+    }
+
+    private static TaskSpec copy(TaskSpec spec) {
+        return new TaskSpec(spec.getText(), spec.getAddedAt(), spec.getDone());
+    }
+}
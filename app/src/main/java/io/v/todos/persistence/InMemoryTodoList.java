@@ -0,0 +1,163 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import com.google.common.base.Function;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * A {@link TodoListPersistence} backed by an {@link InMemoryStore}. Tasks are paged through a
+ * {@link TaskWindow} like they are in the real backends.
+ */
+public class InMemoryTodoList implements TodoListPersistence {
+    private final InMemoryStore mStore;
+    private final String mKey;
+    private final TaskWindow mTaskWindow;
+    private final InMemoryStore.Watch mWatch;
+
+    public InMemoryTodoList(InMemoryStore store, String key, final TodoListListener listener) {
+        mStore = store;
+        mKey = key;
+        mTaskWindow = new TaskWindow(listener, new TaskWindow.Loader() {
+            @Override
+            public void load(String taskKey) {
+                TaskSpec spec = mStore.getTask(mKey, taskKey);
+                if (spec != null) {
+                    mTaskWindow.onTaskLoaded(taskKey, spec);
+                }
+            }
+        }, TaskWindow.DEFAULT_PAGE_SIZE);
+
+        // Route tasks through the window.
+        mWatch = store.watchList(key, new TodoListListener() {
+            @Override
+            public void onUpdate(ListSpec value) {
+                listener.onUpdate(value);
+            }
+
+            @Override
+            public void onDelete() {
+                listener.onDelete();
+            }
+
+            @Override
+            public void onUpdateShowDone(boolean showDone) {
+                listener.onUpdateShowDone(showDone);
+            }
+
+            @Override
+            public void onItemAdd(Task item) {
+                mTaskWindow.put(item.key, item.toSpec());
+            }
+
+            @Override
+            public void onItemUpdate(Task item) {
+                mTaskWindow.put(item.key, item.toSpec());
+            }
+
+            @Override
+            public void onItemDelete(String key) {
+                mTaskWindow.remove(key);
+            }
+        });
+    }
+
+    @Override
+    public void updateTodoList(ListSpec listSpec) {
+        mStore.putList(mKey, listSpec);
+    }
+
+    @Override
+    public void deleteTodoList() {
+        mStore.removeList(mKey);
+    }
+
+    @Override
+    public void completeTodoList() {
+        mStore.completeList(mKey);
+    }
+
+    @Override
+    public void addTask(TaskSpec task) {
+        mStore.addTask(mKey, task);
+    }
+
+    @Override
+    public void updateTask(Task task) {
+        mStore.putTask(mKey, task.key, task.toSpec());
+    }
+
+    @Override
+    public void deleteTask(String key) {
+        mStore.removeTask(mKey, key);
+    }
+
+    @Override
+    public void setShowDone(boolean showDone) {
+        mStore.setShowDone(showDone);
+    }
+
+    // The store has no partial writes, so these merge the field into the current value.
+
+    @Override
+    public void setTaskDone(String key, final boolean done) {
+        mStore.mergeTask(mKey, key, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec spec) {
+                if (spec.getDone() == done) {
+                    return null;
+                }
+                spec.setDone(done);
+                return spec;
+            }
+        });
+    }
+
+    @Override
+    public void setTaskText(String key, final String text) {
+        mStore.mergeTask(mKey, key, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec spec) {
+                spec.setText(text);
+                return spec;
+            }
+        });
+    }
+
+    @Override
+    public void setListName(String name) {
+        if (mStore.getList(mKey) != null) {
+            mStore.putList(mKey, new ListSpec(name));
+        }
+    }
+
+    @Override
+    public void touchList() {
+        ListSpec spec = mStore.getList(mKey);
+        if (spec != null) {
+            spec.setUpdatedAt(System.currentTimeMillis());
+            mStore.putList(mKey, spec);
+        }
+    }
+
+    @Override
+    public void setTaskWindow(int limit) {
+        mTaskWindow.setLimit(limit);
+    }
+
+    @Override
+    public void close() {
+        mWatch.cancel();
+    }
+
+    @Override
+    public String debugDetails() {
+        return mStore.debugDetails() + "\nTask window: " + mTaskWindow.getLimit() + " of " +
+                mTaskWindow.size();
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.v.todos.model.ListMetadata;
+
+/**
+ * The lists a backend has archived, i.e. stopped tracking the tasks of because they have been
+ * done for a while, with the last metadata snapshot of each so that they can still be shown. See
+ * {@link ListArchiveStore} for the archive persisted across restarts, which lets a backend skip
+ * tracking archived lists at startup.
+ * <p>
+ * An archived list is restored once its metadata changes, which the backend reports with
+ * {@link #restoreIfChanged(String, Long)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ListArchive {
+    private static final int FORMAT_VERSION = 1;
+
+    // The following are guarded by this.
+    private Map<String, ListMetadata> mSnapshots = new HashMap<>();
+    private Runnable mOnChangeListener;
+
+    public synchronized boolean contains(String key) {
+        return mSnapshots.containsKey(key);
+    }
+
+    /**
+     * @return the snapshot of every archived list
+     */
+    public synchronized List<ListMetadata> getAll() {
+        return new ArrayList<>(mSnapshots.values());
+    }
+
+    /**
+     * Archives a list, replacing any snapshot it already had.
+     */
+    public void add(ListMetadata snapshot) {
+        synchronized (this) {
+            mSnapshots.put(snapshot.key, snapshot);
+        }
+        fireChange();
+    }
+
+    /**
+     * Removes a list from the archive, e.g. because it was deleted.
+     *
+     * @return the list's snapshot, or null if it was not archived
+     */
+    public ListMetadata remove(String key) {
+        ListMetadata snapshot;
+        synchronized (this) {
+            snapshot = mSnapshots.remove(key);
+        }
+        if (snapshot != null) {
+            fireChange();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Removes a list from the archive if its metadata changed since it was archived.
+     *
+     * @param updatedAt the list's current timestamp, or null if its metadata was deleted
+     * @return the list's snapshot if it is to be tracked again, or null if it was not archived or
+     * has not changed
+     */
+    public ListMetadata restoreIfChanged(String key, Long updatedAt) {
+        ListMetadata snapshot;
+        synchronized (this) {
+            snapshot = mSnapshots.get(key);
+            if (snapshot == null || updatedAt != null && updatedAt == snapshot.updatedAt) {
+                return null;
+            }
+            mSnapshots.remove(key);
+        }
+        fireChange();
+        return snapshot;
+    }
+
+    /**
+     * Sets a listener to be called after each change, e.g. to schedule a save.
+     */
+    public synchronized void setOnChangeListener(Runnable listener) {
+        mOnChangeListener = listener;
+    }
+
+    private void fireChange() {
+        Runnable listener;
+        synchronized (this) {
+            listener = mOnChangeListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        // Copy under the lock so that the write itself does not block the backend.
+        List<ListMetadata> snapshots = getAll();
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(snapshots.size());
+        for (ListMetadata snapshot : snapshots) {
+            out.writeUTF(snapshot.key);
+            out.writeBoolean(snapshot.name != null);
+            if (snapshot.name != null) {
+                out.writeUTF(snapshot.name);
+            }
+            out.writeLong(snapshot.updatedAt);
+            out.writeInt(snapshot.numCompleted);
+            out.writeInt(snapshot.numTasks);
+        }
+    }
+
+    /**
+     * Replaces the archive with the one written by {@link #writeTo(DataOutput)}. Nothing is
+     * replaced if the archive can't be read.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown list archive version " + version);
+        }
+        int numLists = in.readInt();
+        Map<String, ListMetadata> snapshots = new HashMap<>();
+        for (int i = 0; i < numLists; i++) {
+            String key = in.readUTF();
+            String name = in.readBoolean() ? in.readUTF() : null;
+            long updatedAt = in.readLong();
+            int numCompleted = in.readInt();
+            int numTasks = in.readInt();
+            snapshots.put(key, new ListMetadata(key, name, updatedAt, numCompleted, numTasks));
+        }
+        synchronized (this) {
+            mSnapshots = snapshots;
+        }
+    }
+}
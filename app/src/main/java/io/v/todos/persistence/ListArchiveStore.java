@@ -0,0 +1,106 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the app-wide {@link ListArchive}, saved to a local file so that archived lists stay
+ * archived when the app restarts. Changes are saved at most once per {@link #SAVE_DELAY_MS}.
+ */
+public final class ListArchiveStore {
+    private static final String TAG = ListArchiveStore.class.getSimpleName();
+    private static final String FILE_NAME = "list_archive";
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static ListArchive sArchive;
+
+    private ListArchiveStore() {
+    }
+
+    private static class Saver implements Runnable {
+        private final ScheduledExecutorService mExecutor =
+                Executors.newSingleThreadScheduledExecutor();
+        private final File mFile;
+        private final ListArchive mArchive;
+        private boolean mScheduled;
+
+        Saver(File file, ListArchive archive) {
+            mFile = file;
+            mArchive = archive;
+        }
+
+        /**
+         * Schedules a save unless one is already pending.
+         */
+        @Override
+        public synchronized void run() {
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Saver.this) {
+                            mScheduled = false;
+                        }
+                        save();
+                    }
+                }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void save() {
+            // Write to a temporary file and rename so that a crash mid-write leaves the last
+            // complete save in place.
+            File tmp = new File(mFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                mArchive.writeTo(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save list archive", e);
+                return;
+            }
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Could not replace list archive");
+            }
+        }
+    }
+
+    /**
+     * @return the shared list archive, reading the saved archive if this is the first call. This
+     * reads a file, so it should not be called on the main thread.
+     */
+    public static synchronized ListArchive getArchive(Context context) {
+        if (sArchive == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            sArchive = new ListArchive();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                sArchive.readFrom(in);
+            } catch (FileNotFoundException e) {
+                // Nothing has been archived yet.
+            } catch (IOException e) {
+                // The lists are tracked in full again, and archived by the next sweep.
+                Log.w(TAG, "Could not read list archive; starting over", e);
+            }
+            sArchive.setOnChangeListener(new Saver(file, sArchive));
+        }
+        return sArchive;
+    }
+}
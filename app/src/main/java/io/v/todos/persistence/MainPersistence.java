@@ -4,10 +4,34 @@
 
 package io.v.todos.persistence;
 
+import java.util.List;
+
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
 
 public interface MainPersistence extends Persistence {
     String addTodoList(ListSpec listSpec);
     void deleteTodoList(String key);
+
+    // The bulk operations below are done as a single batch where the backend supports it, and
+    // otherwise as concurrent requests, rather than one list at a time.
+
+    void deleteTodoLists(Iterable<String> keys);
+
+    /**
+     * Marks every task of each of the lists done.
+     */
+    void completeTodoLists(Iterable<String> keys);
+
+    /**
+     * Adds a list with copies of the tasks of an existing list.
+     *
+     * @return the key of the new list, or null if the existing list is not known
+     */
+    String duplicateTodoList(String key, ListSpec listSpec);
+
+    /**
+     * Finds tasks across every list, as described by {@link TaskSearchIndex#search(String, int)}.
+     */
+    List<TaskSearchIndex.Hit> searchTasks(String query, int limit);
 }
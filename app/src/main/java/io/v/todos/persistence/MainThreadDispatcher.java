@@ -0,0 +1,178 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+
+/**
+ * Marshals persistence listener callbacks onto the main thread, regardless of which thread the
+ * persistence layer fires them from. Events that arrive within one display frame are queued and
+ * run together in a single frame callback, so an event storm costs at most one {@link Handler}
+ * post (to reach the main thread's {@link Choreographer}) per frame rather than one per event.
+ * <p>
+ * Events are delivered in the order they were received. Once {@link #cancel()} is called, pending
+ * and future events are dropped.
+ */
+public class MainThreadDispatcher {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mMutex = new Object();
+    private ArrayList<Runnable> mPending = new ArrayList<>();
+    private ArrayList<Runnable> mRunning = new ArrayList<>();
+    private boolean mScheduled;
+    private volatile boolean mCancelled;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ArrayList<Runnable> batch;
+            synchronized (mMutex) {
+                batch = mPending;
+                mPending = mRunning;
+                mRunning = batch;
+                mScheduled = false;
+            }
+            // Events enqueued while this batch runs are deferred to the next frame.
+            for (int i = 0; i < batch.size() && !mCancelled; i++) {
+                batch.get(i).run();
+            }
+            batch.clear();
+        }
+    };
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private void enqueue(Runnable event) {
+        if (mCancelled) {
+            return;
+        }
+        synchronized (mMutex) {
+            mPending.add(event);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        // Choreographer instances are per-looper, so the frame callback has to be posted from
+        // the main thread.
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mScheduleFrame.run();
+        } else {
+            mHandler.post(mScheduleFrame);
+        }
+    }
+
+    /**
+     * Drops any pending events and stops delivering new ones. Should be called on the main thread
+     * once the recipient of the events is going away.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mMutex) {
+            mPending.clear();
+        }
+    }
+
+    /**
+     * @return a listener that forwards events to {@code listener} on the main thread
+     */
+    public <T> ListEventListener<T> wrap(final ListEventListener<T> listener) {
+        return new ListEventListener<T>() {
+            @Override
+            public void onItemAdd(final T item) {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onItemAdd(item);
+                    }
+                });
+            }
+
+            @Override
+            public void onItemUpdate(final T item) {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onItemUpdate(item);
+                    }
+                });
+            }
+
+            @Override
+            public void onItemDelete(final String key) {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onItemDelete(key);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return a listener that forwards events to {@code listener} on the main thread
+     */
+    public TodoListListener wrap(final TodoListListener listener) {
+        final ListEventListener<Task> taskListener = wrap((ListEventListener<Task>) listener);
+        return new TodoListListener() {
+            @Override
+            public void onUpdate(final ListSpec value) {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onUpdate(value);
+                    }
+                });
+            }
+
+            @Override
+            public void onDelete() {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDelete();
+                    }
+                });
+            }
+
+            @Override
+            public void onUpdateShowDone(final boolean showDone) {
+                enqueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onUpdateShowDone(showDone);
+                    }
+                });
+            }
+
+            @Override
+            public void onItemAdd(Task item) {
+                taskListener.onItemAdd(item);
+            }
+
+            @Override
+            public void onItemUpdate(Task item) {
+                taskListener.onItemUpdate(item);
+            }
+
+            @Override
+            public void onItemDelete(String key) {
+                taskListener.onItemDelete(key);
+            }
+        };
+    }
+}
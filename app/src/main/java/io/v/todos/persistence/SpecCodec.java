@@ -0,0 +1,274 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * A compact binary encoding of {@link ListSpec} and {@link TaskSpec} values, for backends that
+ * sync values over slow or metered links. Timestamps are varints, booleans are packed into a flags
+ * byte, and long texts are deflated against a preset dictionary of common words.
+ * <p>
+ * Every encoded value starts with its format version. Readers reject versions newer than
+ * {@link #VERSION} with an {@link UnsupportedVersionException} rather than misreading them, so a
+ * new version should only be written once all readers understand it.
+ */
+public final class SpecCodec {
+    public static final int VERSION = 1;
+
+    /**
+     * Whether Syncbase rows hold lists and tasks in this encoding rather than as VOM structs, to
+     * save sync bandwidth. Rows in either encoding are always readable. This stays off for now:
+     * clients built before the codec can't read compact rows, so writing them would break every
+     * list shared with such a client. Turn it on once those clients are gone.
+     */
+    public static final boolean COMPACT_SPECS = false;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int KIND_LIST = 1, KIND_TASK = 2;
+    private static final int KIND_MASK = 0x3;
+    private static final int FLAG_DONE = 1 << 2, FLAG_HAS_TEXT = 1 << 3, FLAG_DEFLATED = 1 << 4;
+    // Shorter texts rarely shrink, since deflate has a few bytes of overhead.
+    private static final int MIN_DEFLATE_LENGTH = 48;
+    // Part of the format: changing this requires a new version. Deflate finds matches closer to
+    // the end of the dictionary more cheaply, so the most common words go last.
+    private static final byte[] DICTIONARY = ("appointment birthday groceries laundry " +
+            "tomorrow tonight weekend morning meeting dinner lunch schedule review update " +
+            "order return email call pick up drop off clean fix make send check book pay buy " +
+            "get from with for the and to a ").getBytes(UTF_8);
+
+    /**
+     * Thrown when a value was written by a newer version of the codec.
+     */
+    public static class UnsupportedVersionException extends IOException {
+        public final int version;
+
+        UnsupportedVersionException(int version) {
+            super("Unsupported spec encoding version " + version + "; newest known is " +
+                    VERSION);
+            this.version = version;
+        }
+    }
+
+    private SpecCodec() {
+    }
+
+    public static byte[] encode(ListSpec spec) {
+        return encode(KIND_LIST, 0, spec.getUpdatedAt(), spec.getName());
+    }
+
+    public static byte[] encode(TaskSpec spec) {
+        return encode(KIND_TASK, spec.getDone() ? FLAG_DONE : 0, spec.getAddedAt(),
+                spec.getText());
+    }
+
+    /**
+     * @return the value to store in a Syncbase row for a spec, in the encoding selected by
+     * {@link #COMPACT_SPECS}
+     */
+    public static Object toSyncbase(ListSpec spec) {
+        return COMPACT_SPECS ? encode(spec) : spec;
+    }
+
+    /**
+     * @return the value to store in a Syncbase row for a spec, in the encoding selected by
+     * {@link #COMPACT_SPECS}
+     */
+    public static Object toSyncbase(TaskSpec spec) {
+        return COMPACT_SPECS ? encode(spec) : spec;
+    }
+
+    /**
+     * Decodes a spec of the given type, which must be {@link ListSpec} or {@link TaskSpec}.
+     */
+    public static <T> T decode(byte[] bytes, Class<T> type) throws IOException {
+        if (type == ListSpec.class) {
+            return type.cast(decodeList(bytes));
+        } else if (type == TaskSpec.class) {
+            return type.cast(decodeTask(bytes));
+        }
+        throw new IllegalArgumentException("Not a spec type: " + type);
+    }
+
+    public static ListSpec decodeList(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes, KIND_LIST);
+        long updatedAt = in.readVarint();
+        return new ListSpec(in.readText(), updatedAt);
+    }
+
+    public static TaskSpec decodeTask(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes, KIND_TASK);
+        long addedAt = in.readVarint();
+        return new TaskSpec(in.readText(), addedAt, (in.flags & FLAG_DONE) != 0);
+    }
+
+    /**
+     * @return the format version the value was written with
+     */
+    public static int getVersion(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("Empty spec encoding");
+        }
+        return bytes[0] & 0xff;
+    }
+
+    private static byte[] encode(int kind, int flags, long timestamp, String text) {
+        byte[] raw = null, deflated = null;
+        if (text != null) {
+            flags |= FLAG_HAS_TEXT;
+            raw = text.getBytes(UTF_8);
+            if (raw.length >= MIN_DEFLATE_LENGTH) {
+                deflated = deflate(raw);
+                if (deflated.length < raw.length) {
+                    flags |= FLAG_DEFLATED;
+                } else {
+                    deflated = null;
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        out.write(kind | flags);
+        writeVarint(out, timestamp);
+        if (raw != null) {
+            writeVarint(out, raw.length);
+            if (deflated != null) {
+                writeVarint(out, deflated.length);
+                out.write(deflated, 0, deflated.length);
+            } else {
+                out.write(raw, 0, raw.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            byte[] buffer = new byte[256];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        // Timestamps and lengths are never negative, but encode them as unsigned to be safe.
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static class Reader {
+        final byte[] bytes;
+        final int flags;
+        int pos;
+
+        Reader(byte[] bytes, int kind) throws IOException {
+            this.bytes = bytes;
+            int version = getVersion(bytes);
+            if (version > VERSION) {
+                throw new UnsupportedVersionException(version);
+            }
+            if (bytes.length < 2) {
+                throw new IOException("Truncated spec encoding");
+            }
+            flags = bytes[1] & 0xff;
+            if ((flags & KIND_MASK) != kind) {
+                throw new IOException("Wrong kind of spec encoding: " + (flags & KIND_MASK));
+            }
+            pos = 2;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= bytes.length) {
+                throw new IOException("Truncated spec encoding");
+            }
+            return bytes[pos++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readText() throws IOException {
+            if ((flags & FLAG_HAS_TEXT) == 0) {
+                return null;
+            }
+            int length = readLength();
+            if ((flags & FLAG_DEFLATED) == 0) {
+                checkRemaining(length);
+                String text = new String(bytes, pos, length, UTF_8);
+                pos += length;
+                return text;
+            }
+            int deflatedLength = readLength();
+            checkRemaining(deflatedLength);
+            byte[] raw = new byte[length];
+            // Raw deflate streams don't ask for their dictionary, so it has to be set up front.
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setDictionary(DICTIONARY);
+                inflater.setInput(bytes, pos, deflatedLength);
+                int n = 0;
+                while (n < length) {
+                    int inflated = inflater.inflate(raw, n, length - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated deflated text");
+                    }
+                    n += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed deflated text", e);
+            } finally {
+                inflater.end();
+            }
+            pos += deflatedLength;
+            return new String(raw, UTF_8);
+        }
+
+        void checkRemaining(int length) throws IOException {
+            if (length > bytes.length - pos) {
+                throw new IOException("Truncated spec encoding");
+            }
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+            // Deflate expands data at most 1032-fold, so anything longer is corrupt.
+            if (length > bytes.length * 1032L + 64 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad length " + length);
+            }
+            return (int) length;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assigns each synced list a {@link Priority} from whether it is open and how recently it was
+ * updated, so that a backend can have the lists the user is looking at converge first when
+ * bandwidth is limited.
+ * <p>
+ * Applying a priority can be expensive (e.g. rejoining a syncgroup), so the tracker remembers the
+ * priority last assigned to each list, and reports changes to it only when {@link #refresh(long)}
+ * is called. Backends should call it some time after a change rather than right away, so that
+ * e.g. a list that is opened and closed again in the meantime is not reported at all. Lists are
+ * only reported once they have been {@link #assign(Object, long) assigned} a priority, which the
+ * backend should do when it first joins their syncgroup. Recency decays over time, so
+ * {@link #refresh(long)} should also be called periodically.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SyncPriorityTracker<K> {
+    public enum Priority {
+        STALE, NORMAL, RECENT, OPEN
+    }
+
+    public static final long RECENT_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final long STALE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    // All of the following are guarded by this.
+    private final Map<K, Long> mUpdatedAt = new HashMap<>();
+    // A list may be open in more than one window at once.
+    private final Map<K, Integer> mOpenCounts = new HashMap<>();
+    private final Map<K, Priority> mAssigned = new HashMap<>();
+
+    /**
+     * @return the priority for the list, which is now considered applied
+     */
+    public synchronized Priority assign(K key, long now) {
+        Priority priority = compute(key, now);
+        mAssigned.put(key, priority);
+        return priority;
+    }
+
+    public synchronized void setOpen(K key, boolean open) {
+        Integer count = mOpenCounts.get(key);
+        int newCount = (count == null ? 0 : count) + (open ? 1 : -1);
+        if (newCount > 0) {
+            mOpenCounts.put(key, newCount);
+        } else {
+            mOpenCounts.remove(key);
+        }
+    }
+
+    public synchronized void setUpdatedAt(K key, long updatedAt) {
+        mUpdatedAt.put(key, updatedAt);
+    }
+
+    /**
+     * Stops tracking a list, e.g. because it was deleted.
+     */
+    public synchronized void remove(K key) {
+        mUpdatedAt.remove(key);
+        mOpenCounts.remove(key);
+        mAssigned.remove(key);
+    }
+
+    /**
+     * Assigns each list its current priority.
+     *
+     * @return the lists whose priority changed since it was last assigned, with their new
+     * priorities
+     */
+    public synchronized Map<K, Priority> refresh(long now) {
+        Map<K, Priority> changes = new HashMap<>();
+        for (Map.Entry<K, Priority> entry : mAssigned.entrySet()) {
+            Priority priority = compute(entry.getKey(), now);
+            if (priority != entry.getValue()) {
+                entry.setValue(priority);
+                changes.put(entry.getKey(), priority);
+            }
+        }
+        return changes;
+    }
+
+    private Priority compute(K key, long now) {
+        if (mOpenCounts.containsKey(key)) {
+            return Priority.OPEN;
+        }
+        Long updatedAt = mUpdatedAt.get(key);
+        if (updatedAt == null) {
+            return Priority.NORMAL;
+        }
+        long age = now - updatedAt;
+        return age < RECENT_MILLIS ? Priority.RECENT :
+                age >= STALE_MILLIS ? Priority.STALE : Priority.NORMAL;
+    }
+}
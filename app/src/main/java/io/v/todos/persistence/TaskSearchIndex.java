@@ -0,0 +1,381 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over the text of tasks across all todo lists, answering word prefix queries
+ * without scanning any lists. Persistence backends feed it from the watches they already run for
+ * list metadata; see {@link TaskSearchIndexStore} for the shared, locally persisted instance.
+ * <p>
+ * This class is thread-safe.
+ */
+public class TaskSearchIndex {
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * A task matching a search.
+     */
+    public static class Hit {
+        public final String listKey;
+        public final String taskKey;
+        public final String text;
+
+        Hit(String listKey, String taskKey, String text) {
+            this.listKey = listKey;
+            this.taskKey = taskKey;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return listKey + "/" + taskKey + ": " + text;
+        }
+    }
+
+    /**
+     * Identifies a task across all lists.
+     */
+    private static class TaskRef {
+        final String listKey;
+        final String taskKey;
+
+        TaskRef(String listKey, String taskKey) {
+            this.listKey = listKey;
+            this.taskKey = taskKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof TaskRef &&
+                    listKey.equals(((TaskRef) o).listKey) &&
+                    taskKey.equals(((TaskRef) o).taskKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(listKey, taskKey);
+        }
+    }
+
+    // List key -> task key -> text.
+    private final Map<String, Map<String, String>> mTexts = new HashMap<>();
+    // Token -> tasks containing that token.
+    private final TreeMap<String, Set<TaskRef>> mPostings = new TreeMap<>();
+    private Runnable mOnChange;
+    // Until the saved index has been read, removals are remembered so that they are not undone by
+    // stale saved tasks, as are the sets of tasks and lists that the backend has confirmed.
+    private boolean mHasRead;
+    private final Set<TaskRef> mRemovedBeforeRead = new HashSet<>();
+    private final Set<String> mListsRemovedBeforeRead = new HashSet<>();
+    private Set<String> mListsRetainedBeforeRead;
+    private final Map<String, Set<String>> mTasksRetainedBeforeRead = new HashMap<>();
+
+    /**
+     * Sets a callback to be run after every change, e.g. to schedule a save.
+     */
+    public synchronized void setOnChangeListener(Runnable onChange) {
+        mOnChange = onChange;
+    }
+
+    private void changed() {
+        if (mOnChange != null) {
+            mOnChange.run();
+        }
+    }
+
+    /**
+     * Splits text into lower-case runs of letters and digits.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        // The root locale, so that e.g. "I" matches "i" under a Turkish default locale too.
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean isWordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (isWordChar && start == -1) {
+                start = i;
+            } else if (!isWordChar && start != -1) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds or updates a task.
+     */
+    public synchronized void put(String listKey, String taskKey, String text) {
+        Map<String, String> tasks = mTexts.get(listKey);
+        if (tasks == null) {
+            tasks = new HashMap<>();
+            mTexts.put(listKey, tasks);
+        }
+        String oldText = tasks.put(taskKey, text);
+        if (Objects.equals(oldText, text)) {
+            return;
+        }
+
+        TaskRef ref = new TaskRef(listKey, taskKey);
+        Set<String> oldTokens = tokenize(oldText);
+        Set<String> newTokens = tokenize(text);
+        for (String token : oldTokens) {
+            if (!newTokens.contains(token)) {
+                removePosting(token, ref);
+            }
+        }
+        for (String token : newTokens) {
+            if (!oldTokens.contains(token)) {
+                Set<TaskRef> refs = mPostings.get(token);
+                if (refs == null) {
+                    refs = new HashSet<>();
+                    mPostings.put(token, refs);
+                }
+                refs.add(ref);
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Removes a task, if present.
+     */
+    public synchronized void remove(String listKey, String taskKey) {
+        if (!mHasRead) {
+            mRemovedBeforeRead.add(new TaskRef(listKey, taskKey));
+        }
+        Map<String, String> tasks = mTexts.get(listKey);
+        if (tasks == null || !tasks.containsKey(taskKey)) {
+            return;
+        }
+        String text = tasks.remove(taskKey);
+        if (tasks.isEmpty()) {
+            mTexts.remove(listKey);
+        }
+        removePostings(new TaskRef(listKey, taskKey), text);
+        changed();
+    }
+
+    /**
+     * Removes every task in a list, e.g. once the list is deleted.
+     */
+    public synchronized void removeList(String listKey) {
+        if (!mHasRead) {
+            mListsRemovedBeforeRead.add(listKey);
+        }
+        Map<String, String> tasks = mTexts.remove(listKey);
+        if (tasks == null) {
+            return;
+        }
+        for (Map.Entry<String, String> task : tasks.entrySet()) {
+            removePostings(new TaskRef(listKey, task.getKey()), task.getValue());
+        }
+        changed();
+    }
+
+    /**
+     * Drops every list not in the given set. Backends call this once they have seen every list,
+     * so that lists deleted while the app was closed don't linger in the saved index.
+     */
+    public synchronized void retainLists(Collection<String> listKeys) {
+        if (!mHasRead) {
+            mListsRetainedBeforeRead = new HashSet<>(listKeys);
+        }
+        for (String listKey : new ArrayList<>(mTexts.keySet())) {
+            if (!listKeys.contains(listKey)) {
+                removeList(listKey);
+            }
+        }
+    }
+
+    /**
+     * Drops every task of the list not in the given set. Backends call this once they have seen
+     * every task of the list, so that tasks deleted while the app was closed don't linger in the
+     * saved index.
+     */
+    public synchronized void retainTasks(String listKey, Collection<String> taskKeys) {
+        if (!mHasRead) {
+            mTasksRetainedBeforeRead.put(listKey, new HashSet<>(taskKeys));
+        }
+        Map<String, String> tasks = mTexts.get(listKey);
+        if (tasks == null) {
+            return;
+        }
+        for (String taskKey : new ArrayList<>(tasks.keySet())) {
+            if (!taskKeys.contains(taskKey)) {
+                remove(listKey, taskKey);
+            }
+        }
+    }
+
+    private void removePostings(TaskRef ref, String text) {
+        for (String token : tokenize(text)) {
+            removePosting(token, ref);
+        }
+    }
+
+    private void removePosting(String token, TaskRef ref) {
+        Set<TaskRef> refs = mPostings.get(token);
+        if (refs != null && refs.remove(ref) && refs.isEmpty()) {
+            mPostings.remove(token);
+        }
+    }
+
+    /**
+     * Finds tasks in which every word of the query is a prefix of some word of the task.
+     *
+     * @param limit the maximum number of hits to return
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        Set<TaskRef> matches = null;
+        for (String prefix : tokenize(query)) {
+            Set<TaskRef> prefixMatches = new HashSet<>();
+            SortedMap<String, Set<TaskRef>> range =
+                    mPostings.subMap(prefix, prefix + Character.MAX_VALUE);
+            for (Set<TaskRef> refs : range.values()) {
+                prefixMatches.addAll(refs);
+            }
+            if (matches == null) {
+                matches = prefixMatches;
+            } else {
+                matches.retainAll(prefixMatches);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+
+        List<Hit> hits = new ArrayList<>(Math.min(limit, matches.size()));
+        for (TaskRef ref : matches) {
+            if (hits.size() == limit) {
+                break;
+            }
+            hits.add(new Hit(ref.listKey, ref.taskKey, mTexts.get(ref.listKey).get(ref.taskKey)));
+        }
+        return hits;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Map<String, String> tasks : mTexts.values()) {
+            size += tasks.size();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the indexed tasks. Only the task texts are written; postings are rebuilt on read.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        // Copy under the lock so that the write itself does not block indexing.
+        Map<String, Map<String, String>> texts = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, String>> list : mTexts.entrySet()) {
+                texts.put(list.getKey(), new HashMap<>(list.getValue()));
+            }
+        }
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(texts.size());
+        for (Map.Entry<String, Map<String, String>> list : texts.entrySet()) {
+            writeString(out, list.getKey());
+            out.writeInt(list.getValue().size());
+            for (Map.Entry<String, String> task : list.getValue().entrySet()) {
+                writeString(out, task.getKey());
+                writeString(out, task.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads tasks written by {@link #writeTo(DataOutput)}. Changes made to the index beforehand
+     * are more recent than what was written, and take precedence.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown task search index version " + version);
+        }
+        Map<TaskRef, String> saved = new HashMap<>();
+        int numLists = in.readInt();
+        for (int i = 0; i < numLists; i++) {
+            String listKey = readString(in);
+            int numTasks = in.readInt();
+            for (int j = 0; j < numTasks; j++) {
+                String taskKey = readString(in);
+                saved.put(new TaskRef(listKey, taskKey), readString(in));
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<TaskRef, String> task : saved.entrySet()) {
+                TaskRef ref = task.getKey();
+                Map<String, String> tasks = mTexts.get(ref.listKey);
+                Set<String> retainedTasks = mTasksRetainedBeforeRead.get(ref.listKey);
+                if ((tasks == null || !tasks.containsKey(ref.taskKey)) &&
+                        !mRemovedBeforeRead.contains(ref) &&
+                        !mListsRemovedBeforeRead.contains(ref.listKey) &&
+                        (mListsRetainedBeforeRead == null ||
+                                mListsRetainedBeforeRead.contains(ref.listKey)) &&
+                        (retainedTasks == null || retainedTasks.contains(ref.taskKey))) {
+                    put(ref.listKey, ref.taskKey, task.getValue());
+                }
+            }
+            markRead();
+        }
+    }
+
+    /**
+     * Stops guarding against stale saved tasks, e.g. if there is no saved index to read.
+     */
+    public synchronized void markRead() {
+        mHasRead = true;
+        mRemovedBeforeRead.clear();
+        mListsRemovedBeforeRead.clear();
+        mListsRetainedBeforeRead = null;
+        mTasksRetainedBeforeRead.clear();
+    }
+
+    // DataOutput.writeUTF is limited to 64k bytes, which task text could conceivably exceed.
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value == null ? null : value.getBytes("UTF-8");
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
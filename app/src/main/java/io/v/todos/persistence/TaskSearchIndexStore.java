@@ -0,0 +1,117 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the app-wide {@link TaskSearchIndex}, saved to a local file so that search works across
+ * all lists as soon as the app starts. The saved index is read in the background, and changes are
+ * saved at most once per {@link #SAVE_DELAY_MS}.
+ */
+public final class TaskSearchIndexStore {
+    private static final String TAG = TaskSearchIndexStore.class.getSimpleName();
+    private static final String FILE_NAME = "task_search_index";
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static TaskSearchIndex sIndex;
+
+    private TaskSearchIndexStore() {
+    }
+
+    private static class Saver implements Runnable {
+        private final ScheduledExecutorService mExecutor =
+                Executors.newSingleThreadScheduledExecutor();
+        private final File mFile;
+        private final TaskSearchIndex mIndex;
+        private boolean mScheduled;
+
+        Saver(File file, TaskSearchIndex index) {
+            mFile = file;
+            mIndex = index;
+        }
+
+        void load() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(mFile)))) {
+                        mIndex.readFrom(in);
+                    } catch (FileNotFoundException e) {
+                        mIndex.markRead();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not read task search index; rebuilding", e);
+                        mIndex.markRead();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Schedules a save unless one is already pending.
+         */
+        @Override
+        public synchronized void run() {
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Saver.this) {
+                            mScheduled = false;
+                        }
+                        save();
+                    }
+                }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void save() {
+            // Write to a temporary file and rename so that a crash mid-write leaves the last
+            // complete save in place.
+            File tmp = new File(mFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                mIndex.writeTo(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save task search index", e);
+                return;
+            }
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Could not replace task search index");
+            }
+        }
+    }
+
+    /**
+     * @return the shared task search index, starting to read the saved index if this is the first
+     * call
+     */
+    public static synchronized TaskSearchIndex getIndex(Context context) {
+        if (sIndex == null) {
+            sIndex = new TaskSearchIndex();
+            Saver saver = new Saver(new File(context.getApplicationContext().getFilesDir(),
+                    FILE_NAME), sIndex);
+            saver.load();
+            sIndex.setOnChangeListener(saver);
+        }
+        return sIndex;
+    }
+}
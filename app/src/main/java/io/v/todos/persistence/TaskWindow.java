@@ -0,0 +1,250 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskIndex;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * Sits between a persistence backend's task events and a {@link ListEventListener}, forwarding
+ * only the tasks that fall within a window at the start of the list, in sort order. Every task
+ * is tracked in a {@link TaskIndex}, but the rest of a task is only held while it is in the
+ * window. When a task moves into the window without its contents at hand, the window asks its
+ * {@link Loader} to fetch it.
+ * <p>
+ * The listener sees a consistent sorted prefix of the list: a task entering the window is
+ * reported as an add, and a task leaving it as a delete.
+ * <p>
+ * This class is thread-safe. Listener and loader calls are queued while holding its lock and made
+ * after releasing it, one at a time and in order, by whichever thread is not already making them.
+ */
+public class TaskWindow {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    public interface Loader {
+        /**
+         * Fetches the task with the given key and reports it back through
+         * {@link TaskWindow#onTaskLoaded(String, TaskSpec)}. Tasks that no longer exist can
+         * simply be dropped.
+         */
+        void load(String key);
+    }
+
+    private static final int ADD = 0, UPDATE = 1, DELETE = 2, LOAD = 3;
+
+    private static class Event {
+        final int type;
+        final Task task;
+        final String key;
+
+        Event(int type, Task task, String key) {
+            this.type = type;
+            this.task = task;
+            this.key = key;
+        }
+    }
+
+    private final ListEventListener<Task> mListener;
+    private final Loader mLoader;
+    private final TaskIndex mIndex = new TaskIndex();
+    // Tasks in the window that have been reported to the listener. Tasks in the window that are
+    // absent here are waiting on the loader.
+    private final Map<String, Task> mShown = new HashMap<>();
+    private int mLimit;
+    private final Queue<Event> mEvents = new ArrayDeque<>();
+    private boolean mDispatching;
+
+    public TaskWindow(ListEventListener<Task> listener, Loader loader, int limit) {
+        mListener = listener;
+        mLoader = loader;
+        mLimit = limit;
+    }
+
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    public synchronized boolean contains(String key) {
+        return mIndex.contains(key);
+    }
+
+    /**
+     * Grows or shrinks the window.
+     */
+    public void setLimit(int limit) {
+        synchronized (this) {
+            updateLimit(limit);
+        }
+        dispatch();
+    }
+
+    private void updateLimit(int limit) {
+        if (limit > mLimit) {
+            int end = Math.min(limit, mIndex.size());
+            for (int i = mLimit; i < end; i++) {
+                load(mIndex.keyAt(i));
+            }
+        } else {
+            int end = Math.min(mLimit, mIndex.size());
+            for (int i = end - 1; i >= limit; i--) {
+                hide(mIndex.keyAt(i));
+            }
+        }
+        mLimit = limit;
+    }
+
+    /**
+     * Reports a task added or updated by the backend.
+     */
+    public void put(String key, TaskSpec spec) {
+        synchronized (this) {
+            updateTask(key, spec);
+        }
+        dispatch();
+    }
+
+    private void updateTask(String key, TaskSpec spec) {
+        Task task = new Task(key, spec);
+        int oldPosition = mIndex.indexOf(key);
+        if (oldPosition != -1 && mIndex.isDone(key) == task.done) {
+            // Same position in the list.
+            if (oldPosition < mLimit) {
+                show(task);
+            }
+            return;
+        }
+
+        boolean wasInWindow = oldPosition != -1 && oldPosition < mLimit;
+        if (oldPosition != -1) {
+            mIndex.remove(key);
+        }
+        int newPosition = mIndex.insert(key, task.done);
+
+        if (newPosition < mLimit) {
+            if (!wasInWindow && mIndex.size() > mLimit) {
+                // The task's arrival pushes the last task out of the window.
+                hide(mIndex.keyAt(mLimit));
+            }
+            show(task);
+        } else if (wasInWindow) {
+            hide(key);
+            // The task's departure pulls the next task into the window.
+            load(mIndex.keyAt(mLimit - 1));
+        }
+    }
+
+    /**
+     * Reports a task deleted by the backend.
+     */
+    public void remove(String key) {
+        synchronized (this) {
+            removeTask(key);
+        }
+        dispatch();
+    }
+
+    private void removeTask(String key) {
+        int position = mIndex.remove(key);
+        if (position == -1 || position >= mLimit) {
+            return;
+        }
+        hide(key);
+        if (mIndex.size() >= mLimit) {
+            load(mIndex.keyAt(mLimit - 1));
+        }
+    }
+
+    /**
+     * Delivers a task fetched by the {@link Loader}. Ignored if the task has since left the
+     * window or been superseded by an update from the backend.
+     */
+    public void onTaskLoaded(String key, TaskSpec spec) {
+        synchronized (this) {
+            showLoaded(key, spec);
+        }
+        dispatch();
+    }
+
+    private void showLoaded(String key, TaskSpec spec) {
+        int position = mIndex.indexOf(key);
+        if (position == -1 || position >= mLimit || mShown.containsKey(key)) {
+            return;
+        }
+        // The index reflects the latest change from the backend, which this load may predate or
+        // anticipate; keep the done bit consistent with the task's position until it catches up.
+        show(new Task(key, spec.getText(), spec.getAddedAt(), mIndex.isDone(key)));
+    }
+
+    private void show(Task task) {
+        mEvents.add(new Event(mShown.put(task.key, task) == null ? ADD : UPDATE, task, task.key));
+    }
+
+    private void hide(String key) {
+        if (mShown.remove(key) != null) {
+            mEvents.add(new Event(DELETE, null, key));
+        }
+    }
+
+    private void load(String key) {
+        mEvents.add(new Event(LOAD, null, key));
+    }
+
+    /**
+     * Makes the queued listener and loader calls, unless another thread (or an outer call on this
+     * one, e.g. a loader that reports back synchronously) is already making them.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            if (mDispatching) {
+                return;
+            }
+            mDispatching = true;
+        }
+        while (true) {
+            Event event;
+            synchronized (this) {
+                event = mEvents.poll();
+                if (event == null) {
+                    mDispatching = false;
+                    return;
+                }
+            }
+            try {
+                deliver(event);
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    mDispatching = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void deliver(Event event) {
+        switch (event.type) {
+            case ADD:
+                mListener.onItemAdd(event.task);
+                break;
+            case UPDATE:
+                mListener.onItemUpdate(event.task);
+                break;
+            case DELETE:
+                mListener.onItemDelete(event.key);
+                break;
+            default:
+                mLoader.load(event.key);
+        }
+    }
+}
@@ -16,4 +16,32 @@ public interface TodoListPersistence extends Persistence {
     void updateTask(Task task);
     void deleteTask(String key);
     void setShowDone(boolean showDone);
+
+    /**
+     * Marks a task done or not done without rewriting its other fields, so that the write is
+     * small and does not conflict with a concurrent edit of the text.
+     */
+    void setTaskDone(String key, boolean done);
+
+    /**
+     * Changes the text of a task without rewriting its other fields.
+     */
+    void setTaskText(String key, String text);
+
+    /**
+     * Renames the list and marks it updated.
+     */
+    void setListName(String name);
+
+    /**
+     * Marks the list updated now, without rewriting its name.
+     */
+    void touchList();
+
+    /**
+     * Limits the tasks reported to the listener to the first {@code limit} in sort order, so that
+     * very large lists can be loaded a page at a time. Tasks that leave the window are reported as
+     * deleted. Backends that do not page report every task regardless.
+     */
+    void setTaskWindow(int limit);
 }
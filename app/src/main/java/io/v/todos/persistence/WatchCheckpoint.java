@@ -0,0 +1,401 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The rows a watch has seen, as of a resume marker, kept in a log file so that a backend can
+ * restore them locally and restart the watch from the marker instead of reading every row again.
+ * Row values are opaque bytes chosen by the backend. See {@link WatchCheckpointStore} for the
+ * checkpoint of each watched collection.
+ * <p>
+ * The rows are only held in the file. Each batch of changes is appended to it as a single record
+ * ending with the marker at the end of the batch, so the rows read back are always consistent
+ * with a marker. Records are checksummed, so that a torn append is dropped when the log is read.
+ * Once the records appended since the last compaction outgrow the rest of the file, the file is
+ * rewritten with only the live rows, so reading it back costs about as much as the live rows.
+ * <p>
+ * Any number of watches can {@link #replay(RowVisitor) replay} a checkpoint, but only the one
+ * that has {@link #claim() claimed} it commits to it. New records accumulate in memory until
+ * {@link #save()}, so that the owner can append them in the background.
+ * <p>
+ * This class is thread-safe.
+ */
+public class WatchCheckpoint {
+    private static final int MAGIC = 0x77617463;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_LENGTH = 1 << 26;
+    private static final long MIN_BYTES_TO_COMPACT = 1 << 16;
+
+    public interface RowVisitor {
+        void onRow(String rowName, byte[] value);
+    }
+
+    private final File mFile;
+
+    // The following are guarded by this.
+    private byte[] mResumeMarker;
+    private ByteArrayOutputStream mUncommitted = new ByteArrayOutputStream();
+    // Whether the file has to be started over, because the checkpoint was cleared.
+    private boolean mRestart;
+    // The size of the log, including uncommitted records, and its size when last compacted.
+    private long mLogSize;
+    private long mCompactedSize;
+    private boolean mClaimed;
+    private Runnable mOnChangeListener;
+
+    // Guarded by mFileLock, which is never taken while holding this.
+    private final Object mFileLock = new Object();
+    private FileOutputStream mOut;
+
+    public WatchCheckpoint(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the marker to resume the watch from, or null if it has to start over
+     */
+    public synchronized byte[] getResumeMarker() {
+        return mResumeMarker;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mResumeMarker == null;
+    }
+
+    /**
+     * Claims the checkpoint for a watch that will commit its changes to it.
+     *
+     * @return false if another watch has claimed it and not yet released it
+     */
+    public synchronized boolean claim() {
+        if (mClaimed) {
+            return false;
+        }
+        mClaimed = true;
+        return true;
+    }
+
+    public synchronized void release() {
+        mClaimed = false;
+    }
+
+    /**
+     * Logs a batch of changes.
+     *
+     * @param changes      the new value of each changed row, or null if it was deleted
+     * @param resumeMarker the marker at the end of the batch
+     */
+    public void commit(Map<String, byte[]> changes, byte[] resumeMarker) {
+        Runnable listener;
+        synchronized (this) {
+            try {
+                mLogSize += writeRecord(new DataOutputStream(mUncommitted), changes,
+                        resumeMarker);
+            } catch (IOException e) {
+                // In-memory streams don't throw.
+                throw new AssertionError(e);
+            }
+            mResumeMarker = resumeMarker;
+            listener = mOnChangeListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Forgets every row and the marker, e.g. because the watch has to start over or the watched
+     * rows were destroyed. The file is deleted on the next {@link #save()}.
+     */
+    public void clear() {
+        Runnable listener;
+        synchronized (this) {
+            mResumeMarker = null;
+            mUncommitted = new ByteArrayOutputStream();
+            mRestart = true;
+            mLogSize = 0;
+            mCompactedSize = 0;
+            listener = mOnChangeListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets a listener to be called after each change, e.g. to schedule a save.
+     */
+    public synchronized void setOnChangeListener(Runnable listener) {
+        mOnChangeListener = listener;
+    }
+
+    /**
+     * Appends the records committed since the last save to the file, compacting it if most of it
+     * is obsolete. The appends are not synced: a lost append only means that the watch resumes
+     * from an earlier marker.
+     */
+    public void save() throws IOException {
+        synchronized (mFileLock) {
+            boolean restart;
+            byte[] records;
+            boolean needsCompaction;
+            synchronized (this) {
+                restart = mRestart;
+                records = mUncommitted.toByteArray();
+                mRestart = false;
+                mUncommitted = new ByteArrayOutputStream();
+                needsCompaction = mLogSize - mCompactedSize >=
+                        Math.max(MIN_BYTES_TO_COMPACT, mCompactedSize);
+            }
+            if (restart) {
+                closeFile();
+                if (mFile.exists() && !mFile.delete()) {
+                    throw new IOException("Could not delete " + mFile);
+                }
+            }
+            if (records.length > 0) {
+                openFile().write(records);
+            }
+            if (needsCompaction) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Saves any pending changes, then hands the live rows in the file to the visitor. Rows are
+     * only held in memory while they are read back. The end of a torn file is dropped, and a
+     * file that can't be read at all is deleted.
+     *
+     * @return the marker the rows are consistent with, or null if there are none and the watch
+     * has to start over
+     */
+    public byte[] replay(RowVisitor visitor) throws IOException {
+        Map<String, byte[]> rows = new HashMap<>();
+        LogState log;
+        synchronized (mFileLock) {
+            save();
+            log = readLog(rows);
+            if (log != null) {
+                synchronized (this) {
+                    // Changes committed since the save are newer than the file.
+                    if (!mRestart && mUncommitted.size() == 0) {
+                        mResumeMarker = log.resumeMarker;
+                        mLogSize = log.size;
+                        mCompactedSize = log.firstRecordEnd;
+                    }
+                }
+            }
+        }
+        if (log == null) {
+            clear();
+            return null;
+        }
+        for (Map.Entry<String, byte[]> row : rows.entrySet()) {
+            visitor.onRow(row.getKey(), row.getValue());
+        }
+        return log.resumeMarker;
+    }
+
+    private static class LogState {
+        byte[] resumeMarker;
+        long size;
+        long firstRecordEnd;
+    }
+
+    /**
+     * Reads the live rows in the file, truncating it after the last complete record.
+     *
+     * @return the log's marker and sizes, or null if the file can't be read
+     */
+    private LogState readLog(Map<String, byte[]> rows) throws IOException {
+        LogState log = new LogState();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            log.size = HEADER_SIZE;
+            while (true) {
+                long recordSize = readRecord(in, rows, log);
+                if (recordSize < 0) {
+                    break;
+                }
+                log.size += recordSize;
+                if (log.firstRecordEnd == 0) {
+                    log.firstRecordEnd = log.size;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been saved for this watch yet.
+            return log;
+        } catch (EOFException e) {
+            return null;
+        }
+        if (mFile.length() > log.size) {
+            closeFile();
+            try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+                out.getChannel().truncate(log.size);
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Applies the next record in a log to the rows, and takes its marker.
+     *
+     * @return the size of the record, or -1 if there are no more complete records
+     */
+    private static long readRecord(DataInput in, Map<String, byte[]> rows, LogState log)
+            throws IOException {
+        byte[] record;
+        try {
+            int length = in.readInt();
+            long checksum = in.readInt() & 0xffffffffL;
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                return -1;
+            }
+            record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                return -1;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+        DataInput recordIn = new DataInputStream(new ByteArrayInputStream(record));
+        int numChanges = recordIn.readInt();
+        for (int i = 0; i < numChanges; i++) {
+            String rowName = recordIn.readUTF();
+            byte[] value = readBytes(recordIn);
+            if (value == null) {
+                rows.remove(rowName);
+            } else {
+                rows.put(rowName, value);
+            }
+        }
+        log.resumeMarker = readBytes(recordIn);
+        return 8 + record.length;
+    }
+
+    /**
+     * @return the size of the record
+     */
+    private static int writeRecord(DataOutput out, Map<String, byte[]> changes,
+                                   byte[] resumeMarker) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(bytes);
+        recordOut.writeInt(changes.size());
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            recordOut.writeUTF(change.getKey());
+            writeBytes(recordOut, change.getValue());
+        }
+        writeBytes(recordOut, resumeMarker);
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+        return 8 + record.length;
+    }
+
+    private FileOutputStream openFile() throws IOException {
+        if (mOut == null) {
+            boolean isNew = mFile.length() == 0;
+            mFile.getParentFile().mkdirs();
+            mOut = new FileOutputStream(mFile, true);
+            if (isNew) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(mOut));
+                writeHeader(out);
+                out.flush();
+            }
+        }
+        return mOut;
+    }
+
+    private void closeFile() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    /**
+     * Replaces the file with one holding only the live rows, as a single record.
+     */
+    private void compact() throws IOException {
+        Map<String, byte[]> rows = new HashMap<>();
+        LogState log = readLog(rows);
+        if (log == null || log.resumeMarker == null) {
+            return;
+        }
+        // Write to a temporary file and rename so that a crash mid-write leaves the old log in
+        // place.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        long size;
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            writeHeader(out);
+            size = HEADER_SIZE + writeRecord(out, rows, log.resumeMarker);
+            out.flush();
+            file.getFD().sync();
+        }
+        closeFile();
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        synchronized (this) {
+            if (!mRestart) {
+                mCompactedSize = size;
+                mLogSize = size + mUncommitted.size();
+            }
+        }
+    }
+
+    private static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds one {@link WatchCheckpoint} per watched collection, shared by every watch of it, with
+ * its log in a local file so that watches can resume where they left off when the app restarts.
+ * Changes are appended to the file at most once per {@link #SAVE_DELAY_MS}, and a checkpoint
+ * that is cleared has its file deleted.
+ */
+public final class WatchCheckpointStore {
+    private static final String TAG = WatchCheckpointStore.class.getSimpleName();
+    private static final String DIR_NAME = "watch_checkpoints";
+    private static final long SAVE_DELAY_MS = 2000;
+
+    // A single thread, so that saves of the same file never overlap.
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Guarded by the class.
+    private static final Map<String, WatchCheckpoint> sCheckpoints = new HashMap<>();
+
+    private WatchCheckpointStore() {
+    }
+
+    private static class Saver implements Runnable {
+        private final WatchCheckpoint mCheckpoint;
+        private boolean mScheduled;
+
+        Saver(WatchCheckpoint checkpoint) {
+            mCheckpoint = checkpoint;
+        }
+
+        /**
+         * Schedules a save unless one is already pending.
+         */
+        @Override
+        public synchronized void run() {
+            if (!mScheduled) {
+                mScheduled = true;
+                sExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Saver.this) {
+                            mScheduled = false;
+                        }
+                        try {
+                            mCheckpoint.save();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Could not save watch checkpoint", e);
+                        }
+                    }
+                }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the shared checkpoint for a watch, which is read from its file with
+     * {@link WatchCheckpoint#replay(WatchCheckpoint.RowVisitor)} and saves its changes from then
+     * on
+     */
+    public static synchronized WatchCheckpoint getCheckpoint(Context context, String watchName) {
+        WatchCheckpoint checkpoint = sCheckpoints.get(watchName);
+        if (checkpoint == null) {
+            checkpoint = new WatchCheckpoint(getFile(context, watchName));
+            checkpoint.setOnChangeListener(new Saver(checkpoint));
+            sCheckpoints.put(watchName, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Deletes the saved checkpoint for a watch, e.g. because the watched rows were destroyed.
+     */
+    public static void removeCheckpoint(Context context, String watchName) {
+        getCheckpoint(context, watchName).clear();
+    }
+
+    private static File getFile(Context context, String watchName) {
+        String fileName;
+        try {
+            // Watch names include blessings, which may contain path separators.
+            fileName = URLEncoder.encode(watchName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return new File(new File(context.getApplicationContext().getFilesDir(), DIR_NAME),
+                fileName);
+    }
+}
@@ -0,0 +1,357 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * A log of pending writes to a hierarchical store such as Firebase, each setting a
+ * slash-separated path to a {@link ListSpec}, a {@link TaskSpec}, a single field value, or null
+ * to remove it. Writes stay pending until the store acknowledges them.
+ * <p>
+ * Pending writes are coalesced: a write replaces any pending write to the same path or below it,
+ * so the number of pending writes is bounded by the number of distinct paths written while
+ * offline rather than by the number of edits.
+ * <p>
+ * Durability is up to the caller. New records accumulate until {@link #takeUncommitted()}, so
+ * that a burst of writes can be appended to the log file and synced at once (group commit). The
+ * file is append-only; once most of its records are obsolete, {@link #needsCompaction()} is true
+ * and the file should be replaced with {@link #writeSnapshotTo(DataOutput)}. Each record is
+ * checksummed so that a torn write at the end of the file is discarded on
+ * {@link #readFrom(DataInput)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public class WriteAheadLog {
+    private static final int MAGIC = 0x746f646f;
+    private static final int FORMAT_VERSION = 1;
+    private static final int PUT_LIST = 1, PUT_TASK = 2, REMOVE = 3, ACKNOWLEDGE = 4,
+            PUT_STRING = 5, PUT_LONG = 6, PUT_BOOLEAN = 7;
+    private static final int MIN_RECORDS_TO_COMPACT = 256;
+    private static final char PATH_SEPARATOR = '/';
+
+    /**
+     * A pending write. The value is a {@link ListSpec}, a {@link TaskSpec}, a {@link String},
+     * {@link Long} or {@link Boolean} field value, or null for a removal.
+     */
+    public static class Write {
+        public final long sequence;
+        public final String path;
+        public final Object value;
+
+        Write(long sequence, String path, Object value) {
+            this.sequence = sequence;
+            this.path = path;
+            this.value = value;
+        }
+    }
+
+    // All of the following are guarded by this. Pending writes are indexed both by path, so
+    // that the writes below a path are a contiguous range, and by sequence.
+    private final TreeMap<String, Write> mPending = new TreeMap<>();
+    private final TreeMap<Long, Write> mPendingBySequence = new TreeMap<>();
+    private long mNextSequence;
+    private ByteArrayOutputStream mUncommitted = new ByteArrayOutputStream();
+    private int mNumRecords;
+
+    /**
+     * Logs a write and makes it pending, replacing pending writes to the same path or below it.
+     */
+    public synchronized Write append(String path, Object value) {
+        if (value != null && !(value instanceof ListSpec) && !(value instanceof TaskSpec) &&
+                !(value instanceof String) && !(value instanceof Long) &&
+                !(value instanceof Boolean)) {
+            throw new IllegalArgumentException("Unsupported value " + value);
+        }
+        // Copy the value, since specs are mutable.
+        if (value instanceof ListSpec) {
+            ListSpec list = (ListSpec) value;
+            value = new ListSpec(list.getName(), list.getUpdatedAt());
+        } else if (value instanceof TaskSpec) {
+            TaskSpec task = (TaskSpec) value;
+            value = new TaskSpec(task.getText(), task.getAddedAt(), task.getDone());
+        }
+        Write write = new Write(mNextSequence++, path, value);
+        addPending(write);
+        writeRecord(write);
+        return write;
+    }
+
+    private void addPending(Write write) {
+        // Every path below this one sorts between the path followed by the separator and the
+        // path followed by the next character after it.
+        SortedMap<String, Write> below = mPending.subMap(write.path + PATH_SEPARATOR,
+                write.path + (char) (PATH_SEPARATOR + 1));
+        for (Write replaced : below.values()) {
+            mPendingBySequence.remove(replaced.sequence);
+        }
+        below.clear();
+        removePending(write.path);
+        mPending.put(write.path, write);
+        mPendingBySequence.put(write.sequence, write);
+    }
+
+    private void removePending(String path) {
+        Write removed = mPending.remove(path);
+        if (removed != null) {
+            mPendingBySequence.remove(removed.sequence);
+        }
+    }
+
+    /**
+     * Marks the writes as applied by the store. Writes that have since been replaced stay
+     * pending.
+     */
+    public synchronized void acknowledge(Collection<Write> writes) {
+        for (Write write : writes) {
+            Write pending = mPending.get(write.path);
+            if (pending != null && pending.sequence == write.sequence) {
+                removePending(write.path);
+                writeRecord(ACKNOWLEDGE, write);
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the pending writes in the order they were made
+     */
+    public synchronized List<Write> getPending() {
+        return new ArrayList<>(mPendingBySequence.values());
+    }
+
+    /**
+     * @return the number of records in the log since it was last read or compacted
+     */
+    public synchronized int getRecordCount() {
+        return mNumRecords;
+    }
+
+    /**
+     * @return the records logged since the last call, to be appended to the log file
+     */
+    public synchronized byte[] takeUncommitted() {
+        byte[] records = mUncommitted.toByteArray();
+        mUncommitted = new ByteArrayOutputStream();
+        return records;
+    }
+
+    /**
+     * @return whether most records in the log are obsolete
+     */
+    public synchronized boolean needsCompaction() {
+        return mNumRecords >= MIN_RECORDS_TO_COMPACT && mNumRecords > 4 * mPending.size();
+    }
+
+    /**
+     * Writes a complete log containing only the pending writes, which replaces the log file and
+     * any uncommitted records.
+     */
+    public synchronized void writeSnapshotTo(DataOutput out) throws IOException {
+        mUncommitted = new ByteArrayOutputStream();
+        mNumRecords = 0;
+        writeHeader(out);
+        for (Write write : mPendingBySequence.values()) {
+            writeRecord(write);
+        }
+        out.write(takeUncommitted());
+    }
+
+    /**
+     * Writes the header of an empty log.
+     */
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Replays a log written by {@link #writeHeader(DataOutput)} and
+     * {@link #takeUncommitted()} or by {@link #writeSnapshotTo(DataOutput)}. Replay stops at the
+     * first incomplete or corrupt record, which can only be the result of a crash while
+     * appending.
+     */
+    public static WriteAheadLog readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a write-ahead log");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown write-ahead log version " + version);
+        }
+        WriteAheadLog log = new WriteAheadLog();
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length < 0 || length > 1 << 20) {
+                    break;
+                }
+                record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            log.replay(new DataInputStream(new ByteArrayInputStream(record)));
+        }
+        return log;
+    }
+
+    private synchronized void replay(DataInput in) throws IOException {
+        int type = in.readByte();
+        long sequence = in.readLong();
+        String path = in.readUTF();
+        mNextSequence = Math.max(mNextSequence, sequence + 1);
+        mNumRecords++;
+        switch (type) {
+            case PUT_LIST:
+                addPending(new Write(sequence, path, new ListSpec(in.readUTF(), in.readLong())));
+                break;
+            case PUT_TASK:
+                addPending(new Write(sequence, path,
+                        new TaskSpec(in.readUTF(), in.readLong(), in.readBoolean())));
+                break;
+            case PUT_STRING:
+                addPending(new Write(sequence, path, in.readUTF()));
+                break;
+            case PUT_LONG:
+                addPending(new Write(sequence, path, in.readLong()));
+                break;
+            case PUT_BOOLEAN:
+                addPending(new Write(sequence, path, in.readBoolean()));
+                break;
+            case REMOVE:
+                addPending(new Write(sequence, path, null));
+                break;
+            case ACKNOWLEDGE:
+                Write pending = mPending.get(path);
+                if (pending != null && pending.sequence == sequence) {
+                    removePending(path);
+                }
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record " + type);
+        }
+    }
+
+    private void writeRecord(Write write) {
+        Object value = write.value;
+        writeRecord(value instanceof ListSpec ? PUT_LIST : value instanceof TaskSpec ? PUT_TASK :
+                value instanceof String ? PUT_STRING : value instanceof Long ? PUT_LONG :
+                value instanceof Boolean ? PUT_BOOLEAN : REMOVE, write);
+    }
+
+    private void writeRecord(int type, Write write) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(write.sequence);
+            out.writeUTF(write.path);
+            if (type == PUT_LIST) {
+                ListSpec list = (ListSpec) write.value;
+                out.writeUTF(list.getName());
+                out.writeLong(list.getUpdatedAt());
+            } else if (type == PUT_TASK) {
+                TaskSpec task = (TaskSpec) write.value;
+                out.writeUTF(task.getText());
+                out.writeLong(task.getAddedAt());
+                out.writeBoolean(task.getDone());
+            } else if (type == PUT_STRING) {
+                out.writeUTF((String) write.value);
+            } else if (type == PUT_LONG) {
+                out.writeLong((Long) write.value);
+            } else if (type == PUT_BOOLEAN) {
+                out.writeBoolean((Boolean) write.value);
+            }
+
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            DataOutputStream log = new DataOutputStream(mUncommitted);
+            log.writeInt(record.length);
+            log.writeInt((int) crc.getValue());
+            log.write(record);
+        } catch (IOException e) {
+            // In-memory streams don't throw.
+            throw new AssertionError(e);
+        }
+        mNumRecords++;
+    }
+
+    /**
+     * Splits writes into batches that can each be applied as a single multi-path update, which
+     * requires that no path in a batch is an ancestor of another. Order is preserved.
+     */
+    public static List<List<Write>> toBatches(List<Write> writes, int maxBatchSize) {
+        List<List<Write>> batches = new ArrayList<>();
+        List<Write> batch = new ArrayList<>();
+        Set<String> paths = new HashSet<>();
+        Set<String> ancestors = new HashSet<>();
+        for (Write write : writes) {
+            if (batch.size() == maxBatchSize || overlaps(write.path, paths, ancestors)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                paths.clear();
+                ancestors.clear();
+            }
+            batch.add(write);
+            paths.add(write.path);
+            for (int i = write.path.indexOf(PATH_SEPARATOR); i >= 0;
+                 i = write.path.indexOf(PATH_SEPARATOR, i + 1)) {
+                ancestors.add(write.path.substring(0, i));
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static boolean overlaps(String path, Set<String> paths, Set<String> ancestors) {
+        if (paths.contains(path) || ancestors.contains(path)) {
+            return true;
+        }
+        for (int i = path.indexOf(PATH_SEPARATOR); i >= 0;
+             i = path.indexOf(PATH_SEPARATOR, i + 1)) {
+            if (paths.contains(path.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized String debugDetails() {
+        return mPending.size() + " pending writes, " + mNumRecords + " log records";
+    }
+}
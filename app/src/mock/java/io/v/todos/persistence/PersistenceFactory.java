@@ -6,16 +6,26 @@ package io.v.todos.persistence;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.support.annotation.VisibleForTesting;
 
 import io.v.todos.model.ListMetadata;
-import io.v.todos.model.ListSpec;
-import io.v.todos.model.Task;
-import io.v.todos.model.TaskSpec;
 
 public final class PersistenceFactory {
     private PersistenceFactory() {
     }
 
+    // Shared by all activities, so that lists survive navigation for the life of the process.
+    private static volatile InMemoryStore sStore = new InMemoryStore();
+
+    /**
+     * Replaces the shared store with an empty one, so that a test doesn't see the lists of the
+     * tests before it. Persistence objects created before this keep using the old store.
+     */
+    @VisibleForTesting
+    public static void resetStore() {
+        sStore = new InMemoryStore();
+    }
+
     /**
      * Indicates whether {@link #getMainPersistence(Activity, Bundle, ListEventListener)} may block.
      * This can affect whether a progress indicator is shown and whether a worker thread is used.
@@ -29,7 +39,7 @@ public final class PersistenceFactory {
      */
     public static MainPersistence getMainPersistence(Activity activity, Bundle savedInstanceState,
                                                      ListEventListener<ListMetadata> listener) {
-        return new MockMainPersistence();
+        return new InMemoryMain(sStore, listener);
     }
 
     /**
@@ -46,65 +56,6 @@ public final class PersistenceFactory {
      */
     public static TodoListPersistence getTodoListPersistence(
             Activity activity, Bundle savedInstanceState, String key, TodoListListener listener) {
-        return new MockTodoListPersistence();
-    }
-
-    static class MockMainPersistence implements MainPersistence {
-        @Override
-        public String addTodoList(ListSpec listSpec) {
-            return "";
-        }
-
-        @Override
-        public void deleteTodoList(String key) {
-        }
-
-        @Override
-        public void close() {
-        }
-
-        @Override
-        public String debugDetails() {
-            return "";
-        }
-    }
-
-    static class MockTodoListPersistence implements TodoListPersistence {
-        @Override
-        public void updateTodoList(ListSpec listSpec) {
-        }
-
-        @Override
-        public void deleteTodoList() {
-        }
-
-        @Override
-        public void completeTodoList() {
-        }
-
-        @Override
-        public void addTask(TaskSpec task) {
-        }
-
-        @Override
-        public void updateTask(Task task) {
-        }
-
-        @Override
-        public void deleteTask(String key) {
-        }
-
-        @Override
-        public void setShowDone(boolean showDone) {
-        }
-
-        @Override
-        public void close() {
-        }
-
-        @Override
-        public String debugDetails() {
-            return "";
-        }
+        return new InMemoryTodoList(sStore, key, listener);
     }
 }
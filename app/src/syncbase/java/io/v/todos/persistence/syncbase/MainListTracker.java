@@ -7,11 +7,11 @@ package io.v.todos.persistence.syncbase;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,47 +21,80 @@ import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.TaskSpec;
 import io.v.todos.persistence.ListEventListener;
-import io.v.v23.InputChannel;
-import io.v.v23.InputChannelCallback;
-import io.v.v23.InputChannels;
+import io.v.todos.persistence.TaskSearchIndex;
+import io.v.todos.persistence.WatchCheckpoint;
 import io.v.v23.context.VContext;
 import io.v.v23.services.syncbase.Id;
-import io.v.v23.syncbase.ChangeType;
 import io.v.v23.syncbase.Collection;
 import io.v.v23.syncbase.Database;
-import io.v.v23.syncbase.WatchChange;
 import io.v.v23.syncbase.util.Util;
 import io.v.v23.verror.NoExistException;
 
 /**
  * This class aggregates Todo-list watch data from Syncbase into {@link ListMetadata}.
+ * <p>
+ * Once a list is archived, its watch is cancelled and its task state dropped, leaving only the
+ * last metadata snapshot. An archived list is brought back by tracking it with a new instance
+ * that starts from the snapshot. Since the watch is resumable, that only reads the changes made
+ * since the list was archived.
  */
 public class MainListTracker {
     private static final String TAG = MainListTracker.class.getSimpleName();
 
     private final ListEventListener<ListMetadata> mListener;
-    private ListSpec mListSpec;
+    private final TaskSearchIndex mSearchIndex;
+    private final String mKey;
+
+    private final VContext mVContext;
 
-    private final Map<String, Boolean> mIsTaskCompleted = new HashMap<>();
+    // The following are guarded by this.
+    private ListSpec mListSpec;
+    private Map<String, Boolean> mIsTaskCompleted = new HashMap<>();
     private int mNumCompletedTasks;
     private boolean mListExistsLocally;
+    private ListMetadata mLastFired;
+    private boolean mArchived;
+    private boolean mSearchIndexRetained;
 
     public final Collection collection;
     public final ListenableFuture<Void> watchFuture;
 
+    /**
+     * @param checkpoint the list's checkpoint, shared with any open view of the list
+     * @param archived   the snapshot of a list being brought back from the archive, which the
+     *                   listener already knows about, or null
+     */
     public MainListTracker(VContext vContext, Database database, final Id listId,
-                           ListEventListener<ListMetadata> listener) {
+                           ListEventListener<ListMetadata> listener,
+                           TaskSearchIndex searchIndex, final WatchCheckpoint checkpoint,
+                           @Nullable ListMetadata archived) {
         collection = database.getCollection(listId);
+        mKey = SyncbasePersistence.convertIdToString(listId);
         mListener = listener;
-        InputChannel<WatchChange> watch = database.watch(vContext,
-                ImmutableList.of(Util.rowPrefixPattern(collection.id(), "")));
-        watchFuture = InputChannels.withCallback(watch, new InputChannelCallback<WatchChange>() {
-            @Override
-            public ListenableFuture<Void> onNext(WatchChange change) {
-                processWatchChange(change);
-                return null;
-            }
-        });
+        mSearchIndex = searchIndex;
+        if (archived != null) {
+            mListExistsLocally = true;
+            mLastFired = archived;
+        }
+        mVContext = vContext.withCancel();
+        watchFuture = new ResumableWatch(mVContext, database,
+                Util.rowPrefixPattern(collection.id(), ""), checkpoint,
+                new ResumableWatch.RowHandler() {
+                    @Override
+                    public void onPut(String rowName, Object value) {
+                        processPut(rowName, value);
+                    }
+
+                    @Override
+                    public void onDelete(String rowName) {
+                        processDelete(rowName);
+                    }
+
+                    @Override
+                    public void onBatchEnd() {
+                        processBatchEnd();
+                    }
+                }).watchFuture;
 
         // If the watch fails with NoExistException, the collection has been deleted.
         Futures.addCallback(watchFuture, new FutureCallback<Void>() {
@@ -71,35 +104,61 @@ public class MainListTracker {
 
             @Override
             public void onFailure(@NonNull Throwable t) {
-                if (t instanceof NoExistException && mListExistsLocally) {
-                    Log.d(TAG, getNameFromId() + " destroyed");
-                    mListener.onItemDelete(getNameFromId());
+                synchronized (MainListTracker.this) {
+                    if (t instanceof NoExistException) {
+                        mSearchIndex.removeList(mKey);
+                        checkpoint.clear();
+                        if (mListExistsLocally) {
+                            Log.d(TAG, mKey + " destroyed");
+                            mListener.onItemDelete(mKey);
+                        }
+                    }
                 }
             }
         });
     }
 
-    private String getNameFromId() {
-        return SyncbasePersistence.convertIdToString(collection.id());
+    public synchronized ListMetadata getListMetadata() {
+        if (mArchived) {
+            return mLastFired;
+        }
+        return new ListMetadata(mKey, mListSpec, mNumCompletedTasks,
+                mIsTaskCompleted.size());
     }
 
-    public ListMetadata getListMetadata() {
-        return new ListMetadata(getNameFromId(), mListSpec, mNumCompletedTasks,
-                mIsTaskCompleted.size());
+    /**
+     * @return whether the list is done and has not been updated for at least the given age
+     */
+    public synchronized boolean isArchivable(long now, long minAge) {
+        return !mArchived && mLastFired != null && mLastFired.isArchivable(now, minAge);
     }
 
-    private void processWatchChange(WatchChange change) {
-        String rowName = change.getRowName();
+    public synchronized boolean isArchived() {
+        return mArchived;
+    }
+
+    /**
+     * Cancels the watch and drops all task state. The listener is not told, since the list's
+     * metadata has not changed.
+     */
+    public synchronized void archive() {
+        mArchived = true;
+        mVContext.cancel();
+        mIsTaskCompleted = Collections.emptyMap();
+        mListSpec = null;
+    }
 
+    private synchronized void processPut(String rowName, Object value) {
+        if (mArchived) {
+            return; // Already cancelled.
+        }
         if (rowName.equals(SyncbaseTodoList.LIST_METADATA_ROW_NAME)) {
-            mListSpec = SyncbasePersistence.castFromSyncbase(change.getValue(), ListSpec.class);
-        } else if (change.getChangeType() == ChangeType.DELETE_CHANGE) {
-            if (mIsTaskCompleted.remove(rowName)) {
-                mNumCompletedTasks--;
-            }
+            mListSpec = SyncbasePersistence.castFromSyncbase(value, ListSpec.class);
+            SyncbasePersistence.setListUpdatedAt(collection.id(), mListSpec.getUpdatedAt());
         } else {
-            boolean isDone = SyncbasePersistence.castFromSyncbase(change.getValue(), TaskSpec.class)
-                    .getDone();
+            TaskSpec taskSpec = SyncbasePersistence.castFromSyncbase(value, TaskSpec.class);
+            mSearchIndex.put(mKey, rowName, taskSpec.getText());
+            boolean isDone = taskSpec.getDone();
             Boolean rawWasDone = mIsTaskCompleted.put(rowName, isDone);
             boolean wasDone = rawWasDone != null && rawWasDone;
             if (!wasDone && isDone) {
@@ -108,18 +167,43 @@ public class MainListTracker {
                 mNumCompletedTasks--;
             }
         }
+    }
+
+    private synchronized void processDelete(String rowName) {
+        if (mArchived || rowName.equals(SyncbaseTodoList.LIST_METADATA_ROW_NAME)) {
+            return;
+        }
+        mSearchIndex.remove(mKey, rowName);
+        if (Boolean.TRUE.equals(mIsTaskCompleted.remove(rowName))) {
+            mNumCompletedTasks--;
+        }
+    }
 
-        // Don't fire events until we've processed the entire batch of watch events.
-        if (!change.isContinued()) {
-            ListMetadata listMetadata = getListMetadata();
-            Log.d(TAG, listMetadata.toString());
+    // Don't fire events until we've processed the entire batch of watch events.
+    private synchronized void processBatchEnd() {
+        if (mArchived) {
+            return;
+        }
+        if (!mSearchIndexRetained) {
+            // Every task has now been seen, so drop any deleted while the app was closed.
+            mSearchIndexRetained = true;
+            mSearchIndex.retainTasks(mKey, mIsTaskCompleted.keySet());
+        }
+        if (mListSpec == null) {
+            return;
+        }
+        ListMetadata listMetadata = getListMetadata();
+        Log.d(TAG, listMetadata.toString());
 
-            if (mListExistsLocally) {
+        if (mListExistsLocally) {
+            // Skip updates that don't change the metadata, e.g. edits to task text.
+            if (mLastFired.diff(listMetadata) != 0) {
                 mListener.onItemUpdate(listMetadata);
-            } else {
-                mListExistsLocally = true;
-                mListener.onItemAdd(listMetadata);
             }
+        } else {
+            mListExistsLocally = true;
+            mListener.onItemAdd(listMetadata);
         }
+        mLastFired = listMetadata;
     }
 }
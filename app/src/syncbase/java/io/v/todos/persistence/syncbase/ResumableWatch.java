@@ -0,0 +1,227 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence.syncbase;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.WatchCheckpoint;
+import io.v.v23.InputChannel;
+import io.v.v23.InputChannelCallback;
+import io.v.v23.InputChannels;
+import io.v.v23.context.VContext;
+import io.v.v23.services.syncbase.CollectionRowPattern;
+import io.v.v23.services.watch.ResumeMarker;
+import io.v.v23.syncbase.ChangeType;
+import io.v.v23.syncbase.Database;
+import io.v.v23.syncbase.WatchChange;
+import io.v.v23.verror.NoExistException;
+
+/**
+ * Watches rows starting from a {@link WatchCheckpoint}, so that only the changes made since the
+ * checkpoint are read from Syncbase. The rows in the checkpoint are handed to the
+ * {@link RowHandler} first, followed by the changes. If no other watch of the same rows is
+ * running, this watch claims the checkpoint and commits each batch of changes to it; otherwise
+ * it only reads from it.
+ * <p>
+ * If there is no checkpoint or the watch can't resume from it, e.g. because Syncbase no longer
+ * has the changes since its marker, all of the rows are read again. Rows from the checkpoint that
+ * no longer exist are then reported as deleted.
+ * <p>
+ * Values are remembered in the {@link SpecCodec} encoding for specs, and as empty otherwise, so
+ * watches whose handlers read values other than specs can't use this class.
+ */
+public class ResumableWatch {
+    private static final String TAG = ResumableWatch.class.getSimpleName();
+    private static final byte[] EMPTY = new byte[0];
+
+    public interface RowHandler {
+        /**
+         * @param value the row's value, to be read with
+         *              {@link SyncbasePersistence#castFromSyncbase(Object, Class)}
+         */
+        void onPut(String rowName, Object value);
+
+        void onDelete(String rowName);
+
+        /**
+         * Called at the end of each batch of rows, once they are consistent.
+         */
+        void onBatchEnd();
+    }
+
+    private final VContext mVContext;
+    private final Database mDatabase;
+    private final List<CollectionRowPattern> mPatterns;
+    private final WatchCheckpoint mCheckpoint;
+    private final RowHandler mHandler;
+    private final boolean mCommits;
+
+    // Only used by the watch callbacks, which are called one at a time.
+    private final Map<String, byte[]> mBatch = new HashMap<>();
+    // Rows the handler was given before having to read all rows again, but not yet seen again.
+    private Set<String> mUnconfirmed = new HashSet<>();
+    // Rows put by a watch that doesn't commit, which may be missing from the checkpoint.
+    private final Set<String> mUncommittedPuts = new HashSet<>();
+
+    public final ListenableFuture<Void> watchFuture;
+
+    public ResumableWatch(VContext vContext, Database database, CollectionRowPattern pattern,
+                          WatchCheckpoint checkpoint, RowHandler handler) {
+        mVContext = vContext;
+        mDatabase = database;
+        mPatterns = ImmutableList.of(pattern);
+        mCheckpoint = checkpoint;
+        mHandler = handler;
+        mCommits = checkpoint.claim();
+
+        byte[] resumeMarker = replay(new WatchCheckpoint.RowVisitor() {
+            @Override
+            public void onRow(String rowName, byte[] value) {
+                mHandler.onPut(rowName, value.length == 0 ? "" : value);
+            }
+        });
+        watchFuture = resumeMarker == null ? watchAll() : resume(resumeMarker);
+        if (mCommits) {
+            Futures.addCallback(watchFuture, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(@Nullable Void result) {
+                    mCheckpoint.release();
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable t) {
+                    mCheckpoint.release();
+                }
+            });
+        }
+    }
+
+    private ListenableFuture<Void> resume(byte[] resumeMarker) {
+        mHandler.onBatchEnd();
+        ListenableFuture<Void> resumed = watch(mDatabase.watch(mVContext,
+                new ResumeMarker(resumeMarker), mPatterns));
+        return Futures.catchingAsync(resumed, Exception.class,
+                new AsyncFunction<Exception, Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(Exception e) {
+                        if (e instanceof NoExistException || mVContext.isCanceled()) {
+                            return Futures.immediateFailedFuture(e);
+                        }
+                        Log.w(TAG, "Could not resume watch; reading all rows again", e);
+                        replay(new WatchCheckpoint.RowVisitor() {
+                            @Override
+                            public void onRow(String rowName, byte[] value) {
+                                mUnconfirmed.add(rowName);
+                            }
+                        });
+                        mUnconfirmed.addAll(mUncommittedPuts);
+                        mUncommittedPuts.clear();
+                        for (Map.Entry<String, byte[]> row : mBatch.entrySet()) {
+                            if (row.getValue() == null) {
+                                mUnconfirmed.remove(row.getKey());
+                            } else {
+                                mUnconfirmed.add(row.getKey());
+                            }
+                        }
+                        return watchAll();
+                    }
+                });
+    }
+
+    /**
+     * @return the checkpoint's marker, or null if the watch has to read all rows
+     */
+    private byte[] replay(WatchCheckpoint.RowVisitor visitor) {
+        try {
+            return mCheckpoint.replay(visitor);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read watch checkpoint", e);
+            return null;
+        }
+    }
+
+    private ListenableFuture<Void> watchAll() {
+        mBatch.clear();
+        if (mCommits) {
+            mCheckpoint.clear();
+        }
+        return watch(mDatabase.watch(mVContext, mPatterns));
+    }
+
+    private ListenableFuture<Void> watch(InputChannel<WatchChange> watch) {
+        return InputChannels.withCallback(watch, new InputChannelCallback<WatchChange>() {
+            @Override
+            public ListenableFuture<Void> onNext(WatchChange change) {
+                processWatchChange(change);
+                return null;
+            }
+        });
+    }
+
+    private void processWatchChange(WatchChange change) {
+        if (mVContext.isCanceled()) {
+            return; // Don't let a cancelled watch move the checkpoint.
+        }
+        String rowName = change.getRowName();
+        mUnconfirmed.remove(rowName);
+        if (change.getChangeType() == ChangeType.DELETE_CHANGE) {
+            mBatch.put(rowName, null);
+            mHandler.onDelete(rowName);
+        } else {
+            mBatch.put(rowName, encode(rowName, change.getValue()));
+            mHandler.onPut(rowName, change.getValue());
+        }
+
+        if (!change.isContinued()) {
+            // The first batch of a full watch holds every row, so any others were deleted.
+            for (String unconfirmed : mUnconfirmed) {
+                mHandler.onDelete(unconfirmed);
+            }
+            mUnconfirmed = new HashSet<>();
+            if (mCommits) {
+                mCheckpoint.commit(mBatch, change.getResumeMarker().getValue());
+            } else {
+                for (Map.Entry<String, byte[]> row : mBatch.entrySet()) {
+                    if (row.getValue() == null) {
+                        mUncommittedPuts.remove(row.getKey());
+                    } else {
+                        mUncommittedPuts.add(row.getKey());
+                    }
+                }
+            }
+            mBatch.clear();
+            mHandler.onBatchEnd();
+        }
+    }
+
+    private static byte[] encode(String rowName, Object value) {
+        if (rowName.equals(SyncbaseTodoList.LIST_METADATA_ROW_NAME)) {
+            return SpecCodec.encode(SyncbasePersistence.castFromSyncbase(value, ListSpec.class));
+        } else if (rowName.startsWith(SyncbaseTodoList.TASKS_PREFIX)) {
+            return SpecCodec.encode(SyncbasePersistence.castFromSyncbase(value, TaskSpec.class));
+        } else {
+            return EMPTY;
+        }
+    }
+}
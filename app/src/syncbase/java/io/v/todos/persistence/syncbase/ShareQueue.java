@@ -0,0 +1,222 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence.syncbase;
+
+import android.util.Log;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.v.v23.context.VContext;
+import io.v.v23.security.BlessingPattern;
+import io.v.v23.security.access.Constants;
+import io.v.v23.security.access.Permissions;
+import io.v.v23.services.syncbase.SyncgroupSpec;
+import io.v.v23.syncbase.Collection;
+import io.v.v23.syncbase.Syncgroup;
+import io.v.v23.verror.BadVersionException;
+
+/**
+ * Grants access to a todo list. Requests made within {@link #DEBOUNCE_DELAY} of each other or
+ * while an update is in flight are merged, and each update changes the syncgroup spec and the
+ * collection permissions in parallel, so that sharing a list with many people at once costs about
+ * one round trip.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ShareQueue {
+    private static final String TAG = ShareQueue.class.getSimpleName();
+    private static final long DEBOUNCE_DELAY = 250;
+    // The syncgroup spec is versioned, so an update can lose to a concurrent one and be retried.
+    private static final int MAX_SPEC_ATTEMPTS = 5;
+
+    private final VContext mVContext;
+    private final Syncgroup mSyncgroup;
+    private final Collection mCollection;
+    private final ListeningScheduledExecutorService mExecutor;
+    private final Function<List<BlessingPattern>, Void> mOnSharedTo;
+
+    // All of the following are guarded by this.
+    private Set<String> mPending = new LinkedHashSet<>();
+    private SettableFuture<Void> mPendingDone;
+    private boolean mFlushScheduled;
+    private boolean mInFlight;
+
+    /**
+     * @param onSharedTo called with the readers of the syncgroup after each update
+     */
+    public ShareQueue(VContext vContext, Syncgroup syncgroup, Collection collection,
+                      ListeningScheduledExecutorService executor,
+                      Function<List<BlessingPattern>, Void> onSharedTo) {
+        mVContext = vContext;
+        mSyncgroup = syncgroup;
+        mCollection = collection;
+        mExecutor = executor;
+        mOnSharedTo = onSharedTo;
+    }
+
+    /**
+     * @return a future for the update that will include these blessings
+     */
+    public synchronized ListenableFuture<Void> share(Iterable<String> blessings) {
+        Iterables.addAll(mPending, blessings);
+        if (mPendingDone == null) {
+            mPendingDone = SettableFuture.create();
+        }
+        ListenableFuture<Void> done = mPendingDone;
+        scheduleFlush();
+        return done;
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled || mInFlight || mPending.isEmpty()) {
+            return;
+        }
+        mFlushScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final Set<String> blessings;
+        SettableFuture<Void> done;
+        synchronized (this) {
+            blessings = mPending;
+            done = mPendingDone;
+            mPending = new LinkedHashSet<>();
+            mPendingDone = null;
+            mFlushScheduled = false;
+            mInFlight = true;
+        }
+
+        ListenableFuture<Void> update = Futures.transform(Futures.allAsList(
+                updateSyncgroupSpec(blessings, 1), updateCollectionPermissions(blessings)),
+                new Function<List<Void>, Void>() {
+                    @Override
+                    public Void apply(List<Void> input) {
+                        return null;
+                    }
+                });
+        done.setFuture(update);
+        Futures.addCallback(update, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                finishFlush();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                finishFlush();
+            }
+        });
+    }
+
+    private synchronized void finishFlush() {
+        mInFlight = false;
+        scheduleFlush();
+    }
+
+    private ListenableFuture<Void> updateSyncgroupSpec(final Set<String> blessings,
+                                                       final int attempt) {
+        ListenableFuture<Void> update = Futures.transformAsync(mSyncgroup.getSpec(mVContext),
+                new AsyncFunction<Map<String, SyncgroupSpec>, Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(Map<String, SyncgroupSpec> specMap) {
+                        String version = Iterables.getOnlyElement(specMap.keySet());
+                        SyncgroupSpec spec = specMap.get(version);
+                        Permissions perms = spec.getPerms();
+                        // TODO(alexfandrianto): Revisit whether we should really be adding all
+                        // invitees to the list of admins for this syncgroup. Since we manually
+                        // hide the Share button from those who aren't the creator, we can leave
+                        // this for the demo.
+                        boolean changed = addPermissions(perms, blessings,
+                                Constants.READ.getValue());
+                        changed |= addPermissions(perms, blessings, Constants.ADMIN.getValue());
+
+                        final List<BlessingPattern> readers =
+                                perms.get(Constants.READ.getValue()).getIn();
+                        ListenableFuture<Void> set = changed ?
+                                mSyncgroup.setSpec(mVContext, spec, version) :
+                                Futures.<Void>immediateFuture(null);
+                        return Futures.transform(set, new Function<Void, Void>() {
+                            @Override
+                            public Void apply(Void input) {
+                                mOnSharedTo.apply(readers);
+                                return null;
+                            }
+                        });
+                    }
+                });
+        if (attempt == MAX_SPEC_ATTEMPTS) {
+            return update;
+        }
+        return Futures.catchingAsync(update, BadVersionException.class,
+                new AsyncFunction<BadVersionException, Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(BadVersionException e) {
+                        Log.d(TAG, "Syncgroup spec changed concurrently; retry " + attempt);
+                        return updateSyncgroupSpec(blessings, attempt + 1);
+                    }
+                });
+    }
+
+    private ListenableFuture<Void> updateCollectionPermissions(final Set<String> blessings) {
+        return Futures.transformAsync(mCollection.getPermissions(mVContext),
+                new AsyncFunction<Permissions, Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(Permissions perms) {
+                        boolean changed = addPermissions(perms, blessings,
+                                Constants.READ.getValue());
+                        changed |= addPermissions(perms, blessings, Constants.WRITE.getValue());
+                        return changed ? mCollection.setPermissions(mVContext, perms) :
+                                Futures.<Void>immediateFuture(null);
+                    }
+                });
+    }
+
+    // TODO(alexfandrianto): We should consider moving this helper into the main Java repo.
+    // https://github.com/vanadium/issues/issues/1321
+    /**
+     * Adds the blessings to the access list for the tag, dropping any duplicate patterns.
+     *
+     * @return whether the access list changed
+     */
+    static boolean addPermissions(Permissions perms, Iterable<String> blessings, String tag) {
+        List<BlessingPattern> patterns = perms.get(tag).getIn();
+        Set<String> present = new HashSet<>();
+        boolean changed = false;
+        for (Iterator<BlessingPattern> it = patterns.iterator(); it.hasNext(); ) {
+            if (!present.add(it.next().toString())) {
+                it.remove();
+                changed = true;
+            }
+        }
+        for (String blessing : blessings) {
+            if (present.add(blessing)) {
+                patterns.add(new BlessingPattern(blessing));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
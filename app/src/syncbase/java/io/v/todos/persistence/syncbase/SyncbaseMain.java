@@ -14,11 +14,14 @@ import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -26,17 +29,33 @@ import javax.annotation.Nullable;
 import io.v.impl.google.services.syncbase.SyncbaseServer;
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.ListArchive;
+import io.v.todos.persistence.ListArchiveStore;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.MainPersistence;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.SyncPriorityTracker;
+import io.v.todos.persistence.TaskSearchIndex;
+import io.v.todos.persistence.TaskSearchIndexStore;
+import io.v.v23.InputChannel;
 import io.v.v23.InputChannelCallback;
+import io.v.v23.InputChannels;
+import io.v.v23.VFutures;
 import io.v.v23.security.access.Constants;
 import io.v.v23.security.access.Permissions;
+import io.v.v23.services.syncbase.BatchOptions;
+import io.v.v23.services.syncbase.CollectionRowPattern;
 import io.v.v23.services.syncbase.Id;
+import io.v.v23.services.syncbase.KeyValue;
 import io.v.v23.services.syncbase.SyncgroupJoinFailedException;
 import io.v.v23.services.syncbase.SyncgroupMemberInfo;
 import io.v.v23.services.syncbase.SyncgroupSpec;
+import io.v.v23.syncbase.Batch;
+import io.v.v23.syncbase.BatchDatabase;
 import io.v.v23.syncbase.ChangeType;
 import io.v.v23.syncbase.Collection;
+import io.v.v23.syncbase.RowRange;
 import io.v.v23.syncbase.WatchChange;
 import io.v.v23.syncbase.util.Util;
 import io.v.v23.verror.NoExistException;
@@ -48,9 +67,20 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
 
     private static final int DEFAULT_MAX_JOIN_ATTEMPTS = 30;
     private static final long MIN_RETRY_DELAY = 1000;
+    /**
+     * How long a list must have been done and unchanged before it is archived. This is the age at
+     * which lists drop to the stale sync priority, so archived lists always sync at it.
+     */
+    public static final long ARCHIVE_AGE = SyncPriorityTracker.STALE_MILLIS;
+    private static final long ARCHIVE_SWEEP_PERIOD = TimeUnit.MINUTES.toMillis(10);
 
     private final IdGenerator mIdGenerator = new IdGenerator(IdAlphabets.COLLECTION_ID, true);
-    private final Map<String, MainListTracker> mTaskTrackers = new HashMap<>();
+    // Written by watch threads and read by the archive sweep. Archived lists are not tracked.
+    private final Map<String, MainListTracker> mTaskTrackers = new ConcurrentHashMap<>();
+    private final ListArchive mArchive;
+    private final TaskSearchIndex mSearchIndex;
+    private final ListEventListener<ListMetadata> mListener;
+    private final ScheduledFuture<?> mArchiveSweep;
 
     /**
      * This constructor blocks until the instance is ready for use.
@@ -59,64 +89,185 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
                         final ListEventListener<ListMetadata> listener)
             throws VException, SyncbaseServer.StartException {
         super(activity, savedInstanceState);
+        mSearchIndex = TaskSearchIndexStore.getIndex(activity);
+        mArchive = ListArchiveStore.getArchive(activity);
+        mListener = listener;
+
+        // Archived lists are shown from their snapshots, without watching their tasks.
+        for (ListMetadata snapshot : mArchive.getAll()) {
+            listener.onItemAdd(snapshot);
+        }
 
         // Prepare a watch on top of the userdata collection to determine which todo lists need to
         // be tracked by this application.
-        trap(watchUserCollection(new InputChannelCallback<WatchChange>() {
+        trap(watchUserCollection(new ResumableWatch.RowHandler() {
             @Override
-            public ListenableFuture<Void> onNext(WatchChange change) {
+            public void onPut(String rowName, Object value) {
                 try {
-                    final String listIdStr = change.getRowName();
-                    final Id listId = convertStringToId(listIdStr);
-
-                    if (change.getChangeType() == ChangeType.DELETE_CHANGE) {
-                        // (this is idempotent)
-                        Log.d(TAG, listIdStr + " removed from index");
-                        deleteTodoList(listIdStr);
-                    } else {
-                        // If we are tracking this list already, don't bother doing anything.
-                        // This might happen if a same-user device did a simultaneous put into the
-                        // userdata collection.
-                        if (mTaskTrackers.get(listIdStr) != null) {
-                            return null;
-                        }
-
-                        mIdGenerator.registerId(listId.getName().substring(LISTS_PREFIX.length()));
-
-                        Log.d(TAG, "Found a list id from userdata watch: " + listId.getName() +
-                                " with owner: " + listId.getBlessing());
-                        trap(joinWithRetry(listId));
-
-                        MainListTracker listTracker = new MainListTracker(getVContext(),
-                                getDatabase(), listId, listener);
-                        mTaskTrackers.put(listIdStr, listTracker);
-
-                        // If the watch fails with NoExistException, the collection has been deleted.
-                        Futures.addCallback(listTracker.watchFuture, new SyncTrappingCallback<Void>() {
-                            @Override
-                            public void onFailure(@NonNull Throwable t) {
-                                if (t instanceof NoExistException) {
-                                    // (this is idempotent)
-                                    trap(getUserCollection().delete(getVContext(), listIdStr));
-                                } else {
-                                    super.onFailure(t);
-                                }
-                            }
-                        });
+                    final Id listId = convertStringToId(rowName);
+                    // Use the canonical key rather than the row name read by the watch.
+                    final String listIdStr = convertIdToString(listId);
+
+                    // If we are tracking this list already, don't bother doing anything.
+                    // This might happen if a same-user device did a simultaneous put into the
+                    // userdata collection.
+                    if (mTaskTrackers.get(listIdStr) != null) {
+                        return;
+                    }
+
+                    mIdGenerator.registerId(listId.getName().substring(LISTS_PREFIX.length()));
+                    if (mArchive.contains(listIdStr)) {
+                        // Already joined and shown. The metadata watch restores it on change.
+                        return;
                     }
+
+                    Log.d(TAG, "Found a list id from userdata watch: " + listId.getName() +
+                            " with owner: " + listId.getBlessing());
+                    trap(joinWithRetry(listId));
+                    trackList(listId, null);
                 } catch (Exception e) {
                     Log.w(TAG, "Error during watch handle", e);
                 }
-                return null;
+            }
+
+            @Override
+            public void onDelete(String rowName) {
+                try {
+                    String listIdStr = convertIdToString(convertStringToId(rowName));
+                    // (this is idempotent)
+                    Log.d(TAG, listIdStr + " removed from index");
+                    deleteTodoList(listIdStr);
+                } catch (Exception e) {
+                    Log.w(TAG, "Error during watch handle", e);
+                }
+            }
+
+            // Only used by the watch callbacks, which are called one at a time.
+            private boolean mSearchIndexRetained;
+
+            @Override
+            public void onBatchEnd() {
+                if (!mSearchIndexRetained) {
+                    // Every list has now been seen, so drop any deleted while the app was closed.
+                    mSearchIndexRetained = true;
+                    mSearchIndex.retainLists(mTaskTrackers.keySet());
+                }
             }
         }));
+
+        // A single watch on the metadata of every list brings archived lists back when they
+        // change. Every change to a list's tasks also updates its metadata.
+        trap(InputChannels.withCallback(getDatabase().watch(getVContext(), ImmutableList.of(
+                new CollectionRowPattern("%", LISTS_PREFIX + "%",
+                        SyncbaseTodoList.LIST_METADATA_ROW_NAME))),
+                new InputChannelCallback<WatchChange>() {
+                    @Override
+                    public ListenableFuture<Void> onNext(WatchChange change) {
+                        restoreIfChanged(change);
+                        return null;
+                    }
+                }));
+
+        mArchiveSweep = sExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                archiveStaleLists();
+            }
+        }, ARCHIVE_SWEEP_PERIOD, ARCHIVE_SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking a list with a full watch.
+     *
+     * @param archived the list's metadata snapshot if it is being restored from the archive
+     */
+    private void trackList(Id listId, @Nullable ListMetadata archived) {
+        final String listIdStr = convertIdToString(listId);
+        final MainListTracker listTracker = new MainListTracker(getVContext(), getDatabase(),
+                listId, mListener, mSearchIndex,
+                getWatchCheckpoint(LIST_WATCH_PREFIX + listIdStr), archived);
+        mTaskTrackers.put(listIdStr, listTracker);
+
+        // If the watch fails with NoExistException, the collection has been deleted.
+        Futures.addCallback(listTracker.watchFuture, new SyncTrappingCallback<Void>() {
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                if (t instanceof NoExistException) {
+                    // (this is idempotent)
+                    trap(getUserCollection().delete(getVContext(), listIdStr));
+                } else if (!listTracker.isArchived()) {
+                    super.onFailure(t);
+                }
+            }
+        });
+    }
+
+    private void restoreIfChanged(WatchChange metadataChange) {
+        Id listId = metadataChange.getCollectionId();
+        // The watch starts by replaying the current metadata, which is unchanged.
+        Long updatedAt = metadataChange.getChangeType() == ChangeType.PUT_CHANGE ?
+                castFromSyncbase(metadataChange.getValue(), ListSpec.class).getUpdatedAt() : null;
+        ListMetadata snapshot = mArchive.restoreIfChanged(convertIdToString(listId), updatedAt);
+        if (snapshot != null) {
+            Log.d(TAG, "Restoring " + listId + " from the archive");
+            trackList(listId, snapshot);
+        }
+    }
+
+    /**
+     * Archives lists that have been done for a while, dropping their watches, task state and
+     * search entries, and moving their snapshots to the persisted {@link ListArchive}. Opening an
+     * archived list still shows its tasks, since {@link SyncbaseTodoList} reads them from the
+     * store.
+     */
+    private void archiveStaleLists() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, MainListTracker> entry : mTaskTrackers.entrySet()) {
+            String key = entry.getKey();
+            MainListTracker tracker = entry.getValue();
+            if (tracker.isArchivable(now, ARCHIVE_AGE) && mTaskTrackers.remove(key, tracker)) {
+                Log.d(TAG, "Archiving " + tracker.collection.id());
+                tracker.archive();
+                mArchive.add(tracker.getListMetadata());
+                mSearchIndex.removeList(key);
+                releaseListKey(key);
+            }
+        }
+    }
+
+    @Override
+    public List<TaskSearchIndex.Hit> searchTasks(String query, int limit) {
+        return mSearchIndex.search(query, limit);
     }
 
     @Override
-    public String addTodoList(final ListSpec listSpec) {
+    public void close() {
+        mArchiveSweep.cancel(false);
+        super.close();
+    }
+
+    @Override
+    public String addTodoList(ListSpec listSpec) {
+        return createTodoList(listSpec, null);
+    }
+
+    @Override
+    public String duplicateTodoList(String key, ListSpec listSpec) {
+        if (!mTaskTrackers.containsKey(key)) {
+            return null;
+        }
+        return createTodoList(listSpec, convertStringToId(key));
+    }
+
+    /**
+     * @param source the list to copy the tasks of, if any
+     */
+    private String createTodoList(final ListSpec listSpec, @Nullable final Id source) {
         final String listName = LISTS_PREFIX + mIdGenerator.generateTailId();
         final Id listId = new Id(getPersonalBlessingsString(), listName);
         final Collection listCollection = getDatabase().getCollection(listId);
+        // So that the syncgroup is created with the priority of a recently updated list.
+        setListUpdatedAt(listId, listSpec.getUpdatedAt());
         Permissions permissions = Util.filterPermissionsByTags(
                 computePermissionsFromBlessings(getPersonalBlessings()),
                 io.v.v23.services.syncbase.Constants.ALL_COLLECTION_TAGS);
@@ -125,8 +276,10 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
                     @Override
                     public void onSuccess(@Nullable Void result) {
                         // These can happen in any order.
-                        trap(listCollection.put(getVContext(),
-                                SyncbaseTodoList.LIST_METADATA_ROW_NAME, listSpec));
+                        trap(source == null ? listCollection.put(getVContext(),
+                                SyncbaseTodoList.LIST_METADATA_ROW_NAME,
+                                SpecCodec.toSyncbase(listSpec)) :
+                                copyTodoList(source, listId, listSpec));
                         trap(rememberTodoList(listId));
                         // TODO(alexfandrianto): Syncgroup creation is slow if you specify a cloud
                         // and are offline. https://github.com/vanadium/issues/issues/1326
@@ -136,8 +289,43 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
         return convertIdToString(listId);
     }
 
+    /**
+     * Writes the spec and copies of the tasks of the source list to a new list, in one batch.
+     */
+    private ListenableFuture<Void> copyTodoList(final Id source, final Id listId,
+                                               final ListSpec listSpec) {
+        return Batch.runInBatch(getVContext(), getDatabase(), new BatchOptions(),
+                new Batch.BatchOperation() {
+                    @Override
+                    public ListenableFuture<Void> run(final BatchDatabase db) {
+                        return sExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                Collection list = db.getCollection(listId);
+                                List<ListenableFuture<Void>> puts = new ArrayList<>();
+                                puts.add(list.put(getVContext(),
+                                        SyncbaseTodoList.LIST_METADATA_ROW_NAME,
+                                        SpecCodec.toSyncbase(listSpec)));
+                                InputChannel<KeyValue> scan = db.getCollection(source).scan(
+                                        getVContext(),
+                                        RowRange.prefix(SyncbaseTodoList.TASKS_PREFIX));
+                                // Task keys only need to be unique within a list.
+                                for (KeyValue kv : InputChannels.asIterable(scan)) {
+                                    TaskSpec taskSpec = castFromSyncbase(
+                                            kv.getValue().getElem(), TaskSpec.class);
+                                    puts.add(list.put(getVContext(), kv.getKey(),
+                                            SpecCodec.toSyncbase(taskSpec)));
+                                }
+                                VFutures.sync(Futures.allAsList(puts));
+                                return null;
+                            }
+                        });
+                    }
+                });
+    }
+
     private ListenableFuture<SyncgroupSpec> joinListSyncgroup(Id listId) {
-        SyncgroupMemberInfo memberInfo = getDefaultMemberInfo();
+        SyncgroupMemberInfo memberInfo = getListMemberInfo(listId);
         String sgName = computeListSyncgroupName(listId.getName());
         return getDatabase().getSyncgroup(new Id(listId.getBlessing(), sgName)).join(getVContext(),
                 CLOUD_NAME, Arrays.asList(CLOUD_BLESSING), memberInfo);
@@ -195,7 +383,7 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
                 computePermissionsFromBlessings(getPersonalBlessings()),
                 io.v.v23.services.syncbase.Constants.ALL_SYNCGROUP_TAGS);
 
-        SyncgroupMemberInfo memberInfo = getDefaultMemberInfo();
+        SyncgroupMemberInfo memberInfo = getListMemberInfo(id);
 
         SyncgroupSpec spec = new SyncgroupSpec(
                 "TODO list", CLOUD_NAME, permissions,
@@ -208,9 +396,96 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
 
     @Override
     public void deleteTodoList(String key) {
+        trap(destroyTodoList(key));
+    }
+
+    @Override
+    public void deleteTodoLists(Iterable<String> keys) {
+        // Collections can't be destroyed in a batch, so all of the destroys are issued before
+        // waiting on any of them.
+        List<ListenableFuture<Void>> destroys = new ArrayList<>();
+        for (String key : keys) {
+            destroys.add(destroyTodoList(key));
+        }
+        trap(Futures.allAsList(destroys));
+    }
+
+    /**
+     * Stops tracking a list and starts destroying its collection.
+     */
+    private ListenableFuture<Void> destroyTodoList(String key) {
+        mSearchIndex.removeList(key);
+        ListenableFuture<Void> destroy = Futures.immediateFuture(null);
         MainListTracker tracker = mTaskTrackers.remove(key);
         if (tracker != null) {
-            trap(tracker.collection.destroy(getVContext()));
+            forgetListSyncPriority(tracker.collection.id());
+            destroy = tracker.collection.destroy(getVContext());
+        } else if (mArchive.remove(key) != null) {
+            // Without a tracker, nothing else reports the deletion.
+            Id listId = convertStringToId(key);
+            forgetListSyncPriority(listId);
+            removeWatchCheckpoint(LIST_WATCH_PREFIX + key);
+            destroy = getDatabase().getCollection(listId).destroy(getVContext());
+            mListener.onItemDelete(key);
+        }
+        releaseListKey(key);
+        return destroy;
+    }
+
+    @Override
+    public void completeTodoLists(Iterable<String> keys) {
+        final List<Id> listIds = new ArrayList<>();
+        for (String key : keys) {
+            if (mTaskTrackers.containsKey(key)) {
+                listIds.add(convertStringToId(key));
+            }
+        }
+        if (listIds.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        trap(Batch.runInBatch(getVContext(), getDatabase(), new BatchOptions(),
+                new Batch.BatchOperation() {
+                    @Override
+                    public ListenableFuture<Void> run(final BatchDatabase db) {
+                        return sExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                List<ListenableFuture<Void>> puts = new ArrayList<>();
+                                for (Id listId : listIds) {
+                                    completeTodoList(db.getCollection(listId), now, puts);
+                                }
+                                VFutures.sync(Futures.allAsList(puts));
+                                return null;
+                            }
+                        });
+                    }
+                }));
+    }
+
+    /**
+     * Adds the puts that mark every task of the list done, and update its timestamp if any were
+     * open, to a batch.
+     */
+    private void completeTodoList(Collection list, long now, List<ListenableFuture<Void>> puts)
+            throws VException {
+        InputChannel<KeyValue> scan = list.scan(getVContext(),
+                RowRange.prefix(SyncbaseTodoList.TASKS_PREFIX));
+        boolean changed = false;
+        for (KeyValue kv : InputChannels.asIterable(scan)) {
+            TaskSpec taskSpec = castFromSyncbase(kv.getValue().getElem(), TaskSpec.class);
+            if (!taskSpec.getDone()) {
+                taskSpec.setDone(true);
+                puts.add(list.put(getVContext(), kv.getKey(), SpecCodec.toSyncbase(taskSpec)));
+                changed = true;
+            }
+        }
+        if (changed) {
+            ListSpec listSpec = VFutures.sync(getSpec(list,
+                    SyncbaseTodoList.LIST_METADATA_ROW_NAME, ListSpec.class));
+            listSpec.setUpdatedAt(now);
+            puts.add(list.put(getVContext(), SyncbaseTodoList.LIST_METADATA_ROW_NAME,
+                    SpecCodec.toSyncbase(listSpec)));
         }
     }
 }
@@ -32,6 +32,7 @@ import org.joda.time.Duration;
 import org.joda.time.format.DateTimeFormat;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -40,6 +41,8 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 
 import io.v.android.inspectors.RemoteInspectors;
@@ -52,12 +55,16 @@ import io.v.android.security.BlessingsManager;
 import io.v.android.v23.V;
 import io.v.impl.google.services.syncbase.SyncbaseServer;
 import io.v.todos.R;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
 import io.v.todos.persistence.Persistence;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.SyncPriorityTracker;
+import io.v.todos.persistence.SyncPriorityTracker.Priority;
+import io.v.todos.persistence.WatchCheckpoint;
+import io.v.todos.persistence.WatchCheckpointStore;
 import io.v.todos.sharing.NeighborhoodFragment;
 import io.v.todos.sharing.Sharing;
-import io.v.v23.InputChannel;
-import io.v.v23.InputChannelCallback;
-import io.v.v23.InputChannels;
 import io.v.v23.VFutures;
 import io.v.v23.context.VContext;
 import io.v.v23.naming.Endpoint;
@@ -77,7 +84,6 @@ import io.v.v23.syncbase.Database;
 import io.v.v23.syncbase.Syncbase;
 import io.v.v23.syncbase.SyncbaseService;
 import io.v.v23.syncbase.Syncgroup;
-import io.v.v23.syncbase.WatchChange;
 import io.v.v23.syncbase.util.Util;
 import io.v.v23.vdl.VdlStruct;
 import io.v.v23.verror.ExistException;
@@ -103,6 +109,11 @@ public class SyncbasePersistence implements Persistence {
             DEFAULT_APP_BLESSING_STRING = "dev.v" +
                     ".io:o:608941808256-43vtfndets79kf5hac8ieujto8837660" +
                     ".apps.googleusercontent.com";
+    // Names of the checkpoints that resumable watches start from, one per watched collection;
+    // see ResumableWatch.
+    protected static final String
+            USER_WATCH_NAME = "userdata",
+            LIST_WATCH_PREFIX = "list_";
     protected static final long
             SHORT_TIMEOUT = 2500,
             MEMBER_TIMER_DELAY = 100,
@@ -128,6 +139,19 @@ public class SyncbasePersistence implements Persistence {
     protected static final ListeningScheduledExecutorService sExecutor =
             MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(10));
 
+    /**
+     * Syncbase sync priorities by priority class, with higher values more urgent. NORMAL keeps the
+     * priority every syncgroup was joined with before lists were prioritized, so a list that is
+     * neither open, recent nor stale syncs as it always has. The other classes sit around it at
+     * even steps, leaving room to add a class between two others without renumbering them.
+     */
+    private static final Map<Priority, Byte> SYNC_PRIORITIES = ImmutableMap.of(
+            Priority.STALE, (byte) 1,
+            Priority.NORMAL, (byte) 3,
+            Priority.RECENT, (byte) 5,
+            Priority.OPEN, (byte) 7);
+    private static final SyncPriorityTracker<Id> sSyncPriorities = new SyncPriorityTracker<>();
+
     private static final Object sVContextMutex = new Object();
     private static VAndroidContext<Context> sVAndroidContext;
 
@@ -418,26 +442,91 @@ public class SyncbasePersistence implements Persistence {
     }
 
     protected static SyncgroupMemberInfo getDefaultMemberInfo() {
+        return getMemberInfo(Priority.NORMAL);
+    }
+
+    private static SyncgroupMemberInfo getMemberInfo(Priority priority) {
         SyncgroupMemberInfo memberInfo = new SyncgroupMemberInfo();
-        memberInfo.setSyncPriority((byte) 3);
+        memberInfo.setSyncPriority(SYNC_PRIORITIES.get(priority));
         return memberInfo;
+    }
+
+    /**
+     * Syncbase only takes member info when a syncgroup is joined or created, and has no call to
+     * change it afterwards. Joining again is not known to replace the member info of the first
+     * join, so a list's sync priority is only set here, from how recently it was updated, and is
+     * kept for as long as this device stays a member.
+     *
+     * @return the member info to join or create a list's syncgroup with
+     */
+    protected static SyncgroupMemberInfo getListMemberInfo(Id listId) {
+        return getMemberInfo(sSyncPriorities.assign(listId, System.currentTimeMillis()));
+    }
 
+    protected static void setListUpdatedAt(Id listId, long updatedAt) {
+        sSyncPriorities.setUpdatedAt(listId, updatedAt);
+    }
+
+    protected static void forgetListSyncPriority(Id listId) {
+        sSyncPriorities.remove(listId);
     }
 
     protected static String computeListSyncgroupName(String listId) {
         return LIST_COLLECTION_SYNCGROUP_PREFIX + listId;
     }
 
-    private static String BLESSING_NAME_SEPARATOR = "___";
+    private static final String BLESSING_NAME_SEPARATOR = "___";
+
+    // Canonical list keys and ids. Keys are long (they include a blessing) and are hashed and
+    // compared on every watch event, so conversions hand out shared instances. Entries are
+    // released when their list is deleted or archived, so these only hold the tracked lists.
+    private static final ConcurrentMap<Id, String> sKeysById = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Id> sIdsByKey = new ConcurrentHashMap<>();
 
+    /**
+     * @return the canonical key for the list id
+     */
     public static String convertIdToString(Id id) {
-        // Put the name first since it has a useful prefix for watch to switch on.
-        return id.getName() + BLESSING_NAME_SEPARATOR + id.getBlessing();
+        String key = sKeysById.get(id);
+        if (key == null) {
+            // Put the name first since it has a useful prefix for watch to switch on.
+            key = id.getName() + BLESSING_NAME_SEPARATOR + id.getBlessing();
+            String existing = sKeysById.putIfAbsent(id, key);
+            if (existing != null) {
+                return existing;
+            }
+            sIdsByKey.putIfAbsent(key, id);
+        }
+        return key;
     }
 
+    /**
+     * @return the canonical id for the list key, which must not be modified
+     */
     public static Id convertStringToId(String idString) {
-        String[] parts = idString.split(BLESSING_NAME_SEPARATOR);
-        return new Id(parts[1], parts[0]);
+        Id id = sIdsByKey.get(idString);
+        if (id == null) {
+            int separator = idString.indexOf(BLESSING_NAME_SEPARATOR);
+            id = new Id(idString.substring(separator + BLESSING_NAME_SEPARATOR.length()),
+                    idString.substring(0, separator));
+            Id existing = sIdsByKey.putIfAbsent(idString, id);
+            if (existing != null) {
+                return existing;
+            }
+            sKeysById.putIfAbsent(id, idString);
+        }
+        return id;
+    }
+
+    /**
+     * Drops the canonical key and id of a list that is no longer tracked. Later conversions
+     * return new, equal instances.
+     */
+    protected static void releaseListKey(String key) {
+        Id id = sIdsByKey.remove(key);
+        if (id != null) {
+            sKeysById.remove(id);
+        }
     }
 
     private static volatile boolean sInitialized;
@@ -453,6 +542,9 @@ public class SyncbasePersistence implements Persistence {
      * <li><a href="https://github.com/vanadium/issues/issues/1305">#1305</a>
      * <li><a href="https://github.com/vanadium/issues/issues/1310">#1310</a>
      * </ul>
+     *
+     * @throws IllegalArgumentException if the value is a compact spec that can't be decoded, with
+     *                                  the decode error as its cause
      */
     @SuppressWarnings("unchecked")
     public static <T> T castFromSyncbase(Object watchValue, Class<T> type) {
@@ -460,6 +552,17 @@ public class SyncbasePersistence implements Persistence {
             return (T) watchValue;
         }
 
+        if (watchValue instanceof byte[] &&
+                (type == ListSpec.class || type == TaskSpec.class)) {
+            try {
+                return SpecCodec.decode((byte[]) watchValue, type);
+            } catch (IOException e) {
+                // Most likely written by a newer version of the app.
+                throw new IllegalArgumentException("Could not decode compact " +
+                        type.getSimpleName(), e);
+            }
+        }
+
         try {
             return (T) VomUtil.decode(VomUtil.encode((VdlStruct) watchValue), type);
         } catch (VException e) {
@@ -468,6 +571,20 @@ public class SyncbasePersistence implements Persistence {
         }
     }
 
+    /**
+     * Reads a spec row in either encoding.
+     */
+    protected <T> ListenableFuture<T> getSpec(Collection collection, String rowName,
+                                              final Class<T> type) {
+        return Futures.transform(collection.get(getVContext(), rowName, Object.class),
+                new Function<Object, T>() {
+                    @Override
+                    public T apply(Object value) {
+                        return castFromSyncbase(value, type);
+                    }
+                });
+    }
+
     protected class SyncTrappingCallback<T> extends TrappingCallback<T> {
         public SyncTrappingCallback() {
             super(R.string.err_sync, TAG, getErrorReporter());
@@ -605,11 +722,22 @@ public class SyncbasePersistence implements Persistence {
         return sUserCollection.put(getAppVContext(), convertIdToString(listId), "");
     }
 
-    public static ListenableFuture<Void> watchUserCollection(InputChannelCallback<WatchChange>
-                                                                     callback) {
-        InputChannel<WatchChange> watch = sDatabase.watch(getAppVContext(),
-                ImmutableList.of(Util.rowPrefixPattern(sUserCollection.id(), LISTS_PREFIX)));
-        return InputChannels.withCallback(watch, callback);
+    /**
+     * Watches the index of lists in the userdata collection, resuming from where the last watch
+     * left off.
+     */
+    public static ListenableFuture<Void> watchUserCollection(ResumableWatch.RowHandler handler) {
+        return new ResumableWatch(getAppVContext(), sDatabase,
+                Util.rowPrefixPattern(sUserCollection.id(), LISTS_PREFIX),
+                getWatchCheckpoint(USER_WATCH_NAME), handler).watchFuture;
+    }
+
+    protected static WatchCheckpoint getWatchCheckpoint(String watchName) {
+        return WatchCheckpointStore.getCheckpoint(getAppContext(), watchName);
+    }
+
+    protected static void removeWatchCheckpoint(String watchName) {
+        WatchCheckpointStore.removeCheckpoint(getAppContext(), watchName);
     }
 
     public static Timer watchSharedTo(final Id listId, final Function<List<BlessingPattern>,
@@ -13,16 +13,12 @@ import android.util.Log;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.concurrent.Callable;
 
@@ -30,24 +26,22 @@ import io.v.impl.google.services.syncbase.SyncbaseServer;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
 import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.TaskWindow;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.persistence.TodoListPersistence;
+import io.v.todos.persistence.WatchCheckpoint;
 import io.v.todos.sharing.ShareListMenuFragment;
 import io.v.v23.InputChannel;
 import io.v.v23.InputChannelCallback;
 import io.v.v23.InputChannels;
 import io.v.v23.VFutures;
 import io.v.v23.security.BlessingPattern;
-import io.v.v23.security.access.AccessList;
-import io.v.v23.security.access.Constants;
-import io.v.v23.security.access.Permissions;
 import io.v.v23.services.syncbase.BatchOptions;
 import io.v.v23.services.syncbase.Id;
 import io.v.v23.services.syncbase.KeyValue;
-import io.v.v23.services.syncbase.SyncgroupSpec;
 import io.v.v23.syncbase.Batch;
 import io.v.v23.syncbase.BatchDatabase;
-import io.v.v23.syncbase.ChangeType;
 import io.v.v23.syncbase.Collection;
 import io.v.v23.syncbase.RowRange;
 import io.v.v23.syncbase.Syncgroup;
@@ -68,8 +62,9 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     private final Collection mList;
     private final TodoListListener mListener;
     private final IdGenerator mIdGenerator = new IdGenerator(IdAlphabets.ROW_NAME, true);
-    private final Set<String> mTaskIds = new HashSet<>();
+    private final TaskWindow mTaskWindow;
     private final Timer mMemberTimer;
+    private final ShareQueue mShareQueue;
     private ShareListMenuFragment mShareListMenuFragment;
 
     @Override
@@ -106,21 +101,56 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
         }
 
         mList = getDatabase().getCollection(listId);
-        InputChannel<WatchChange> listWatch = getDatabase().watch(getVContext(),
-                ImmutableList.of(Util.rowPrefixPattern(mList.id(), "")));
-        ListenableFuture<Void> listWatchFuture = InputChannels.withCallback(listWatch,
-                new InputChannelCallback<WatchChange>() {
+        mTaskWindow = new TaskWindow(listener, new TaskWindow.Loader() {
+            @Override
+            public void load(final String key) {
+                ListenableFuture<TaskSpec> get = getSpec(mList, key, TaskSpec.class);
+                Futures.addCallback(get, new SyncTrappingCallback<TaskSpec>() {
                     @Override
-                    public ListenableFuture<Void> onNext(WatchChange change) {
-                        processWatchChange(change);
-                        return null;
+                    public void onSuccess(TaskSpec result) {
+                        mTaskWindow.onTaskLoaded(key, result);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        // The task may have been deleted since it entered the window.
+                        if (!(t instanceof NoExistException)) {
+                            super.onFailure(t);
+                        }
                     }
                 });
+            }
+        }, TaskWindow.DEFAULT_PAGE_SIZE);
+
+        // The list's checkpoint is shared with its tracker in the main list, so opening it only
+        // reads the rows that changed since either last watched it.
+        final WatchCheckpoint checkpoint = getWatchCheckpoint(
+                LIST_WATCH_PREFIX + convertIdToString(listId));
+        ListenableFuture<Void> listWatchFuture = new ResumableWatch(getVContext(), getDatabase(),
+                Util.rowPrefixPattern(mList.id(), ""), checkpoint,
+                new ResumableWatch.RowHandler() {
+                    @Override
+                    public void onPut(String rowName, Object value) {
+                        processPut(rowName, value);
+                    }
+
+                    @Override
+                    public void onDelete(String rowName) {
+                        if (!rowName.equals(LIST_METADATA_ROW_NAME)) {
+                            mTaskWindow.remove(rowName);
+                        }
+                    }
+
+                    @Override
+                    public void onBatchEnd() {
+                    }
+                }).watchFuture;
         Futures.addCallback(listWatchFuture, new SyncTrappingCallback<Void>() {
             @Override
             public void onFailure(@NonNull Throwable t) {
                 if (t instanceof NoExistException) {
                     // The collection has been deleted.
+                    checkpoint.clear();
                     mListener.onDelete();
                 } else {
                     super.onFailure(t);
@@ -128,15 +158,19 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
             }
         });
 
-        mMemberTimer = watchSharedTo(mList.id(), new Function<List<BlessingPattern>, Void>() {
-            @Override
-            public Void apply(List<BlessingPattern> patterns) {
-                // Analyze these patterns to construct the emails, and fire the listener!
-                List<String> emails = parseEmailsFromPatterns(patterns);
-                mShareListMenuFragment.setSharedTo(emails);
-                return null;
-            }
-        });
+        Function<List<BlessingPattern>, Void> onSharedTo =
+                new Function<List<BlessingPattern>, Void>() {
+                    @Override
+                    public Void apply(List<BlessingPattern> patterns) {
+                        // Analyze these patterns to construct the emails, and fire the listener!
+                        List<String> emails = parseEmailsFromPatterns(patterns);
+                        mShareListMenuFragment.setSharedTo(emails);
+                        return null;
+                    }
+                };
+        mMemberTimer = watchSharedTo(mList.id(), onSharedTo);
+        mShareQueue = new ShareQueue(getVContext(), getListSyncgroup(), mList, sExecutor,
+                onSharedTo);
 
         // Watch the "showDone" boolean in the userdata collection and forward changes to the
         // listener.
@@ -175,34 +209,22 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
         super.close();
     }
 
-    private void processWatchChange(WatchChange change) {
-        String rowName = change.getRowName();
-
+    private void processPut(String rowName, Object value) {
         if (rowName.equals(SyncbaseTodoList.LIST_METADATA_ROW_NAME)) {
-            ListSpec listSpec = SyncbasePersistence.castFromSyncbase(change.getValue(),
-                    ListSpec.class);
+            ListSpec listSpec = SyncbasePersistence.castFromSyncbase(value, ListSpec.class);
             mListener.onUpdate(listSpec);
-        } else if (change.getChangeType() == ChangeType.DELETE_CHANGE) {
-            mTaskIds.remove(rowName);
-            mListener.onItemDelete(rowName);
         } else {
-            mIdGenerator.registerId(change.getRowName().substring(TASKS_PREFIX.length()));
-
-            TaskSpec taskSpec = SyncbasePersistence.castFromSyncbase(change.getValue(),
-                    TaskSpec.class);
-            Task task = new Task(rowName, taskSpec);
+            mIdGenerator.registerId(rowName.substring(TASKS_PREFIX.length()));
 
-            if (mTaskIds.add(rowName)) {
-                mListener.onItemAdd(task);
-            } else {
-                mListener.onItemUpdate(task);
-            }
+            TaskSpec taskSpec = SyncbasePersistence.castFromSyncbase(value, TaskSpec.class);
+            // Tasks outside the window are only indexed.
+            mTaskWindow.put(rowName, taskSpec);
         }
     }
 
     @Override
     public void updateTodoList(ListSpec listSpec) {
-        trap(mList.put(getVContext(), LIST_METADATA_ROW_NAME, listSpec));
+        trap(mList.put(getVContext(), LIST_METADATA_ROW_NAME, SpecCodec.toSyncbase(listSpec)));
     }
 
     @Override
@@ -216,48 +238,17 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
                 computeListSyncgroupName(mList.id().getName())));
     }
 
-    public void shareTodoList(final Iterable<String> emails) {
-        // Get the syncgroup
-        final Syncgroup sgHandle = getListSyncgroup();
-
-        // Get the Syncgroup Spec and add read access. Then get the collection permissions and add
-        // both read and write access. Along the way, trigger the listener's onShareChanged.
-
-        trap(sExecutor.submit(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                Map<String, SyncgroupSpec> specMap = VFutures.sync(sgHandle.getSpec(getVContext()));
-
-                String version = Iterables.getOnlyElement(specMap.keySet());
-                SyncgroupSpec spec = specMap.get(version);
-
-                // Modify the syncgroup spec to update the permissions.
-                Permissions perms = spec.getPerms();
-                addPermissions(perms, emails, Constants.READ.getValue());
-
-                // TODO(alexfandrianto): Revisit whether we should really be adding all invitees to
-                // the list of admins for this syncgroup. Since we manually hide the Share
-                // button from those who aren't the creator, we can leave this for the demo.
-                addPermissions(perms, emails, Constants.ADMIN.getValue());
-                VFutures.sync(sgHandle.setSpec(getVContext(), spec, version));
-
-                // TODO(alexfandrianto): This should be the right place to send the invite
-                // explicitly to the selected emails.
-
-                // Analyze these patterns to construct the emails, and fire the listener!
-                List<String> specEmails = parseEmailsFromPatterns(
-                        perms.get(Constants.READ.getValue()).getIn());
-                mShareListMenuFragment.setSharedTo(specEmails);
-
-                // Add read and write access to the collection permissions.
-                perms = VFutures.sync(mList.getPermissions(getVContext()));
+    public void shareTodoList(Iterable<String> emails) {
+        // Grant read access through the syncgroup spec and read and write access through the
+        // collection permissions. The share menu is updated along the way.
+        List<String> blessings = new ArrayList<>();
+        for (String email : emails) {
+            blessings.add(blessingsStringFromEmail(email));
+        }
+        trap(mShareQueue.share(blessings));
 
-                addPermissions(perms, emails, Constants.READ.getValue());
-                addPermissions(perms, emails, Constants.WRITE.getValue());
-                VFutures.sync(mList.setPermissions(getVContext(), perms));
-                return null;
-            }
-        }));
+        // TODO(alexfandrianto): This should be the right place to send the invite
+        // explicitly to the selected emails.
     }
 
     @Override
@@ -279,7 +270,8 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
                                             TaskSpec.class);
                                     if (!taskSpec.getDone()) {
                                         taskSpec.setDone(true);
-                                        puts.add(mList.put(getVContext(), kv.getKey(), taskSpec));
+                                        puts.add(mList.put(getVContext(), kv.getKey(),
+                                                SpecCodec.toSyncbase(taskSpec)));
                                     }
                                 }
 
@@ -294,41 +286,62 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
                 }));
     }
 
-    // TODO(alexfandrianto): We should consider moving this helper into the main Java repo.
-    // https://github.com/vanadium/issues/issues/1321
-    // TODO(alexfandrianto): This allows you to repeatedly add the same blessings to the permission
-    // multiple times.
-    private static void addPermissions(Permissions perms, Iterable<String> emails, String tag) {
-        AccessList acl = perms.get(tag);
-        List<BlessingPattern> patterns = acl.getIn();
-        for (String email : emails) {
-            patterns.add(new BlessingPattern(blessingsStringFromEmail(email)));
-        }
-        perms.put(tag, acl);
-    }
-
     public ListenableFuture<Void> updateListTimestamp() {
-        ListenableFuture<io.v.todos.model.ListSpec> get = mList.get(getVContext(), LIST_METADATA_ROW_NAME,
-                ListSpec.class);
-        return Futures.transformAsync(get, new AsyncFunction<Object, Void>() {
+        return mergeRow(LIST_METADATA_ROW_NAME, ListSpec.class, new Function<ListSpec, ListSpec>() {
             @Override
-            public ListenableFuture<Void> apply(Object oldValue) throws Exception {
-                ListSpec listSpec = (ListSpec) oldValue;
+            public ListSpec apply(ListSpec listSpec) {
                 listSpec.setUpdatedAt(System.currentTimeMillis());
-                return mList.put(getVContext(), LIST_METADATA_ROW_NAME, listSpec);
+                return listSpec;
             }
         });
     }
 
+    /**
+     * Rewrites a row from its current value rather than from a copy that may be stale, so that a
+     * change to one field does not revert a concurrent change to another. Syncbase syncs whole
+     * rows, so the written row still includes every field. The read and write are in one batch,
+     * so that a concurrent local merge is retried rather than lost, and a row that has since been
+     * deleted is left deleted.
+     */
+    private <T> ListenableFuture<Void> mergeRow(final String rowName, final Class<T> type,
+                                                final Function<T, T> merge) {
+        ListenableFuture<Void> merged = Batch.runInBatch(getVContext(), getDatabase(),
+                new BatchOptions(), new Batch.BatchOperation() {
+                    @Override
+                    public ListenableFuture<Void> run(BatchDatabase db) {
+                        final Collection list = db.getCollection(mList.id());
+                        return Futures.transformAsync(getSpec(list, rowName, type),
+                                new AsyncFunction<T, Void>() {
+                                    @Override
+                                    public ListenableFuture<Void> apply(T oldValue) {
+                                        T newValue = merge.apply(oldValue);
+                                        return list.put(getVContext(), rowName,
+                                                newValue instanceof TaskSpec ?
+                                                        SpecCodec.toSyncbase((TaskSpec) newValue) :
+                                                        SpecCodec.toSyncbase((ListSpec) newValue));
+                                    }
+                                });
+                    }
+                });
+        return Futures.catching(merged, NoExistException.class,
+                new Function<NoExistException, Void>() {
+                    @Override
+                    public Void apply(NoExistException e) {
+                        return null;
+                    }
+                });
+    }
+
     @Override
     public void addTask(TaskSpec task) {
-        trap(mList.put(getVContext(), TASKS_PREFIX + mIdGenerator.generateTailId(), task));
+        trap(mList.put(getVContext(), TASKS_PREFIX + mIdGenerator.generateTailId(),
+                SpecCodec.toSyncbase(task)));
         trap(updateListTimestamp());
     }
 
     @Override
     public void updateTask(Task task) {
-        trap(mList.put(getVContext(), task.key, task.toSpec()));
+        trap(mList.put(getVContext(), task.key, SpecCodec.toSyncbase(task.toSpec())));
         trap(updateListTimestamp());
     }
 
@@ -342,4 +355,50 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     public void setShowDone(boolean showDone) {
         trap(getUserCollection().put(getVContext(), SHOW_DONE_ROW_NAME, showDone));
     }
+
+    @Override
+    public void setTaskDone(String key, final boolean done) {
+        trap(mergeRow(key, TaskSpec.class, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec taskSpec) {
+                taskSpec.setDone(done);
+                return taskSpec;
+            }
+        }));
+        trap(updateListTimestamp());
+    }
+
+    @Override
+    public void setTaskText(String key, final String text) {
+        trap(mergeRow(key, TaskSpec.class, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec taskSpec) {
+                taskSpec.setText(text);
+                return taskSpec;
+            }
+        }));
+        trap(updateListTimestamp());
+    }
+
+    @Override
+    public void setListName(final String name) {
+        trap(mergeRow(LIST_METADATA_ROW_NAME, ListSpec.class, new Function<ListSpec, ListSpec>() {
+            @Override
+            public ListSpec apply(ListSpec listSpec) {
+                listSpec.setName(name);
+                listSpec.setUpdatedAt(System.currentTimeMillis());
+                return listSpec;
+            }
+        }));
+    }
+
+    @Override
+    public void touchList() {
+        trap(updateListTimestamp());
+    }
+
+    @Override
+    public void setTaskWindow(int limit) {
+        mTaskWindow.setLimit(limit);
+    }
 }
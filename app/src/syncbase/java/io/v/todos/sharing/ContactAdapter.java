@@ -19,10 +19,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Set;
 
 import io.v.todos.R;
+import io.v.todos.SortedListDiffer;
 
 public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     public static final int
@@ -59,6 +59,11 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         @StringRes
         public final int header;
         public final List<String> items = new ArrayList<>();
+        /**
+         * The adapter position of this section's header, maintained by
+         * {@link ContactAdapter#updateSectionOffsets()}.
+         */
+        public int offset;
 
         public Sublist(@StringRes int header) {
             this.header = header;
@@ -78,6 +83,8 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
             mSharingPossible
     };
 
+    private int mItemCount;
+
     private Collection<String> mSharedAlready;
     private final Set<String> mSharesAdded, mSharesRemoved, mSharesRecent;
     private final Multiset<String> mDiscoCounter = HashMultiset.create();
@@ -102,11 +109,13 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     private void setSharedAlreadyData(Collection<String> sharedAlready) {
         mSharedAlready = sharedAlready;
+        Set<String> sharingAlready = new HashSet<>(sharedAlready);
+        sharingAlready.removeAll(mSharesRemoved);
+        sharingAlready.addAll(mSharesAdded);
         mSharingAlready.items.clear();
-        mSharingAlready.items.addAll(sharedAlready);
-        mSharingAlready.items.removeAll(mSharesRemoved);
-        mSharingAlready.items.addAll(mSharesAdded);
+        mSharingAlready.items.addAll(sharingAlready);
         Collections.sort(mSharingAlready.items);
+        updateSectionOffsets();
     }
 
     public void filterDeltas() {
@@ -114,45 +123,51 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         mSharesRemoved.retainAll(mSharedAlready);
     }
 
-    private static class SublistEntry {
-        public final Sublist sublist;
-        public final int itemPosition;
-        public final String item;
-
-        public SublistEntry(Sublist sublist, int itemPosition, String item) {
-            this.sublist = sublist;
-            this.itemPosition = itemPosition;
-            this.item = item;
-        }
-    }
-
-    private SublistEntry getSublistItemPosition(int position) {
+    /**
+     * Recomputes the section header positions and item count. Must be called after any change to
+     * section contents, before positions are next looked up.
+     */
+    private void updateSectionOffsets() {
+        int offset = 0;
         for (Sublist section : mSections) {
-            if (position == 0) {
-                return new SublistEntry(section, -1, null);
-            }
-            position--;
-            if (position < section.items.size()) {
-                return new SublistEntry(section, position, section.items.get(position));
-            }
-            position -= section.items.size();
+            section.offset = offset;
+            offset += section.getEffectiveSize();
         }
-        throw new IndexOutOfBoundsException("No sublist at position " + position);
+        mItemCount = offset;
     }
 
     /**
-     * Inverse of {@link #getSublistItemPosition(int)}.
+     * @return the section containing the given adapter position
      */
-    private int getViewPosition(Sublist section, int itemPosition) {
-        int offset = 1;
-        for (Sublist cursor: mSections) {
-            if (cursor == section) {
-                return offset + itemPosition;
+    private Sublist getSection(int position) {
+        if (position < 0 || position >= mItemCount) {
+            throw new IndexOutOfBoundsException("No sublist at position " + position);
+        }
+        // Find the last section whose header is at or before the position.
+        int lo = 0, hi = mSections.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mSections[mid].offset <= position) {
+                lo = mid;
             } else {
-                offset += cursor.getEffectiveSize();
+                hi = mid - 1;
             }
         }
-        throw new NoSuchElementException("Section is not in list");
+        return mSections[lo];
+    }
+
+    /**
+     * @return the position of the item within {@code section}, or -1 for the section header
+     */
+    private static int getItemPosition(Sublist section, int position) {
+        return position - section.offset - 1;
+    }
+
+    /**
+     * Inverse of {@link #getSection(int)} and {@link #getItemPosition(Sublist, int)}.
+     */
+    private static int getViewPosition(Sublist section, int itemPosition) {
+        return section.offset + 1 + itemPosition;
     }
 
     @Override
@@ -173,28 +188,25 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public void onBindViewHolder(final RecyclerView.ViewHolder holder, int position) {
-        final SublistEntry entry = getSublistItemPosition(position);
-        if (entry.item == null) {
+        final Sublist section = getSection(position);
+        final int itemPosition = getItemPosition(section, position);
+        if (itemPosition < 0) {
             final SubheaderViewHolder svh = (SubheaderViewHolder) holder;
-            svh.category.setText(entry.sublist.header);
+            svh.category.setText(section.header);
         } else {
             final ContactViewHolder cvh = (ContactViewHolder) holder;
-            cvh.name.setText(entry.item);
+            cvh.name.setText(section.items.get(itemPosition));
         }
     }
 
     @Override
     public int getItemCount() {
-        int count = 0;
-        for (Sublist section : mSections) {
-            count += section.getEffectiveSize();
-        }
-        return count;
+        return mItemCount;
     }
 
     @Override
     public int getItemViewType(int position) {
-        return getSublistItemPosition(position).item == null ?
+        return getSection(position).offset == position ?
                 VIEW_TYPE_SUBHEADER : VIEW_TYPE_CONTACT;
     }
 
@@ -211,6 +223,7 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         int i = Collections.binarySearch(mSharingPossible.items, email);
         if (i >= 0) {
             mSharingPossible.items.remove(i);
+            updateSectionOffsets();
             notifyItemRemoved(getViewPosition(mSharingPossible, i));
         }
     }
@@ -225,6 +238,7 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         if (i < 0) {
             i = ~i;
             mSharingPossible.items.add(i, email);
+            updateSectionOffsets();
             notifyItemInserted(getViewPosition(mSharingPossible, i));
         }
     }
@@ -236,6 +250,7 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         int oldPosition = getViewPosition(mSharingPossible, i);
         int newPosition = getViewPosition(mSharingAlready, j);
         mSharingAlready.items.add(j, email);
+        updateSectionOffsets();
         notifyItemMoved(oldPosition, newPosition);
         registerShare(email);
         return newPosition;
@@ -245,6 +260,7 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         String email = mSharingAlready.items.remove(i);
         int j = ~Collections.binarySearch(mSharingPossible.items, email);
         mSharingPossible.items.add(j, email);
+        updateSectionOffsets();
         registerUnshare(email);
 
         // animate movement
@@ -260,6 +276,7 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         } else {
             i = ~i;
             mSharingAlready.items.add(i, email);
+            updateSectionOffsets();
             i = getViewPosition(mSharingAlready, i);
             notifyItemInserted(i);
             registerShare(email);
@@ -293,19 +310,31 @@ public class ContactAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     }
 
     public void setSharedTo(Collection<String> sharedAlready) {
+        List<String> oldItems = new ArrayList<>(mSharingAlready.items);
         setSharedAlreadyData(sharedAlready);
-        // TODO(rosswang): list differ
 
-        notifyDataSetChanged();
+        final int offset = getViewPosition(mSharingAlready, 0);
+        SortedListDiffer.diff(oldItems, mSharingAlready.items, new SortedListDiffer.Callback() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(offset + position, count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(offset + position, count);
+            }
+        });
     }
 
     // TODO(rosswang): this is a hacky abstraction
     public void toggleContact(int position) {
-        SublistEntry entry = getSublistItemPosition(position);
-        if (entry.sublist == mSharingAlready) {
-            unshare(entry.itemPosition);
+        Sublist section = getSection(position);
+        int itemPosition = getItemPosition(section, position);
+        if (section == mSharingAlready) {
+            unshare(itemPosition);
         } else {
-            shareWithPossible(entry.itemPosition);
+            shareWithPossible(itemPosition);
         }
     }
 }
\ No newline at end of file
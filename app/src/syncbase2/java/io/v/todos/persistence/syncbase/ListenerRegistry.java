@@ -0,0 +1,159 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence.syncbase;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe set of listener registrations, either keyed (e.g. by list {@code Id}) or for all
+ * keys. Listener lists are copy-on-write, so dispatching from the watch thread is a single lookup
+ * with no locking or copying, and keys without listeners cost nothing beyond a failed lookup.
+ * <p>
+ * Each registration returns its own {@link Registration}, so registering the same listener twice
+ * and unregistering one of them leaves the other in place.
+ */
+class ListenerRegistry<K, L> {
+    /**
+     * A handle for a single registration.
+     */
+    interface Registration {
+        /**
+         * Removes this registration. Idempotent.
+         */
+        void unregister();
+    }
+
+    private final ConcurrentMap<K, Snapshot<L>> mKeyed = new ConcurrentHashMap<>();
+    private final Object mAllMutex = new Object();
+    private volatile Snapshot<L> mAll = Snapshot.empty();
+
+    /**
+     * Wraps each listener so that registrations are distinguished by identity of the entry rather
+     * than of the listener.
+     */
+    private static class Entry<L> {
+        final L listener;
+
+        Entry(L listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * An immutable set of registrations, along with the listener list handed out to dispatchers so
+     * that dispatch does not allocate.
+     */
+    private static class Snapshot<L> {
+        private static final Snapshot<?> EMPTY = new Snapshot<>(ImmutableList.<Entry<Object>>of());
+
+        final ImmutableList<Entry<L>> entries;
+        final ImmutableList<L> listeners;
+
+        @SuppressWarnings("unchecked")
+        static <L> Snapshot<L> empty() {
+            return (Snapshot<L>) EMPTY;
+        }
+
+        Snapshot(ImmutableList<Entry<L>> entries) {
+            this.entries = entries;
+            ImmutableList.Builder<L> builder = ImmutableList.builder();
+            for (Entry<L> entry : entries) {
+                builder.add(entry.listener);
+            }
+            listeners = builder.build();
+        }
+
+        Snapshot<L> with(Entry<L> entry) {
+            return new Snapshot<>(ImmutableList.<Entry<L>>builder()
+                    .addAll(entries).add(entry).build());
+        }
+
+        Snapshot<L> without(Entry<L> entry) {
+            ImmutableList.Builder<Entry<L>> builder = ImmutableList.builder();
+            for (Entry<L> e : entries) {
+                if (e != entry) {
+                    builder.add(e);
+                }
+            }
+            return new Snapshot<>(builder.build());
+        }
+    }
+
+    Registration registerForKey(final K key, L listener) {
+        final Entry<L> entry = new Entry<>(listener);
+        while (true) {
+            Snapshot<L> current = mKeyed.get(key);
+            if (current == null) {
+                if (mKeyed.putIfAbsent(key, Snapshot.<L>empty().with(entry)) == null) {
+                    break;
+                }
+            } else if (mKeyed.replace(key, current, current.with(entry))) {
+                break;
+            }
+        }
+        return new Registration() {
+            @Override
+            public void unregister() {
+                while (true) {
+                    Snapshot<L> current = mKeyed.get(key);
+                    if (current == null || !current.entries.contains(entry)) {
+                        return;
+                    }
+                    Snapshot<L> next = current.without(entry);
+                    if (next.entries.isEmpty() ? mKeyed.remove(key, current) :
+                            mKeyed.replace(key, current, next)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    Registration registerForAll(L listener) {
+        final Entry<L> entry = new Entry<>(listener);
+        synchronized (mAllMutex) {
+            mAll = mAll.with(entry);
+        }
+        return new Registration() {
+            @Override
+            public void unregister() {
+                synchronized (mAllMutex) {
+                    mAll = mAll.without(entry);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an immutable snapshot of the listeners registered for the given key
+     */
+    List<L> listenersForKey(K key) {
+        Snapshot<L> snapshot = mKeyed.get(key);
+        return snapshot == null ? ImmutableList.<L>of() : snapshot.listeners;
+    }
+
+    /**
+     * @return an immutable snapshot of the listeners registered for all keys
+     */
+    List<L> listenersForAll() {
+        return mAll.listeners;
+    }
+
+    /**
+     * @return the listeners registered for any specific key. This walks every key, so it is meant
+     * for infrequent broadcasts.
+     */
+    List<L> listenersForAnyKey() {
+        ImmutableList.Builder<L> builder = ImmutableList.builder();
+        for (Snapshot<L> snapshot : mKeyed.values()) {
+            builder.addAll(snapshot.listeners);
+        }
+        return builder.build();
+    }
+}
@@ -8,32 +8,35 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.util.List;
 import java.util.UUID;
 
+import io.v.syncbase.BatchDatabase;
 import io.v.syncbase.Collection;
+import io.v.syncbase.Database;
 import io.v.syncbase.DatabaseHandle;
 import io.v.syncbase.Id;
 import io.v.syncbase.Syncbase;
 import io.v.syncbase.exception.SyncbaseException;
 import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.CompactTaskTable;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.MainPersistence;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.TaskSearchIndex;
 
 public class SyncbaseMain extends SyncbasePersistence implements MainPersistence {
+    private final ListenerRegistry.Registration mListenerRegistration;
+
     public SyncbaseMain(Activity activity, Bundle savedInstanceState,
                         ListEventListener<ListMetadata> listener) {
         super(activity, savedInstanceState);
 
-
-        // Fire the listener for existing list metadata.
-        for (Id listId : sListMetadataTrackerMap.keySet()) {
-            ListMetadataTracker tracker = sListMetadataTrackerMap.get(listId);
-            tracker.fireListener(listener);
-        }
-
-        // Register the listener for future updates.
-        setMainListener(listener);
+        // Fire the listener for existing list metadata and register it for future updates.
+        mListenerRegistration = addMainListener(listener);
     }
 
     @Override
@@ -41,7 +44,7 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
         DatabaseHandle.CollectionOptions opts = new DatabaseHandle.CollectionOptions();
         try {
             Collection c = sDb.createCollection(opts.setPrefix(TODO_LIST_COLLECTION_PREFIX));
-            c.put(TODO_LIST_KEY, listSpec);
+            c.put(TODO_LIST_KEY, SpecCodec.toSyncbase(listSpec));
             return c.getId().encode();
         } catch (SyncbaseException e) {
             Log.e(TAG, "Failed to create todo list collection", e);
@@ -62,9 +65,82 @@ public class SyncbaseMain extends SyncbasePersistence implements MainPersistence
         // Unfortunately, I can't yet: https://v.io/i/1374
     }
 
+    @Override
+    public void deleteTodoLists(final Iterable<String> keys) {
+        try {
+            sDb.runInBatch(new Database.BatchOperation() {
+                @Override
+                public void run(BatchDatabase bDb) {
+                    for (String key : keys) {
+                        try {
+                            bDb.getCollection(Id.decode(key)).delete(TODO_LIST_KEY);
+                        } catch (SyncbaseException e) {
+                            Log.w(TAG, e);
+                        }
+                    }
+                }
+            }, new Database.BatchOptions());
+        } catch (SyncbaseException e) {
+            Log.e(TAG, "Failed to delete todo list keys", e);
+        }
+    }
+
+    @Override
+    public void completeTodoLists(final Iterable<String> keys) {
+        try {
+            sDb.runInBatch(new Database.BatchOperation() {
+                @Override
+                public void run(BatchDatabase bDb) {
+                    for (String key : keys) {
+                        completeTasks(bDb, Id.decode(key));
+                    }
+                }
+            }, new Database.BatchOptions());
+        } catch (SyncbaseException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    @Override
+    public String duplicateTodoList(String key, final ListSpec listSpec) {
+        final CompactTaskTable tasks = sTasksByListMap.get(Id.decode(key));
+        if (tasks == null) {
+            return null;
+        }
+        DatabaseHandle.CollectionOptions opts = new DatabaseHandle.CollectionOptions();
+        try {
+            final Id listId = sDb.createCollection(opts.setPrefix(TODO_LIST_COLLECTION_PREFIX))
+                    .getId();
+            sDb.runInBatch(new Database.BatchOperation() {
+                @Override
+                public void run(BatchDatabase bDb) {
+                    Collection bCollection = bDb.getCollection(listId);
+                    try {
+                        bCollection.put(TODO_LIST_KEY, SpecCodec.toSyncbase(listSpec));
+                        for (Task task : tasks.getTasks()) {
+                            bCollection.put(UUID.randomUUID().toString(), SpecCodec.toSyncbase(
+                                    new TaskSpec(task.text, task.addedAt, task.done)));
+                        }
+                    } catch (SyncbaseException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            }, new Database.BatchOptions());
+            return listId.encode();
+        } catch (SyncbaseException e) {
+            Log.e(TAG, "Failed to duplicate todo list", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<TaskSearchIndex.Hit> searchTasks(String query, int limit) {
+        return sSearchIndex.search(query, limit);
+    }
+
     @Override
     public void close() {
-        removeMainListener();
+        mListenerRegistration.unregister();
         if (isInitialized()) {
             Syncbase.shutdown();
         }
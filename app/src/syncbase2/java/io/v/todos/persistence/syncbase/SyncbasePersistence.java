@@ -13,10 +13,20 @@ import android.support.annotation.CallSuper;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import io.v.syncbase.BatchDatabase;
+import io.v.syncbase.Collection;
 import io.v.syncbase.Database;
 import io.v.syncbase.Syncbase;
 import io.v.syncbase.Id;
@@ -29,8 +39,12 @@ import io.v.todos.model.ListMetadata;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
 import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.CompactTaskTable;
 import io.v.todos.persistence.ListEventListener;
 import io.v.todos.persistence.Persistence;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.TaskSearchIndex;
+import io.v.todos.persistence.TaskSearchIndexStore;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.sharing.NeighborhoodFragment;
 import io.v.todos.sharing.ShareListDialogFragment;
@@ -48,19 +62,32 @@ public abstract class SyncbasePersistence implements Persistence {
     private static final String CLOUD_ADMIN = "dev.v.io:r:allocator:us:x:syncbased-e0cf21ca";
     private static final String MOUNT_POINT = "/ns.dev.v.io:8101/tmp/todos/users/";
 
-    protected static boolean sInitialized = false;
-
-    protected static final Map<Id, ListSpec> sListSpecMap = new HashMap<>();
-    protected static final Map<Id, ListMetadataTracker> sListMetadataTrackerMap = new HashMap<>();
-    protected static final Map<Id, Map<String, TaskSpec>> sTasksByListMap = new HashMap<>();
-    protected static boolean sShowDone = true;
-
-    protected static Database sDb;
+    protected static volatile boolean sInitialized = false;
+
+    // The following state is written only by the watch handler thread but read from UI and worker
+    // threads. The maps are concurrent, and the task tables they hold are updated in place with
+    // the changes of each watch callback at once, so readers always see a consistent view of a
+    // list's tasks.
+    protected static final ConcurrentMap<Id, ListSpec> sListSpecMap = new ConcurrentHashMap<>();
+    protected static final ConcurrentMap<Id, ListMetadataTracker> sListMetadataTrackerMap =
+            new ConcurrentHashMap<>();
+    protected static final ConcurrentMap<Id, CompactTaskTable> sTasksByListMap =
+            new ConcurrentHashMap<>();
+    protected static volatile boolean sShowDone = true;
+    // Held while the watch handler applies and publishes a callback's changes, and while a new
+    // listener is handed the current state and registered, so that each change is either part of
+    // that state or delivered to the listener, and never both or neither.
+    protected static final Object sWatchMutex = new Object();
+
+    protected static volatile Database sDb;
 
     private static final Object sSyncbaseMutex = new Object();
-    private static TodoListListener sTodoListListener;
-    private static Id sTodoListExpectedId;
-    private static ListEventListener<ListMetadata> sMainListener;
+    protected static volatile TaskSearchIndex sSearchIndex;
+    // Any number of list views (e.g. in multi-window) and main views may be open at once.
+    private static final ListenerRegistry<Id, TodoListListener> sTodoListListeners =
+            new ListenerRegistry<>();
+    private static final ListenerRegistry<Id, ListEventListener<ListMetadata>> sMainListeners =
+            new ListenerRegistry<>();
 
     SyncbasePersistence(final Activity activity, Bundle savedInstanceState) {
         Log.d(TAG, "Trying to start Syncbase Persistence...");
@@ -73,6 +100,7 @@ public abstract class SyncbasePersistence implements Persistence {
         synchronized (sSyncbaseMutex) {
             if (!sInitialized) {
                 Log.d(TAG, "Initializing Syncbase Persistence...");
+                sSearchIndex = TaskSearchIndexStore.getIndex(activity);
 
                 String rootDir = activity.getFilesDir().getAbsolutePath();
                 Syncbase.Options opts =
@@ -170,28 +198,56 @@ public abstract class SyncbasePersistence implements Persistence {
         // TODO(alexfandrianto): This can be simplified if we watch specific collections and the
         // entrance/exit of collections. https://v.io/i/1376
         sDb.addWatchChangeHandler(new Database.WatchChangeHandler() {
+            // The following are only used within a single callback, and callbacks are called one
+            // at a time. Each callback's task changes are applied to each list's table at once,
+            // and listeners are called once the tables are updated.
+            // The new spec of each changed task by list, or null if the task was removed.
+            private final Map<Id, Map<String, TaskSpec>> mTaskChanges = new HashMap<>();
+            private final List<Runnable> mEvents = new ArrayList<>();
+            private final Set<Id> mChangedLists = new LinkedHashSet<>();
+
             @Override
             public void onInitialState(final Iterator<WatchChange> values) {
-                while (values.hasNext()) {
-                    handlePutChange(values.next());
+                synchronized (sWatchMutex) {
+                    while (values.hasNext()) {
+                        handlePutChange(values.next());
+                    }
+                    publishChanges();
+                }
+                retainSearchIndex();
+            }
+
+            /**
+             * Drops lists and tasks deleted while the app was closed from the search index, now
+             * that the initial state has been seen.
+             */
+            private void retainSearchIndex() {
+                Set<String> listKeys = new HashSet<>();
+                for (Id listId : sListSpecMap.keySet()) {
+                    listKeys.add(listId.encode());
+                }
+                sSearchIndex.retainLists(listKeys);
+                for (Map.Entry<Id, CompactTaskTable> entry : sTasksByListMap.entrySet()) {
+                    sSearchIndex.retainTasks(entry.getKey().encode(),
+                            new HashSet<>(entry.getValue().getKeys()));
                 }
             }
 
             @Override
             public void onChangeBatch(final Iterator<WatchChange> changes) {
-                while (changes.hasNext()) {
-                    WatchChange change = changes.next();
-                    if (change.getChangeType() == WatchChange.ChangeType.DELETE) {
-                        handleDeleteChange(change);
-                    } else {
-                        handlePutChange(change);
+                synchronized (sWatchMutex) {
+                    while (changes.hasNext()) {
+                        WatchChange change = changes.next();
+                        if (change.getChangeType() == WatchChange.ChangeType.DELETE) {
+                            handleDeleteChange(change);
+                        } else {
+                            handlePutChange(change);
+                        }
                     }
+                    publishChanges();
                 }
             }
 
-            // TODO(alexfandrianto): This will fire listeners despite the WatchChange's potentially
-            // being within a batch. Over-firing the listeners isn't ideal, but the app should be
-            // okay.
             private void handlePutChange(WatchChange value) {
                 Log.d(TAG, "Handling put change " + value.getRowKey());
                 Log.d(TAG, "From collection: " + value.getCollectionId());
@@ -209,10 +265,17 @@ public abstract class SyncbasePersistence implements Persistence {
                             sShowDone = value.getValue(Boolean.class);
                             Log.d(TAG, "Got a show done" + sShowDone);
 
-                            // Inform the relevant listener.
-                            if (sTodoListListener != null) {
-                                sTodoListListener.onUpdateShowDone(sShowDone);
-                            }
+                            // Inform the relevant listeners.
+                            final boolean showDone = sShowDone;
+                            mEvents.add(new Runnable() {
+                                @Override
+                                public void run() {
+                                    for (TodoListListener listener :
+                                            sTodoListListeners.listenersForAnyKey()) {
+                                        listener.onUpdateShowDone(showDone);
+                                    }
+                                }
+                            });
                         } catch (SyncbaseException e) {
                             Log.e(TAG, "Failed to decode watch change as Boolean", e);
                         }
@@ -221,61 +284,67 @@ public abstract class SyncbasePersistence implements Persistence {
                 }
 
                 // If we are here, we must be modifying a todo list collection.
-                // Initialize the task spec map, if necessary.
-                if (sTasksByListMap.get(collectionId) == null) {
-                    sTasksByListMap.put(collectionId, new HashMap<String, TaskSpec>());
-                }
+                // Initialize the task table, if necessary.
+                sTasksByListMap.putIfAbsent(collectionId, new CompactTaskTable());
 
                 if (value.getRowKey().equals(TODO_LIST_KEY)) {
                     try {
-                        final ListSpec listSpec = value.getValue(ListSpec.class);
+                        final ListSpec listSpec = getSpec(value, ListSpec.class);
                         Log.d(TAG, "Got a list" + listSpec.toString());
                         sListSpecMap.put(collectionId, listSpec);
-
-                        final ListMetadataTracker tracker = getListMetadataTrackerSafe(collectionId);
-                        tracker.setSpec(listSpec);
+                        getListMetadataTrackerSafe(collectionId).setSpec(listSpec);
+                        mChangedLists.add(collectionId);
 
                         // Inform the relevant listeners.
-                        if (sMainListener != null) {
-                            tracker.fireListener(sMainListener);
-                        }
-                        if (sTodoListListener != null && sTodoListExpectedId.equals(collectionId)) {
-                            sTodoListListener.onUpdate(listSpec);
-                        }
-                    } catch (SyncbaseException e) {
+                        mEvents.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (TodoListListener listener :
+                                        sTodoListListeners.listenersForKey(collectionId)) {
+                                    listener.onUpdate(listSpec);
+                                }
+                            }
+                        });
+                    } catch (SyncbaseException | IllegalArgumentException e) {
                         Log.e(TAG, "Failed to decode watch change value as ListSpec", e);
                     }
                 } else {
-                    Map<String, TaskSpec> taskData = sTasksByListMap.get(collectionId);
                     final String rowKey = value.getRowKey();
                     try {
-                        final TaskSpec newSpec = value.getValue(TaskSpec.class);
+                        final TaskSpec newSpec = getSpec(value, TaskSpec.class);
                         Log.d(TAG, "Got a task" + newSpec.toString());
-                        final TaskSpec oldSpec = taskData.put(rowKey, newSpec);
-
-                        final ListMetadataTracker tracker = getListMetadataTrackerSafe(collectionId);
-                        tracker.adjustTask(rowKey, newSpec.getDone());
+                        final boolean isNew = getTask(collectionId, rowKey) == null;
+                        changeTask(collectionId, rowKey, newSpec);
+                        sSearchIndex.put(collectionId.encode(), rowKey, newSpec.getText());
+                        getListMetadataTrackerSafe(collectionId)
+                                .adjustTask(rowKey, newSpec.getDone());
+                        mChangedLists.add(collectionId);
 
                         // Inform the relevant listeners.
-                        if (sMainListener != null) {
-                            tracker.fireListener(sMainListener);
-                        }
-                        if (sTodoListListener != null && sTodoListExpectedId.equals(collectionId)) {
-                            if (oldSpec == null) {
-                                sTodoListListener.onItemAdd(new Task(rowKey, newSpec));
-                            } else {
-                                sTodoListListener.onItemUpdate(new Task(rowKey, newSpec));
+                        mEvents.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                List<TodoListListener> todoListListeners =
+                                        sTodoListListeners.listenersForKey(collectionId);
+                                if (todoListListeners.isEmpty()) {
+                                    return;
+                                }
+                                Task task = new Task(rowKey, newSpec);
+                                for (TodoListListener listener : todoListListeners) {
+                                    if (isNew) {
+                                        listener.onItemAdd(task);
+                                    } else {
+                                        listener.onItemUpdate(task);
+                                    }
+                                }
                             }
-                        }
-                    } catch (SyncbaseException e) {
+                        });
+                    } catch (SyncbaseException | IllegalArgumentException e) {
                         Log.e(TAG, "Failed to decode watch change value as TaskSpec", e);
                     }
                 }
             }
 
-            // TODO(alexfandrianto): This will fire listeners despite the WatchChange's potentially
-            // being within a batch. Over-firing the listeners isn't ideal, but the app should be
-            // okay.
             private void handleDeleteChange(WatchChange value) {
                 Log.d(TAG, "Handling delete change " + value.getRowKey());
                 Log.d(TAG, "From collection: " + value.getCollectionId());
@@ -293,31 +362,94 @@ public abstract class SyncbasePersistence implements Persistence {
                 if (oldKey.equals(TODO_LIST_KEY)) {
                     sListSpecMap.remove(collectionId);
                     sListMetadataTrackerMap.remove(collectionId);
+                    sSearchIndex.removeList(collectionId.encode());
 
                     // TODO(alexfandrianto): Potentially destroy the collection too?
                     // Inform the relevant listeners.
-                    if (sMainListener != null) {
-                        sMainListener.onItemDelete(collectionId.encode());
-                    }
-                    if (sTodoListListener != null && sTodoListExpectedId.equals(collectionId)) {
-                        sTodoListListener.onDelete();
-                    }
-                } else {
-                    Map<String, TaskSpec> tasks = sTasksByListMap.get(collectionId);
-                    if (tasks != null) {
-                        tasks.remove(oldKey);
-
-                        final ListMetadataTracker tracker = getListMetadataTrackerSafe(collectionId);
-                        tracker.removeTask(oldKey);
+                    mEvents.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            String listKey = collectionId.encode();
+                            for (ListEventListener<ListMetadata> listener :
+                                    sMainListeners.listenersForAll()) {
+                                listener.onItemDelete(listKey);
+                            }
+                            for (TodoListListener listener :
+                                    sTodoListListeners.listenersForKey(collectionId)) {
+                                listener.onDelete();
+                            }
+                        }
+                    });
+                } else if (getTask(collectionId, oldKey) != null) {
+                    changeTask(collectionId, oldKey, null);
+                    sSearchIndex.remove(collectionId.encode(), oldKey);
+                    getListMetadataTrackerSafe(collectionId).removeTask(oldKey);
+                    mChangedLists.add(collectionId);
 
-                        // Inform the relevant listeners.
-                        if (sMainListener != null) {
-                            tracker.fireListener(sMainListener);
+                    // Inform the relevant listeners.
+                    mEvents.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (TodoListListener listener :
+                                    sTodoListListeners.listenersForKey(collectionId)) {
+                                listener.onItemDelete(oldKey);
+                            }
                         }
-                        if (sTodoListListener != null && sTodoListExpectedId.equals(collectionId)) {
-                            sTodoListListener.onItemDelete(oldKey);
+                    });
+                }
+            }
+
+            /**
+             * @return the task's spec as of the changes so far, or null if the task is absent
+             */
+            private TaskSpec getTask(Id listId, String taskKey) {
+                Map<String, TaskSpec> changes = mTaskChanges.get(listId);
+                if (changes != null && changes.containsKey(taskKey)) {
+                    return changes.get(taskKey);
+                }
+                CompactTaskTable tasks = sTasksByListMap.get(listId);
+                return tasks == null ? null : tasks.getSpec(taskKey);
+            }
+
+            private void changeTask(Id listId, String taskKey, TaskSpec spec) {
+                Map<String, TaskSpec> changes = mTaskChanges.get(listId);
+                if (changes == null) {
+                    changes = new HashMap<>();
+                    mTaskChanges.put(listId, changes);
+                }
+                changes.put(taskKey, spec);
+            }
+
+            /**
+             * Applies the task changes to each changed list's table, then informs the listeners
+             * of the changes and of the resulting list metadata.
+             */
+            private void publishChanges() {
+                for (Map.Entry<Id, Map<String, TaskSpec>> entry : mTaskChanges.entrySet()) {
+                    CompactTaskTable tasks = sTasksByListMap.get(entry.getKey());
+                    if (tasks == null) {
+                        tasks = new CompactTaskTable();
+                        sTasksByListMap.put(entry.getKey(), tasks);
+                    }
+                    tasks.applyChanges(entry.getValue());
+                }
+                mTaskChanges.clear();
+
+                try {
+                    for (Runnable event : mEvents) {
+                        event.run();
+                    }
+                    List<ListEventListener<ListMetadata>> mainListeners =
+                            sMainListeners.listenersForAll();
+                    for (Id listId : mChangedLists) {
+                        ListMetadataTracker tracker = sListMetadataTrackerMap.get(listId);
+                        if (tracker != null) {
+                            tracker.fireListeners(mainListeners);
                         }
                     }
+                } finally {
+                    mEvents.clear();
+                    mChangedLists.clear();
                 }
             }
 
@@ -368,42 +500,136 @@ public abstract class SyncbasePersistence implements Persistence {
         return null;
     }
 
-    protected void setMainListener(ListEventListener<ListMetadata> listener) {
-        sMainListener = listener;
+    /**
+     * Fires the listener for existing list metadata and registers it for future updates.
+     *
+     * @return the handle to unregister this listener with
+     */
+    protected ListenerRegistry.Registration addMainListener(
+            ListEventListener<ListMetadata> listener) {
+        synchronized (sWatchMutex) {
+            for (ListMetadataTracker tracker : sListMetadataTrackerMap.values()) {
+                tracker.fireInitial(listener);
+            }
+            return sMainListeners.registerForAll(listener);
+        }
     }
-    protected void removeMainListener() {
-        sMainListener = null;
+
+    /**
+     * Registers the listener for future updates to the given list.
+     *
+     * @return the handle to unregister this listener with
+     */
+    protected ListenerRegistry.Registration addTodoListListener(TodoListListener listener,
+                                                                Id listId) {
+        return sTodoListListeners.registerForKey(listId, listener);
     }
 
-    protected void setTodoListListener(TodoListListener listener, Id expectedId) {
-        sTodoListListener = listener;
-        sTodoListExpectedId = expectedId;
+    /**
+     * Marks every task of the list done as part of a batch, working from the cached tasks.
+     */
+    protected static void completeTasks(BatchDatabase bDb, Id listId) {
+        Collection bCollection = bDb.getCollection(listId);
+        CompactTaskTable curTasks = sTasksByListMap.get(listId);
+        if (curTasks == null) {
+            return;
+        }
+        for (Task task : curTasks.getTasks()) {
+            if (task.done) {
+                continue;
+            }
+            String rowKey = task.key;
+            TaskSpec newSpec = new TaskSpec(task.text, task.addedAt, true);
+
+            // TODO(alexfandrianto): If we're in a batch, it's okay to error, isn't it?
+            try {
+                bCollection.put(rowKey, SpecCodec.toSyncbase(newSpec));
+            } catch (SyncbaseException e) {
+                Log.w(TAG, e);
+            }
+        }
     }
-    protected void removeTodoListListener() {
-        sTodoListListener = null;
+
+    /**
+     * Reads a task row in either encoding, e.g. from a collection within a batch.
+     *
+     * @return the task, or null if it is absent
+     * @throws IllegalArgumentException if the row is a compact spec that can't be decoded
+     */
+    protected static TaskSpec getTask(Collection collection, String key)
+            throws SyncbaseException {
+        if (!collection.exists(key)) {
+            return null;
+        }
+        TaskSpec spec = castSpec(collection.get(key, Object.class), TaskSpec.class);
+        return spec != null ? spec : collection.get(key, TaskSpec.class);
+    }
+
+    /**
+     * Reads a spec from a watch change in either encoding.
+     *
+     * @throws IllegalArgumentException if the value is a compact spec that can't be decoded
+     */
+    private static <T> T getSpec(WatchChange change, Class<T> type) throws SyncbaseException {
+        T spec = castSpec(change.getValue(Object.class), type);
+        return spec != null ? spec : change.getValue(type);
+    }
+
+    /**
+     * Checks which encoding a spec value is in before decoding it, so that neither encoding is
+     * read by failing over from the other.
+     *
+     * @return the spec, or null if the value is a struct to be decoded as the spec type
+     * @throws IllegalArgumentException if the value is a compact spec that can't be decoded, with
+     *                                  the decode error as its cause
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T castSpec(Object value, Class<T> type) {
+        if (type.isInstance(value)) {
+            return (T) value;
+        }
+        if (!(value instanceof byte[])) {
+            return null;
+        }
+        try {
+            return SpecCodec.decode((byte[]) value, type);
+        } catch (IOException e) {
+            // Most likely written by a newer version of the app.
+            throw new IllegalArgumentException("Could not decode compact " +
+                    type.getSimpleName(), e);
+        }
     }
 
     private ListMetadataTracker getListMetadataTrackerSafe(Id listId) {
         ListMetadataTracker tracker = sListMetadataTrackerMap.get(listId);
         if (tracker == null) {
-            tracker = new ListMetadataTracker(listId);
-            sListMetadataTrackerMap.put(listId, tracker);
+            ListMetadataTracker newTracker = new ListMetadataTracker(listId);
+            tracker = sListMetadataTrackerMap.putIfAbsent(listId, newTracker);
+            if (tracker == null) {
+                tracker = newTracker;
+            }
         }
         return tracker;
     }
 
+    /**
+     * Mutated by the watch handler thread and read when a new main listener is registered, so all
+     * access is synchronized on the tracker.
+     */
     class ListMetadataTracker {
         private final Id collectionId;
         private ListSpec spec;
         private int numCompleted = 0;
         private Map<String, Boolean> taskCompletion = new HashMap<>();
         private boolean hasFired;
+        // The metadata last broadcast to all listeners, or null if none has been.
+        private ListMetadata lastFired;
 
         ListMetadataTracker(Id collectionId) {
             this.collectionId = collectionId;
         }
 
-        ListMetadata computeListMetadata() {
+        synchronized ListMetadata computeListMetadata() {
             if (spec == null) {
                 return null;
             }
@@ -411,11 +637,11 @@ public abstract class SyncbasePersistence implements Persistence {
                     taskCompletion.size());
         }
 
-        void setSpec(ListSpec newSpec) {
+        synchronized void setSpec(ListSpec newSpec) {
             spec = newSpec;
         }
 
-        void adjustTask(String taskKey, boolean done) {
+        synchronized void adjustTask(String taskKey, boolean done) {
             Boolean oldDone = taskCompletion.put(taskKey, done);
             if ((oldDone == null || !oldDone) && done) {
                 numCompleted++;
@@ -424,23 +650,53 @@ public abstract class SyncbasePersistence implements Persistence {
             }
         }
 
-        void removeTask(String taskKey) {
+        synchronized void removeTask(String taskKey) {
             Boolean oldDone = taskCompletion.remove(taskKey);
             if (oldDone != null && oldDone) {
                 numCompleted--;
             }
         }
 
-        void fireListener(ListEventListener<ListMetadata> listener) {
-            ListMetadata metadata = computeListMetadata();
-            if (metadata == null) {
-                return; // cannot fire yet
+        /**
+         * Fires an add for a newly registered listener, if the list metadata is ready.
+         */
+        void fireInitial(ListEventListener<ListMetadata> listener) {
+            ListMetadata metadata;
+            synchronized (this) {
+                metadata = computeListMetadata();
+                if (metadata == null) {
+                    return; // cannot fire yet
+                }
+                hasFired = true;
             }
-            if (!hasFired) {
+            listener.onItemAdd(metadata);
+        }
+
+        /**
+         * Fires an add the first time the list metadata is ready, and updates thereafter. The
+         * listeners are called without holding the tracker's lock.
+         */
+        void fireListeners(List<ListEventListener<ListMetadata>> listeners) {
+            ListMetadata metadata;
+            boolean isNew;
+            synchronized (this) {
+                metadata = computeListMetadata();
+                if (metadata == null) {
+                    return; // cannot fire yet
+                }
+                if (lastFired != null && lastFired.diff(metadata) == 0) {
+                    return; // e.g. a change to task text
+                }
+                isNew = !hasFired;
                 hasFired = true;
-                listener.onItemAdd(computeListMetadata());
-            } else {
-                listener.onItemUpdate(computeListMetadata());
+                lastFired = metadata;
+            }
+            for (ListEventListener<ListMetadata> listener : listeners) {
+                if (isNew) {
+                    listener.onItemAdd(metadata);
+                } else {
+                    listener.onItemUpdate(metadata);
+                }
             }
         }
     }
@@ -11,9 +11,10 @@ import android.content.Context;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.google.common.base.Function;
+
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -27,6 +28,9 @@ import io.v.syncbase.exception.SyncbaseException;
 import io.v.todos.model.ListSpec;
 import io.v.todos.model.Task;
 import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.CompactTaskTable;
+import io.v.todos.persistence.SpecCodec;
+import io.v.todos.persistence.TaskWindow;
 import io.v.todos.persistence.TodoListListener;
 import io.v.todos.persistence.TodoListPersistence;
 import io.v.todos.sharing.ShareListMenuFragment;
@@ -34,6 +38,8 @@ import io.v.todos.sharing.ShareListMenuFragment;
 public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPersistence {
     private Collection mCollection;
     private ShareListMenuFragment mShareListMenuFragment;
+    private final TaskWindow mTaskWindow;
+    private final ListenerRegistry.Registration mListenerRegistration;
 
     @Override
     protected void addFeatureFragments(FragmentManager manager, Context context,
@@ -51,27 +57,71 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     }
 
     public SyncbaseTodoList(Activity activity, Bundle savedInstanceState, String key,
-                            TodoListListener listener) {
+                            final TodoListListener listener) {
         super(activity, savedInstanceState);
 
-        Id listId = Id.decode(key);
+        final Id listId = Id.decode(key);
         mCollection = sDb.getCollection(listId);
+        mTaskWindow = new TaskWindow(listener, new TaskWindow.Loader() {
+            @Override
+            public void load(String taskKey) {
+                // The database watch already holds every task in memory.
+                CompactTaskTable tasks = sTasksByListMap.get(listId);
+                TaskSpec spec = tasks == null ? null : tasks.getSpec(taskKey);
+                if (spec != null) {
+                    mTaskWindow.onTaskLoaded(taskKey, spec);
+                }
+            }
+        }, TaskWindow.DEFAULT_PAGE_SIZE);
 
-        // Fire the listener for existing data (list, tasks, show done status).
-        ListSpec currentList = sListSpecMap.get(listId);
-        if (currentList != null) {
-            listener.onUpdate(currentList);
-        }
-        Map<String, TaskSpec> currentTasks = sTasksByListMap.get(listId);
-        if (currentTasks != null) {
-            for (String taskKey : currentTasks.keySet()) {
-                listener.onItemAdd(new Task(taskKey, currentTasks.get(taskKey)));
+        // Fire the listener for existing data (list, tasks, show done status), then register
+        // it for future updates, routing tasks through the window. Holding the watch mutex
+        // keeps a watch callback from publishing changes in between.
+        synchronized (sWatchMutex) {
+            ListSpec currentList = sListSpecMap.get(listId);
+            if (currentList != null) {
+                listener.onUpdate(currentList);
             }
-        }
-        listener.onUpdateShowDone(sShowDone);
+            CompactTaskTable currentTasks = sTasksByListMap.get(listId);
+            if (currentTasks != null) {
+                for (Task task : currentTasks.getTasks()) {
+                    mTaskWindow.put(task.key, new TaskSpec(task.text, task.addedAt, task.done));
+                }
+            }
+            listener.onUpdateShowDone(sShowDone);
+
+            mListenerRegistration = addTodoListListener(new TodoListListener() {
+                @Override
+                public void onUpdate(ListSpec value) {
+                    listener.onUpdate(value);
+                }
+
+                @Override
+                public void onDelete() {
+                    listener.onDelete();
+                }
 
-        // Register the listener for future updates.
-        setTodoListListener(listener, listId);
+                @Override
+                public void onUpdateShowDone(boolean showDone) {
+                    listener.onUpdateShowDone(showDone);
+                }
+
+                @Override
+                public void onItemAdd(Task item) {
+                    mTaskWindow.put(item.key, item.toSpec());
+                }
+
+                @Override
+                public void onItemUpdate(Task item) {
+                    mTaskWindow.put(item.key, item.toSpec());
+                }
+
+                @Override
+                public void onItemDelete(String key) {
+                    mTaskWindow.remove(key);
+                }
+            }, listId);
+        }
 
         // TODO(alexfandrianto): Do we want this behavior? We need getLoggedInUser() if we do.
         // if (!listId.getBlessing().equals(getPersonalBlessingsString())) {
@@ -85,7 +135,7 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     @Override
     public void updateTodoList(ListSpec listSpec) {
         try {
-            mCollection.put(TODO_LIST_KEY, listSpec);
+            mCollection.put(TODO_LIST_KEY, SpecCodec.toSyncbase(listSpec));
         } catch (SyncbaseException e) {
             Log.w(TAG, e);
         }
@@ -107,21 +157,7 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
             sDb.runInBatch(new Database.BatchOperation() {
                 @Override
                 public void run(BatchDatabase bDb) {
-                    Collection bCollection = bDb.getCollection(mCollection.getId());
-                    Map<String, TaskSpec> curTasks = sTasksByListMap.get(mCollection.getId());
-                    for (Map.Entry<String, TaskSpec> entry : curTasks.entrySet()) {
-                        String rowKey = entry.getKey();
-                        TaskSpec curSpec = entry.getValue();
-                        TaskSpec newSpec = new TaskSpec(curSpec.getText(), curSpec.getAddedAt(),
-                                true);
-
-                        // TODO(alexfandrianto): If we're in a batch, it's okay to error, isn't it?
-                        try {
-                            bCollection.put(rowKey, newSpec);
-                        } catch (SyncbaseException e) {
-                            Log.w(TAG, e);
-                        }
-                    }
+                    completeTasks(bDb, mCollection.getId());
                 }
             }, new Database.BatchOptions());
         } catch (SyncbaseException e) {
@@ -132,7 +168,7 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     @Override
     public void addTask(TaskSpec task) {
         try {
-            mCollection.put(UUID.randomUUID().toString(), task);
+            mCollection.put(UUID.randomUUID().toString(), SpecCodec.toSyncbase(task));
         } catch (SyncbaseException e) {
             Log.w(TAG, e);
         }
@@ -141,7 +177,7 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
     @Override
     public void updateTask(Task task) {
         try {
-            mCollection.put(task.key, task.toSpec());
+            mCollection.put(task.key, SpecCodec.toSyncbase(task.toSpec()));
         } catch (SyncbaseException e) {
             Log.w(TAG, e);
         }
@@ -165,9 +201,81 @@ public class SyncbaseTodoList extends SyncbasePersistence implements TodoListPer
         }
     }
 
+    // Syncbase syncs whole rows, so these rewrite the row from its current value, read in the
+    // same batch, rather than from a copy that may be stale, so as not to revert concurrent
+    // changes to other fields. A task that has since been deleted is left deleted.
+
+    @Override
+    public void setTaskDone(String key, final boolean done) {
+        mergeTask(key, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec spec) {
+                if (spec.getDone() == done) {
+                    return null;
+                }
+                spec.setDone(done);
+                return spec;
+            }
+        });
+    }
+
+    @Override
+    public void setTaskText(String key, final String text) {
+        mergeTask(key, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec spec) {
+                spec.setText(text);
+                return spec;
+            }
+        });
+    }
+
+    /**
+     * @param merge returns the new spec of the task given its current one, or null to leave it
+     */
+    private void mergeTask(final String key, final Function<TaskSpec, TaskSpec> merge) {
+        try {
+            sDb.runInBatch(new Database.BatchOperation() {
+                @Override
+                public void run(BatchDatabase bDb) {
+                    Collection bCollection = bDb.getCollection(mCollection.getId());
+                    try {
+                        TaskSpec spec = getTask(bCollection, key);
+                        TaskSpec merged = spec == null ? null : merge.apply(spec);
+                        if (merged != null) {
+                            bCollection.put(key, SpecCodec.toSyncbase(merged));
+                        }
+                    } catch (SyncbaseException | IllegalArgumentException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            }, new Database.BatchOptions());
+        } catch (SyncbaseException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    @Override
+    public void setListName(String name) {
+        updateTodoList(new ListSpec(name));
+    }
+
+    @Override
+    public void touchList() {
+        ListSpec current = sListSpecMap.get(mCollection.getId());
+        if (current != null) {
+            updateTodoList(new ListSpec(current.getName()));
+        }
+    }
+
+    @Override
+    public void setTaskWindow(int limit) {
+        mTaskWindow.setLimit(limit);
+    }
+
     @Override
     public void close() {
-        removeTodoListListener();
+        mListenerRegistration.unregister();
     }
 
     public void shareTodoList(Set<String> aliases) {
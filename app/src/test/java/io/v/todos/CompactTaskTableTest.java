@@ -0,0 +1,143 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.CompactTaskTable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the CompactTaskTable. Confirms that the table matches a plain map of task specs
+ * through random updates, applied one at a time or in batches, and that tombstones and dead text
+ * are rebuilt away.
+ */
+public class CompactTaskTableTest {
+    private static void assertMatches(Map<String, TaskSpec> expected, CompactTaskTable table) {
+        assertEquals(expected.size(), table.size());
+        for (Task task : table.getTasks()) {
+            TaskSpec spec = expected.get(task.key);
+            assertEquals(spec.getText(), task.text);
+            assertEquals(spec.getAddedAt(), task.addedAt);
+            assertEquals(spec.getDone(), task.done);
+        }
+        for (Map.Entry<String, TaskSpec> entry : expected.entrySet()) {
+            TaskSpec spec = table.getSpec(entry.getKey());
+            assertEquals(entry.getValue().getText(), spec.getText());
+            assertEquals(entry.getValue().getAddedAt(), spec.getAddedAt());
+            assertEquals(entry.getValue().getDone(), spec.getDone());
+        }
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int length = random.nextInt(40); length > 0; length--) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void updateTest() {
+        CompactTaskTable table = new CompactTaskTable();
+        assertEquals(0, table.size());
+        table.put("b", new TaskSpec("Buy milk", 2, false));
+        table.put("a", new TaskSpec("Mow lawn", 1, true));
+        assertEquals("Buy milk", table.getSpec("b").getText());
+        assertEquals(Arrays.asList("b", "a"), table.getKeys());
+
+        // Shorter text is overwritten in place, and longer text is appended.
+        table.put("b", new TaskSpec("Buy gum", 2, true));
+        assertEquals(16, table.getArenaSize());
+        table.put("b", new TaskSpec("Buy bread", 2, true));
+        assertEquals(25, table.getArenaSize());
+        assertEquals("Buy bread", table.getSpec("b").getText());
+        assertEquals(true, table.getSpec("b").getDone());
+
+        table.remove("a");
+        table.remove("a");
+        assertEquals(1, table.size());
+        assertEquals(null, table.getSpec("a"));
+        assertEquals(false, table.contains("a"));
+        assertEquals(Arrays.asList("b"), table.getKeys());
+
+        table.put("a", new TaskSpec(null, 1, false));
+        table.put("c", new TaskSpec("", 3, false));
+        assertEquals(null, table.getSpec("a").getText());
+        assertEquals("", table.getSpec("c").getText());
+        assertEquals(Arrays.asList("b", "a", "c"), table.getKeys());
+    }
+
+    @Test
+    public void randomTest() {
+        Random random = new Random(1);
+        Map<String, TaskSpec> expected = new HashMap<>();
+        CompactTaskTable table = new CompactTaskTable();
+
+        for (int i = 0; i < 5000; i++) {
+            // Grow and then shrink the set of keys, so that the table is rebuilt both ways.
+            int numKeys = i < 2500 ? 300 : 30;
+            String key = "task" + random.nextInt(numKeys);
+            if (random.nextInt(i < 2500 ? 4 : 2) == 0) {
+                expected.remove(key);
+                table.remove(key);
+            } else {
+                TaskSpec spec = new TaskSpec(randomText(random), random.nextLong(),
+                        random.nextBoolean());
+                expected.put(key, spec);
+                table.put(key, spec);
+            }
+            if (i % 50 == 0) {
+                assertMatches(expected, table);
+            }
+        }
+        for (String key : table.getKeys()) {
+            if (!key.startsWith("task") || Integer.parseInt(key.substring(4)) >= 30) {
+                expected.remove(key);
+                table.remove(key);
+            }
+        }
+        assertMatches(expected, table);
+
+        // Dead text is rebuilt away.
+        int liveChars = 0;
+        for (TaskSpec spec : expected.values()) {
+            liveChars += spec.getText().length();
+        }
+        assertEquals(true, table.getArenaSize() <= 2 * Math.max(liveChars, 64));
+    }
+
+    @Test
+    public void batchTest() {
+        Random random = new Random(3);
+        Map<String, TaskSpec> expected = new HashMap<>();
+        CompactTaskTable table = new CompactTaskTable();
+        for (int i = 0; i < 200; i++) {
+            Map<String, TaskSpec> batch = new HashMap<>();
+            for (int j = random.nextInt(20); j >= 0; j--) {
+                String key = "task" + random.nextInt(150);
+                TaskSpec spec = random.nextInt(4) == 0 ? null :
+                        new TaskSpec("Task " + random.nextInt(), random.nextLong(),
+                                random.nextBoolean());
+                batch.put(key, spec);
+                if (spec == null) {
+                    expected.remove(key);
+                } else {
+                    expected.put(key, spec);
+                }
+            }
+            table.applyChanges(batch);
+            assertMatches(expected, table);
+        }
+    }
+}
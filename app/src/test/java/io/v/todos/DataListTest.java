@@ -6,13 +6,17 @@ package io.v.todos;
 
 import org.junit.Test;
 
+import java.util.Comparator;
+
 import io.v.todos.model.DataList;
 import io.v.todos.model.KeyedData;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
- * A unit test for the DataList. Confirms that keyed data is inserted in the correct order.
+ * A unit test for the DataList. Confirms that keyed data is inserted in the correct order, and that
+ * sorted indices stay in sync with the list.
  */
 public class DataListTest {
     @Test
@@ -66,6 +70,115 @@ public class DataListTest {
         assertEquals(-1, dataList.findIndexByKey("h"));
     }
 
+    @Test
+    public void orderingTest() throws Exception {
+        // Reverse key order, ignoring priority.
+        Comparator<TestKeyedData> reverse = new Comparator<TestKeyedData>() {
+            @Override
+            public int compare(TestKeyedData a, TestKeyedData b) {
+                return b.key.compareTo(a.key);
+            }
+        };
+
+        DataList<TestKeyedData> dataList = new DataList<>();
+        dataList.insertInOrder(new TestKeyedData("b", 1));
+        dataList.insertInOrder(new TestKeyedData("a", 2));
+        dataList.addOrdering(reverse);
+        dataList.insertInOrder(new TestKeyedData("c", 0));
+        dataList.insertInOrder(new TestKeyedData("d", 3));
+        dataList.updateInOrder(new TestKeyedData("b", 4));
+        dataList.removeByKey("a");
+
+        // Natural order is c, d, b.
+        assertEquals(0, dataList.findIndexByKey("c"));
+        assertEquals(2, dataList.findIndexByKey("b"));
+
+        // Switch to the indexed ordering: d, c, b.
+        dataList.setOrdering(reverse);
+        assertEquals(reverse, dataList.getOrdering());
+        assertEquals(0, dataList.findIndexByKey("d"));
+        assertEquals(1, dataList.findIndexByKey("c"));
+        assertEquals(2, dataList.findIndexByKey("b"));
+
+        // New entries go in the current ordering: e, d, c, b.
+        assertEquals(0, dataList.insertInOrder(new TestKeyedData("e", -1)));
+
+        // And back to natural order, which sorts since it was never indexed: e, c, d, b.
+        dataList.setOrdering(null);
+        assertEquals(0, dataList.findIndexByKey("e"));
+        assertEquals(1, dataList.findIndexByKey("c"));
+        assertEquals(2, dataList.findIndexByKey("d"));
+        assertEquals(3, dataList.findIndexByKey("b"));
+
+        // The reverse index kept up with the change made while it was the main ordering.
+        dataList.setOrdering(reverse);
+        assertEquals(0, dataList.findIndexByKey("e"));
+        assertEquals(3, dataList.findIndexByKey("b"));
+    }
+
+    @Test
+    public void updateInPlaceTest() throws Exception {
+        Comparator<TestKeyedData> reverse = new Comparator<TestKeyedData>() {
+            @Override
+            public int compare(TestKeyedData a, TestKeyedData b) {
+                return b.key.compareTo(a.key);
+            }
+        };
+
+        DataList<TestKeyedData> dataList = new DataList<>();
+        dataList.addOrdering(reverse);
+        dataList.insertInOrder(new TestKeyedData("a", 0));
+        dataList.insertInOrder(new TestKeyedData("b", 2));
+        dataList.insertInOrder(new TestKeyedData("c", 4));
+
+        // A change that keeps b between a and c replaces it in place.
+        TestKeyedData b = new TestKeyedData("b", 3);
+        assertEquals(1, dataList.updateInOrder(b));
+        assertSame(b, dataList.get(1));
+        assertEquals(3, dataList.size());
+
+        // A change past a neighbor still moves the entry: b, a, c.
+        assertEquals(0, dataList.updateInOrder(new TestKeyedData("b", -1)));
+        assertEquals(1, dataList.findIndexByKey("a"));
+
+        // The index holds the latest entries: c, b, a.
+        dataList.setOrdering(reverse);
+        assertEquals(1, dataList.findIndexByKey("b"));
+        assertEquals(-1, dataList.findByKey("b").priority);
+        assertEquals(3, dataList.size());
+    }
+
+    @Test
+    public void rawChangeTest() throws Exception {
+        Comparator<TestKeyedData> reverse = new Comparator<TestKeyedData>() {
+            @Override
+            public int compare(TestKeyedData a, TestKeyedData b) {
+                return b.key.compareTo(a.key);
+            }
+        };
+
+        DataList<TestKeyedData> dataList = new DataList<>();
+        dataList.addOrdering(reverse);
+        dataList.insertInOrder(new TestKeyedData("a"));
+        // Raw changes bypass the index, which must catch up rather than fail.
+        dataList.add(new TestKeyedData("c"));
+        dataList.add(new TestKeyedData("b"));
+        assertEquals(2, dataList.removeByKey("b"));
+        dataList.insertInOrder(new TestKeyedData("d"));
+
+        dataList.setOrdering(reverse);
+        assertEquals(3, dataList.size());
+        assertEquals(0, dataList.findIndexByKey("d"));
+        assertEquals(1, dataList.findIndexByKey("c"));
+        assertEquals(2, dataList.findIndexByKey("a"));
+
+        // So must the key index after a raw set(), even one that breaks the order: d, c, e.
+        dataList.set(2, new TestKeyedData("e"));
+        assertEquals(-1, dataList.findIndexByKey("a"));
+        assertEquals(2, dataList.findIndexByKey("e"));
+        assertEquals(0, dataList.findIndexByKey("d"));
+    }
+
     private class TestKeyedData extends KeyedData<TestKeyedData> {
         int priority;
 
@@ -0,0 +1,132 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+import io.v.todos.persistence.EventTrace;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.TodoListListener;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the EventTrace. Confirms that recorded events survive a save and load and
+ * replay as they were recorded.
+ */
+public class EventTraceTest {
+    private static class MainRecorder implements ListEventListener<ListMetadata> {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onItemAdd(ListMetadata item) {
+            events.add("add " + item);
+        }
+
+        @Override
+        public void onItemUpdate(ListMetadata item) {
+            events.add("update " + item);
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            events.add("delete " + key);
+        }
+    }
+
+    private static class ListRecorder implements TodoListListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onUpdate(ListSpec value) {
+            events.add("list " + value.getName() + " " + value.getUpdatedAt());
+        }
+
+        @Override
+        public void onDelete() {
+            events.add("list deleted");
+        }
+
+        @Override
+        public void onUpdateShowDone(boolean showDone) {
+            events.add("show done " + showDone);
+        }
+
+        @Override
+        public void onItemAdd(Task item) {
+            events.add("add " + item.key + " " + item.text + " " + item.addedAt + " " + item.done);
+        }
+
+        @Override
+        public void onItemUpdate(Task item) {
+            events.add("update " + item.key + " " + item.text + " " + item.done);
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            events.add("delete " + key);
+        }
+    }
+
+    private static EventTrace saveAndLoad(EventTrace trace) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        trace.writeTo(new DataOutputStream(bytes));
+        return EventTrace.readFrom(new DataInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())));
+    }
+
+    @Test
+    public void mainTraceTest() throws Exception {
+        EventTrace trace = new EventTrace();
+        MainRecorder live = new MainRecorder();
+        ListEventListener<ListMetadata> recording = trace.recordMain(live);
+        recording.onItemAdd(new ListMetadata("a", "Groceries", 1, 0, 2));
+        recording.onItemUpdate(new ListMetadata("a", "Groceries", 2, 1, 2));
+        recording.onItemDelete("a");
+
+        MainRecorder replayed = new MainRecorder();
+        EventTrace loaded = saveAndLoad(trace);
+        for (EventTrace.Event event : loaded.getEvents()) {
+            EventTrace.replayMain(event, replayed);
+        }
+        assertEquals(live.events, replayed.events);
+        assertEquals(3, loaded.size());
+    }
+
+    @Test
+    public void listTraceTest() throws Exception {
+        EventTrace trace = new EventTrace();
+        ListRecorder live = new ListRecorder();
+        TodoListListener recording = trace.recordList(live);
+        recording.onUpdate(new ListSpec("Groceries", 5));
+        recording.onUpdateShowDone(false);
+        recording.onItemAdd(new Task("t1", "Buy milk", 3, false));
+        recording.onItemUpdate(new Task("t1", null, 3, true));
+        recording.onItemDelete("t1");
+        recording.onDelete();
+
+        ListRecorder replayed = new ListRecorder();
+        List<EventTrace.Event> events = saveAndLoad(trace).getEvents();
+        for (EventTrace.Event event : events) {
+            EventTrace.replayList(event, replayed);
+        }
+        assertEquals(live.events, replayed.events);
+
+        // Times are preserved and in order.
+        for (int i = 1; i < events.size(); i++) {
+            assertEquals(true, events.get(i).time >= events.get(i - 1).time);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import com.google.common.base.Function;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.InMemoryMain;
+import io.v.todos.persistence.InMemoryStore;
+import io.v.todos.persistence.InMemoryTodoList;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.TodoListListener;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the InMemoryStore and its persistence implementations. Confirms that watches
+ * replay existing state, fan changes out to every listener in order, and stop once closed, and
+ * that field updates merge into the stored values.
+ */
+public class InMemoryStoreTest {
+    private static class MainRecorder implements ListEventListener<ListMetadata> {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onItemAdd(ListMetadata item) {
+            events.add("add " + item.name + " " + item.numCompleted + "/" + item.numTasks);
+        }
+
+        @Override
+        public void onItemUpdate(ListMetadata item) {
+            events.add("update " + item.name + " " + item.numCompleted + "/" + item.numTasks);
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            events.add("delete");
+        }
+    }
+
+    private static class ListRecorder implements TodoListListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onUpdate(ListSpec value) {
+            events.add("list " + value.getName());
+        }
+
+        @Override
+        public void onDelete() {
+            events.add("list deleted");
+        }
+
+        @Override
+        public void onUpdateShowDone(boolean showDone) {
+            events.add("show done " + showDone);
+        }
+
+        @Override
+        public void onItemAdd(Task item) {
+            events.add("add " + item.text + (item.done ? " done" : ""));
+        }
+
+        @Override
+        public void onItemUpdate(Task item) {
+            events.add("update " + item.text + (item.done ? " done" : ""));
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            events.add("delete");
+        }
+    }
+
+    @Test
+    public void watchTest() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        MainRecorder early = new MainRecorder();
+        InMemoryMain earlyMain = new InMemoryMain(store, early);
+
+        String listKey = earlyMain.addTodoList(new ListSpec("Groceries", 1));
+        String milk = store.addTask(listKey, new TaskSpec("Milk", 1, false));
+        store.addTask(listKey, new TaskSpec("Eggs", 2, true));
+        store.awaitDelivery();
+        assertEquals(Arrays.asList("add Groceries 0/0", "update Groceries 0/1",
+                "update Groceries 1/2"), early.events);
+
+        // Late watchers see the current state.
+        MainRecorder late = new MainRecorder();
+        InMemoryMain lateMain = new InMemoryMain(store, late);
+        ListRecorder list = new ListRecorder();
+        InMemoryTodoList todoList = new InMemoryTodoList(store, listKey, list);
+        store.awaitDelivery();
+        assertEquals(Arrays.asList("add Groceries 1/2"), late.events);
+        assertEquals("list Groceries", list.events.get(0));
+        assertEquals(4, list.events.size());
+        assertEquals("show done true", list.events.get(3));
+
+        // Changes fan out to every watcher.
+        early.events.clear();
+        late.events.clear();
+        list.events.clear();
+        todoList.updateTask(new Task(milk, "Milk", 1, true));
+        todoList.setShowDone(false);
+        store.awaitDelivery();
+        assertEquals(Arrays.asList("update Groceries 2/2"), early.events);
+        assertEquals(Arrays.asList("update Groceries 2/2"), late.events);
+        assertEquals(Arrays.asList("update Milk done", "show done false"), list.events);
+
+        // Closed watches stop.
+        earlyMain.close();
+        early.events.clear();
+        late.events.clear();
+        list.events.clear();
+        todoList.deleteTodoList();
+        store.awaitDelivery();
+        assertEquals(0, early.events.size());
+        assertEquals(Arrays.asList("delete"), late.events);
+        assertEquals(Arrays.asList("list deleted"), list.events);
+
+        lateMain.close();
+        todoList.close();
+    }
+
+    @Test
+    public void completeAndWindowTest() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        String listKey = store.addList(new ListSpec("Chores", 1));
+        for (int i = 0; i < 5; i++) {
+            store.addTask(listKey, new TaskSpec("Task " + i, i, false));
+        }
+
+        ListRecorder list = new ListRecorder();
+        InMemoryTodoList todoList = new InMemoryTodoList(store, listKey, list);
+        todoList.setTaskWindow(2);
+        store.awaitDelivery();
+        // Tasks can enter and then leave the window as the initial state is replayed, but only
+        // two end up shown.
+        int shown = 0;
+        for (String event : list.events) {
+            if (event.startsWith("add")) {
+                shown++;
+            } else if (event.equals("delete")) {
+                shown--;
+            }
+        }
+        assertEquals(2, shown);
+
+        MainRecorder main = new MainRecorder();
+        InMemoryMain mainPersistence = new InMemoryMain(store, main);
+        todoList.completeTodoList();
+        store.awaitDelivery();
+        assertEquals(Arrays.asList("add Chores 0/5", "update Chores 5/5"), main.events);
+
+        mainPersistence.close();
+        todoList.close();
+    }
+
+    @Test
+    public void fieldUpdateTest() throws Exception {
+        final InMemoryStore store = new InMemoryStore();
+        final String listKey = store.addList(new ListSpec("Chores", 1));
+        String taskKey = store.addTask(listKey, new TaskSpec("Sweep", 5, false));
+        InMemoryTodoList todoList = new InMemoryTodoList(store, listKey, new ListRecorder());
+
+        // Field updates keep the other fields as they are in the store.
+        todoList.setTaskDone(taskKey, true);
+        todoList.setTaskText(taskKey, "Sweep the porch");
+        TaskSpec task = store.getTask(listKey, taskKey);
+        assertEquals("Sweep the porch", task.getText());
+        assertEquals(5, task.getAddedAt());
+        assertEquals(true, task.getDone());
+
+        todoList.touchList();
+        assertEquals("Chores", store.getList(listKey).getName());
+        assertEquals(true, store.getList(listKey).getUpdatedAt() > 1);
+        todoList.setListName("Errands");
+        assertEquals("Errands", store.getList(listKey).getName());
+
+        // Field updates do not recreate deleted tasks.
+        store.removeTask(listKey, taskKey);
+        todoList.setTaskDone(taskKey, false);
+        assertEquals(null, store.getTask(listKey, taskKey));
+
+        // A removal racing a merge waits for it, so the merge can't undo it.
+        final String mopKey = store.addTask(listKey, new TaskSpec("Mop", 6, false));
+        final Thread remover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.removeTask(listKey, mopKey);
+            }
+        });
+        assertEquals(true, store.mergeTask(listKey, mopKey, new Function<TaskSpec, TaskSpec>() {
+            @Override
+            public TaskSpec apply(TaskSpec spec) {
+                remover.start();
+                try {
+                    remover.join(100);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                assertEquals(true, remover.isAlive());
+                spec.setDone(true);
+                return spec;
+            }
+        }));
+        remover.join();
+        assertEquals(null, store.getTask(listKey, mopKey));
+        assertEquals(false, store.mergeTask(listKey, mopKey, null));
+
+        todoList.close();
+    }
+
+    @Test
+    public void bulkTest() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        String chores = store.addList(new ListSpec("Chores", 1));
+        store.addTask(chores, new TaskSpec("Sweep", 2, false));
+        store.addTask(chores, new TaskSpec("Mop", 3, true));
+        String errands = store.addList(new ListSpec("Errands", 4));
+        store.addTask(errands, new TaskSpec("Bank", 5, false));
+
+        InMemoryMain main = new InMemoryMain(store, new MainRecorder());
+        String copy = main.duplicateTodoList(chores, new ListSpec("More chores", 6));
+        assertEquals("More chores", store.getList(copy).getName());
+        assertEquals(null, main.duplicateTodoList("missing", new ListSpec("None", 7)));
+
+        main.completeTodoLists(Arrays.asList(chores, errands));
+        MainRecorder recorder = new MainRecorder();
+        main.close();
+        main = new InMemoryMain(store, recorder);
+        store.awaitDelivery();
+        assertEquals(3, recorder.events.size());
+        assertEquals(true, recorder.events.contains("add Chores 2/2"));
+        assertEquals(true, recorder.events.contains("add Errands 1/1"));
+        assertEquals(true, recorder.events.contains("add More chores 1/2"));
+
+        main.deleteTodoLists(Arrays.asList(chores, copy));
+        assertEquals(null, store.getList(chores));
+        assertEquals(null, store.getList(copy));
+        assertEquals("Errands", store.getList(errands).getName());
+        main.close();
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.persistence.ListArchive;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the ListArchive. Confirms that only lists that have been done for a while are
+ * archivable, that archived lists are restored once their metadata changes, and that the archive
+ * survives a reload.
+ */
+public class ListArchiveTest {
+    private static final long NOW = 1466000000000L;
+    private static final long AGE = TimeUnit.DAYS.toMillis(14);
+
+    @Test
+    public void archivableTest() {
+        assertEquals(true, new ListMetadata("a", "A", NOW - AGE, 2, 2).isArchivable(NOW, AGE));
+        // Updated too recently.
+        assertEquals(false, new ListMetadata("a", "A", NOW - AGE + 1, 2, 2).isArchivable(NOW, AGE));
+        // Not done.
+        assertEquals(false, new ListMetadata("a", "A", NOW - AGE, 1, 2).isArchivable(NOW, AGE));
+        // Empty lists are not done either.
+        assertEquals(false, new ListMetadata("a", "A", NOW - AGE, 0, 0).isArchivable(NOW, AGE));
+    }
+
+    @Test
+    public void restoreTest() {
+        final int[] changes = {0};
+        ListArchive archive = new ListArchive();
+        archive.setOnChangeListener(new Runnable() {
+            @Override
+            public void run() {
+                changes[0]++;
+            }
+        });
+        ListMetadata a = new ListMetadata("a", "A", NOW - AGE, 2, 2);
+        archive.add(a);
+        archive.add(new ListMetadata("b", "B", NOW - AGE, 1, 1));
+        assertEquals(true, archive.contains("a"));
+
+        // Replaying the unchanged metadata leaves the list archived.
+        assertEquals(null, archive.restoreIfChanged("a", a.updatedAt));
+        assertEquals(null, archive.restoreIfChanged("c", NOW));
+        assertEquals(true, archive.contains("a"));
+
+        // A new timestamp restores the list, with its snapshot.
+        assertEquals(a, archive.restoreIfChanged("a", NOW));
+        assertEquals(false, archive.contains("a"));
+        assertEquals(null, archive.restoreIfChanged("a", NOW + 1));
+
+        // So does deleting its metadata.
+        assertEquals("B", archive.restoreIfChanged("b", null).name);
+        assertEquals(0, archive.getAll().size());
+        assertEquals(4, changes[0]);
+    }
+
+    @Test
+    public void reloadTest() throws Exception {
+        ListArchive archive = new ListArchive();
+        archive.add(new ListMetadata("a", "A", NOW, 2, 2));
+        archive.add(new ListMetadata("b", null, NOW, 1, 1));
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        archive.writeTo(new DataOutputStream(file));
+
+        ListArchive reloaded = new ListArchive();
+        reloaded.readFrom(new DataInputStream(new ByteArrayInputStream(file.toByteArray())));
+        assertEquals(2, reloaded.getAll().size());
+        ListMetadata a = reloaded.restoreIfChanged("a", null);
+        assertEquals(0, a.diff(new ListMetadata("a", "A", NOW, 2, 2)));
+        assertEquals(null, reloaded.restoreIfChanged("b", null).name);
+    }
+}
@@ -0,0 +1,190 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListMetadata;
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.InMemoryMain;
+import io.v.todos.persistence.InMemoryStore;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.LoopbackSyncGroup;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the LoopbackSyncGroup. Confirms that replicas converge under concurrent and
+ * partitioned edits, that a deleted list comes back without its old tasks, and that the compact
+ * spec encoding sends fewer bytes for the same edits.
+ */
+public class LoopbackSyncGroupTest {
+    private static class MainRecorder implements ListEventListener<ListMetadata> {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onItemAdd(ListMetadata item) {
+            events.add("add " + item.name + " " + item.numCompleted + "/" + item.numTasks);
+        }
+
+        @Override
+        public void onItemUpdate(ListMetadata item) {
+            events.add("update " + item.name + " " + item.numCompleted + "/" + item.numTasks);
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            events.add("delete");
+        }
+    }
+
+    private static void assertConverged(LoopbackSyncGroup group) {
+        for (int i = 1; i < group.size(); i++) {
+            assertEquals(group.getReplica(0).digest(), group.getReplica(i).digest());
+        }
+    }
+
+    @Test
+    public void replicationTest() throws Exception {
+        LoopbackSyncGroup group = new LoopbackSyncGroup(3, 1, TimeUnit.MILLISECONDS);
+        MainRecorder remote = new MainRecorder();
+        InMemoryMain remoteMain = new InMemoryMain(group.getReplica(2).getStore(), remote);
+
+        InMemoryStore local = group.getReplica(0).getStore();
+        String listKey = local.addList(new ListSpec("Groceries", 1));
+        local.addTask(listKey, new TaskSpec("Milk", 1, false));
+        local.addTask(listKey, new TaskSpec("Eggs", 2, true));
+        group.awaitQuiescence();
+
+        assertConverged(group);
+        assertEquals(Arrays.asList("add Groceries 0/0", "update Groceries 0/1",
+                "update Groceries 1/2"), remote.events);
+        assertEquals(3, group.getStats().numConverged);
+        assertEquals(6, group.getStats().numMessages);
+
+        remote.events.clear();
+        local.removeList(listKey);
+        group.awaitQuiescence();
+        assertConverged(group);
+        assertEquals("delete", remote.events.get(0));
+
+        remoteMain.close();
+    }
+
+    @Test
+    public void partitionTest() throws Exception {
+        LoopbackSyncGroup group = new LoopbackSyncGroup(2, 1, TimeUnit.MILLISECONDS);
+        InMemoryStore first = group.getReplica(0).getStore();
+        InMemoryStore second = group.getReplica(1).getStore();
+        String listKey = first.addList(new ListSpec("Chores", 1));
+        String contested = first.addTask(listKey, new TaskSpec("Sweep", 1, false));
+        String deleted = first.addTask(listKey, new TaskSpec("Mop", 2, false));
+        group.awaitQuiescence();
+
+        group.getReplica(1).setOnline(false);
+        first.putTask(listKey, contested, new TaskSpec("Sweep the porch", 1, false));
+        second.putTask(listKey, contested, new TaskSpec("Sweep the hall", 1, false));
+        first.removeTask(listKey, deleted);
+        second.putTask(listKey, deleted, new TaskSpec("Mop", 2, true));
+        second.putTask(listKey, deleted, new TaskSpec("Mop twice", 2, true));
+        group.awaitQuiescence();
+        assertEquals("Sweep the porch", first.getTask(listKey, contested).getText());
+        assertEquals("Sweep the hall", second.getTask(listKey, contested).getText());
+
+        group.getReplica(1).setOnline(true);
+        group.awaitQuiescence();
+        assertConverged(group);
+        // Equal clocks are broken by replica, and the later write wins over the delete.
+        assertEquals("Sweep the hall", first.getTask(listKey, contested).getText());
+        assertEquals("Mop twice", first.getTask(listKey, deleted).getText());
+        assertEquals("Mop twice", second.getTask(listKey, deleted).getText());
+    }
+
+    @Test
+    public void restoreTest() throws Exception {
+        LoopbackSyncGroup group = new LoopbackSyncGroup(2, 1, TimeUnit.MILLISECONDS);
+        InMemoryStore first = group.getReplica(0).getStore();
+        InMemoryStore second = group.getReplica(1).getStore();
+        String listKey = first.addList(new ListSpec("Chores", 1));
+        String oldTask = first.addTask(listKey, new TaskSpec("Sweep", 1, false));
+        group.awaitQuiescence();
+
+        first.removeList(listKey);
+        group.awaitQuiescence();
+        first.putList(listKey, new ListSpec("Chores again", 2));
+        String newTask = first.addTask(listKey, new TaskSpec("Mop", 2, false));
+        group.awaitQuiescence();
+
+        assertConverged(group);
+        assertEquals("Chores again", second.getList(listKey).getName());
+        assertEquals(null, second.getTask(listKey, oldTask));
+        assertEquals("Mop", second.getTask(listKey, newTask).getText());
+    }
+
+    @Test
+    public void concurrentEditTest() throws Exception {
+        final int numReplicas = 4, numEdits = 250;
+        LoopbackSyncGroup.Stats plain = runConcurrentEdits(numReplicas, numEdits, false);
+        LoopbackSyncGroup.Stats compact = runConcurrentEdits(numReplicas, numEdits, true);
+        for (LoopbackSyncGroup.Stats stats : Arrays.asList(plain, compact)) {
+            assertEquals(numReplicas * numEdits, stats.numConverged);
+            assertEquals(numReplicas * numEdits * (numReplicas - 1), stats.numMessages);
+            assertEquals(true, stats.medianConvergenceNanos <= stats.maxConvergenceNanos);
+        }
+        assertEquals(true, compact.numBytes < plain.numBytes);
+    }
+
+    private static LoopbackSyncGroup.Stats runConcurrentEdits(final int numReplicas,
+                                                              final int numEdits,
+                                                              boolean compactSpecs)
+            throws Exception {
+        final int numTasks = 50;
+        final LoopbackSyncGroup group = new LoopbackSyncGroup(numReplicas, 2,
+                TimeUnit.MILLISECONDS);
+        group.setCompactSpecs(compactSpecs);
+        final String listKey = group.getReplica(0).getStore().addList(new ListSpec("Shared", 1));
+        final List<String> taskKeys = new ArrayList<>();
+        for (int i = 0; i < numTasks; i++) {
+            taskKeys.add(group.getReplica(0).getStore().addTask(listKey,
+                    new TaskSpec("Task " + i, i, false)));
+        }
+        group.awaitQuiescence();
+        group.resetStats();
+
+        List<Thread> editors = new ArrayList<>();
+        for (int r = 0; r < numReplicas; r++) {
+            final int replica = r;
+            editors.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(replica);
+                    InMemoryStore store = group.getReplica(replica).getStore();
+                    for (int i = 0; i < numEdits; i++) {
+                        int task = random.nextInt(numTasks);
+                        store.putTask(listKey, taskKeys.get(task), new TaskSpec(
+                                "Task " + task + " by " + replica, task, random.nextBoolean()));
+                    }
+                }
+            });
+        }
+        for (Thread editor : editors) {
+            editor.start();
+        }
+        for (Thread editor : editors) {
+            editor.join();
+        }
+        group.awaitQuiescence();
+
+        assertConverged(group);
+        return group.getStats();
+    }
+}
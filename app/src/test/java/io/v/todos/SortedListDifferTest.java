@@ -0,0 +1,84 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the SortedListDiffer. Confirms that applying the reported changes to the old
+ * list yields the new list, and that adjacent changes are coalesced.
+ */
+public class SortedListDifferTest {
+    private static class RecordingCallback implements SortedListDiffer.Callback {
+        final List<String> ops = new ArrayList<>();
+        final List<String> list;
+        final List<String> source;
+
+        RecordingCallback(List<String> oldList, List<String> newList) {
+            list = new ArrayList<>(oldList);
+            source = newList;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            ops.add("+" + position + "x" + count);
+            // Inserted items come from the new list, which is the final state; everything before
+            // the insertion point is already final.
+            list.addAll(position, source.subList(position, position + count));
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            ops.add("-" + position + "x" + count);
+            list.subList(position, position + count).clear();
+        }
+    }
+
+    private static RecordingCallback diff(List<String> oldList, List<String> newList) {
+        RecordingCallback callback = new RecordingCallback(oldList, newList);
+        SortedListDiffer.diff(oldList, newList, callback);
+        assertEquals(newList, callback.list);
+        return callback;
+    }
+
+    @Test
+    public void coalescesRanges() throws Exception {
+        assertEquals(Arrays.<String>asList(),
+                diff(Arrays.asList("a", "b"), Arrays.asList("a", "b")).ops);
+        assertEquals(Arrays.asList("+0x3"),
+                diff(Arrays.<String>asList(), Arrays.asList("a", "b", "c")).ops);
+        assertEquals(Arrays.asList("-0x3"),
+                diff(Arrays.asList("a", "b", "c"), Arrays.<String>asList()).ops);
+        assertEquals(Arrays.asList("-1x2", "+2x2"),
+                diff(Arrays.asList("a", "b", "c", "d"), Arrays.asList("a", "d", "e", "f")).ops);
+        assertEquals(Arrays.asList("-0x1", "+0x1", "+2x1", "-3x1"),
+                diff(Arrays.asList("a", "c", "e"), Arrays.asList("b", "c", "d")).ops);
+    }
+
+    @Test
+    public void randomLists() throws Exception {
+        Random random = new Random(0);
+        for (int trial = 0; trial < 200; trial++) {
+            diff(randomSortedList(random), randomSortedList(random));
+        }
+    }
+
+    private static List<String> randomSortedList(Random random) {
+        TreeSet<String> items = new TreeSet<>();
+        int size = random.nextInt(20);
+        for (int i = 0; i < size; i++) {
+            items.add(Character.toString((char) ('a' + random.nextInt(26))));
+        }
+        return new ArrayList<>(items);
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.SpecCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * A unit test for the SpecCodec. Confirms that specs round-trip, that long texts are compressed,
+ * and that values from a newer version of the codec are rejected.
+ */
+public class SpecCodecTest {
+    private static final long NOW = 1466000000000L;
+
+    @Test
+    public void roundTripTest() throws Exception {
+        ListSpec list = SpecCodec.decodeList(SpecCodec.encode(new ListSpec("Groceries", NOW)));
+        assertEquals("Groceries", list.getName());
+        assertEquals(NOW, list.getUpdatedAt());
+
+        String text = "Cr\u00e8me br\u00fbl\u00e9e";
+        TaskSpec task = SpecCodec.decodeTask(SpecCodec.encode(new TaskSpec(text, NOW, true)));
+        assertEquals(text, task.getText());
+        assertEquals(NOW, task.getAddedAt());
+        assertEquals(true, task.getDone());
+
+        assertEquals(null, SpecCodec.decodeTask(
+                SpecCodec.encode(new TaskSpec(null, 0, false))).getText());
+        assertEquals(SpecCodec.VERSION, SpecCodec.getVersion(SpecCodec.encode(list)));
+
+        // Rows are written in the encoding the flag selects, and decode by type.
+        Object row = SpecCodec.toSyncbase(new TaskSpec("Milk", NOW, false));
+        assertEquals(SpecCodec.COMPACT_SPECS, row instanceof byte[]);
+        if (row instanceof byte[]) {
+            assertEquals("Milk", SpecCodec.decode((byte[]) row, TaskSpec.class).getText());
+        }
+        try {
+            SpecCodec.decode(SpecCodec.encode(list), TaskSpec.class);
+            fail("Decoded a list as a task");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void compressionTest() throws Exception {
+        // The version, flags, a 6-byte timestamp and the length.
+        assertEquals(9 + "Milk".length(),
+                SpecCodec.encode(new TaskSpec("Milk", NOW, false)).length);
+
+        String text = "Pick up the groceries and the laundry tomorrow morning, then call the " +
+                "dentist to schedule an appointment for the kids after lunch.";
+        byte[] encoded = SpecCodec.encode(new TaskSpec(text, NOW, false));
+        assertEquals(true, encoded.length < text.length() * 3 / 4);
+        assertEquals(text, SpecCodec.decodeTask(encoded).getText());
+    }
+
+    @Test
+    public void versionTest() throws Exception {
+        byte[] encoded = SpecCodec.encode(new ListSpec("Chores", NOW));
+        encoded[0] = (byte) (SpecCodec.VERSION + 1);
+        try {
+            SpecCodec.decodeList(encoded);
+            fail("Decoded a newer version");
+        } catch (SpecCodec.UnsupportedVersionException e) {
+            assertEquals(SpecCodec.VERSION + 1, e.version);
+        }
+
+        try {
+            SpecCodec.decodeTask(SpecCodec.encode(new ListSpec("Chores", NOW)));
+            fail("Decoded a list as a task");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import io.v.todos.persistence.SyncPriorityTracker;
+import io.v.todos.persistence.SyncPriorityTracker.Priority;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the SyncPriorityTracker. Confirms that open and recently updated lists are
+ * prioritized, and that only changes to assigned priorities are reported, once per refresh.
+ */
+public class SyncPriorityTrackerTest {
+    private static final long NOW = 1466000000000L;
+
+    @Test
+    public void priorityTest() {
+        SyncPriorityTracker<String> tracker = new SyncPriorityTracker<>();
+        // Lists without a priority yet are not reported.
+        tracker.setUpdatedAt("a", NOW);
+        assertEquals(Collections.emptyMap(), tracker.refresh(NOW));
+        assertEquals(Priority.RECENT, tracker.assign("a", NOW));
+        assertEquals(Priority.NORMAL, tracker.assign("b", NOW));
+
+        tracker.setUpdatedAt("b", NOW - SyncPriorityTracker.STALE_MILLIS);
+        assertEquals(Collections.singletonMap("b", Priority.STALE), tracker.refresh(NOW));
+        tracker.setOpen("b", true);
+        assertEquals(Collections.singletonMap("b", Priority.OPEN), tracker.refresh(NOW));
+        // Still open in another window.
+        tracker.setOpen("b", true);
+        tracker.setOpen("b", false);
+        assertEquals(Collections.emptyMap(), tracker.refresh(NOW));
+        tracker.setOpen("b", false);
+        assertEquals(Collections.singletonMap("b", Priority.STALE), tracker.refresh(NOW));
+
+        // A list opened and closed again between refreshes is not reported.
+        tracker.setOpen("b", true);
+        tracker.setOpen("b", false);
+        assertEquals(Collections.emptyMap(), tracker.refresh(NOW));
+
+        long later = NOW + SyncPriorityTracker.RECENT_MILLIS;
+        assertEquals(Collections.singletonMap("a", Priority.NORMAL), tracker.refresh(later));
+        assertEquals(Collections.emptyMap(), tracker.refresh(later));
+
+        tracker.remove("a");
+        tracker.setUpdatedAt("a", later);
+        assertEquals(Collections.emptyMap(), tracker.refresh(later));
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the TaskList. Confirms that the done count tracks mutations.
+ */
+public class TaskListTest {
+    private static Task task(String key, boolean done) {
+        return new Task(key, key, 0, done);
+    }
+
+    @Test
+    public void taskListTest() throws Exception {
+        TaskList taskList = new TaskList();
+
+        taskList.insertInOrder(task("b", true));
+        taskList.insertInOrder(task("a", false));
+        taskList.insertInOrder(task("c", false));
+        assertEquals(1, taskList.getDoneCount());
+        assertEquals(2, taskList.getNonDoneCount());
+        assertEquals(2, taskList.findIndexByKey("b"));
+
+        // Toggle a task done.
+        assertEquals(2, taskList.updateInOrder(task("c", true)));
+        assertEquals(2, taskList.getDoneCount());
+        assertEquals(1, taskList.getNonDoneCount());
+
+        // And back again.
+        assertEquals(1, taskList.updateInOrder(task("c", false)));
+        assertEquals(1, taskList.getDoneCount());
+
+        taskList.set(0, task("a", true));
+        assertEquals(2, taskList.getDoneCount());
+
+        taskList.addAll(Arrays.asList(task("d", true), task("e", false)));
+        assertEquals(3, taskList.getDoneCount());
+
+        taskList.removeByKey("d");
+        assertEquals(2, taskList.getDoneCount());
+
+        taskList.removeAll(Collections.singleton(taskList.findByKey("b")));
+        assertEquals(1, taskList.getDoneCount());
+
+        for (Iterator<Task> it = taskList.iterator(); it.hasNext(); ) {
+            if (it.next().done) {
+                it.remove();
+            }
+        }
+        assertEquals(0, taskList.getDoneCount());
+        assertEquals(2, taskList.getNonDoneCount());
+
+        taskList.add(task("f", true));
+        taskList.subList(0, 1).clear();
+        assertEquals(1, taskList.getDoneCount());
+
+        // Sub lists go through the list's own methods.
+        taskList.subList(1, 2).set(0, task("f", false));
+        assertEquals(0, taskList.getDoneCount());
+        taskList.subList(0, 2).subList(1, 2).add(0, task("g", true));
+        assertEquals(1, taskList.getDoneCount());
+        assertEquals(3, taskList.size());
+        assertEquals(1, taskList.findIndexByKey("g"));
+
+        // Bulk removals count the remaining tasks again.
+        taskList.retainAll(Arrays.asList(taskList.get(1)));
+        assertEquals(1, taskList.getDoneCount());
+        assertEquals(0, taskList.getNonDoneCount());
+
+        taskList.clear();
+        assertEquals(0, taskList.getDoneCount());
+        assertEquals(0, taskList.getNonDoneCount());
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import io.v.todos.persistence.TaskSearchIndex;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the TaskSearchIndex. Confirms that prefix queries track puts and removals
+ * regardless of the default locale, that the index survives a save and load, and that retaining
+ * the confirmed lists and tasks drops stale saved ones.
+ */
+public class TaskSearchIndexTest {
+    private static Set<String> search(TaskSearchIndex index, String query) {
+        Set<String> results = new HashSet<>();
+        for (TaskSearchIndex.Hit hit : index.search(query, Integer.MAX_VALUE)) {
+            results.add(hit.listKey + "/" + hit.taskKey);
+        }
+        return results;
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    @Test
+    public void searchTest() throws Exception {
+        TaskSearchIndex index = new TaskSearchIndex();
+        index.put("groceries", "t1", "Buy milk");
+        index.put("groceries", "t2", "Buy MILKSHAKE mix");
+        index.put("chores", "t1", "Mow the lawn, then buy gas");
+
+        assertEquals(set("groceries/t1", "groceries/t2"), search(index, "mil"));
+        assertEquals(set("groceries/t1", "groceries/t2", "chores/t1"), search(index, "BUY"));
+        assertEquals(set("groceries/t2"), search(index, "buy mi milks"));
+        assertEquals(set(), search(index, "buy shake"));
+        assertEquals(set(), search(index, "  "));
+
+        // Updating text replaces its tokens.
+        index.put("groceries", "t1", "Buy bread");
+        assertEquals(set("groceries/t2"), search(index, "milk"));
+        assertEquals(set("groceries/t1"), search(index, "bre"));
+
+        index.remove("groceries", "t2");
+        assertEquals(set(), search(index, "milk"));
+
+        index.removeList("chores");
+        assertEquals(set("groceries/t1"), search(index, "buy"));
+        assertEquals(1, index.size());
+
+        List<TaskSearchIndex.Hit> hits = index.search("buy", 1);
+        assertEquals("Buy bread", hits.get(0).text);
+    }
+
+    @Test
+    public void saveAndLoadTest() throws Exception {
+        TaskSearchIndex saved = new TaskSearchIndex();
+        saved.put("groceries", "t1", "Buy milk");
+        saved.put("groceries", "t2", "Buy eggs");
+        saved.put("chores", "t1", "Buy gas");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved.writeTo(new DataOutputStream(bytes));
+
+        // Changes made before the load completes take precedence.
+        TaskSearchIndex loaded = new TaskSearchIndex();
+        loaded.put("groceries", "t1", "Buy bread");
+        loaded.remove("groceries", "t2");
+        loaded.removeList("chores");
+        loaded.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(set("groceries/t1"), search(loaded, "buy"));
+        assertEquals(set(), search(loaded, "milk"));
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void retainTest() throws Exception {
+        TaskSearchIndex saved = new TaskSearchIndex();
+        saved.put("groceries", "t1", "Buy milk");
+        saved.put("groceries", "t2", "Buy eggs");
+        saved.put("chores", "t1", "Buy gas");
+        saved.put("errands", "t1", "Buy stamps");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved.writeTo(new DataOutputStream(bytes));
+
+        // Retains confirmed before the load completes also apply to the saved tasks.
+        TaskSearchIndex loaded = new TaskSearchIndex();
+        loaded.retainLists(Arrays.asList("groceries", "errands"));
+        loaded.retainTasks("groceries", Collections.singleton("t1"));
+        loaded.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(set("groceries/t1", "errands/t1"), search(loaded, "buy"));
+
+        // And to the loaded tasks after.
+        loaded.retainTasks("errands", Collections.<String>emptySet());
+        loaded.retainLists(Collections.singleton("groceries"));
+        assertEquals(set("groceries/t1"), search(loaded, "buy"));
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void localeTest() {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            TaskSearchIndex index = new TaskSearchIndex();
+            index.put("list", "t1", "FILE TAXES");
+            assertEquals(set("list/t1"), search(index, "file"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+}
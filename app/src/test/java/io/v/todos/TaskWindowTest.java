@@ -0,0 +1,138 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import io.v.todos.model.Task;
+import io.v.todos.model.TaskList;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.ListEventListener;
+import io.v.todos.persistence.TaskWindow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A unit test for the TaskWindow. Confirms that the listener always sees the sorted prefix of
+ * the list once pending loads complete, and that it is called without the window's lock held.
+ */
+public class TaskWindowTest {
+    private final TaskList mShown = new TaskList();
+    private final Map<String, TaskSpec> mBackend = new HashMap<>();
+    private final List<String> mPendingLoads = new ArrayList<>();
+
+    private final TaskWindow mWindow = new TaskWindow(new ListEventListener<Task>() {
+        @Override
+        public void onItemAdd(Task item) {
+            assertEquals(false, Thread.holdsLock(mWindow));
+            assertEquals(-1, mShown.findIndexByKey(item.key));
+            mShown.insertInOrder(item);
+        }
+
+        @Override
+        public void onItemUpdate(Task item) {
+            assertTrue(mShown.findIndexByKey(item.key) != -1);
+            mShown.updateInOrder(item);
+        }
+
+        @Override
+        public void onItemDelete(String key) {
+            assertTrue(mShown.removeByKey(key) != -1);
+        }
+    }, new TaskWindow.Loader() {
+        @Override
+        public void load(String key) {
+            assertEquals(false, Thread.holdsLock(mWindow));
+            mPendingLoads.add(key);
+        }
+    }, 3);
+
+    private void put(String key, boolean done) {
+        TaskSpec spec = new TaskSpec(key, 0, done);
+        mBackend.put(key, spec);
+        mWindow.put(key, spec);
+    }
+
+    private void remove(String key) {
+        mBackend.remove(key);
+        mWindow.remove(key);
+    }
+
+    private void flushLoads() {
+        while (!mPendingLoads.isEmpty()) {
+            String key = mPendingLoads.remove(0);
+            TaskSpec spec = mBackend.get(key);
+            if (spec != null) {
+                mWindow.onTaskLoaded(key, spec);
+            }
+        }
+    }
+
+    private void assertPrefix() {
+        flushLoads();
+        TreeSet<Task> all = new TreeSet<>();
+        for (Map.Entry<String, TaskSpec> entry : mBackend.entrySet()) {
+            all.add(new Task(entry.getKey(), entry.getValue()));
+        }
+        List<Task> expected = new ArrayList<>(all).subList(0,
+                Math.min(mWindow.getLimit(), all.size()));
+        assertEquals(expected.size(), mShown.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).key, mShown.get(i).key);
+            assertEquals(expected.get(i).done, mShown.get(i).done);
+        }
+    }
+
+    @Test
+    public void windowTest() throws Exception {
+        put("c", false);
+        put("a", false);
+        put("e", false);
+        put("b", false);
+        assertPrefix(); // a, b, c
+        assertEquals(4, mWindow.size());
+
+        put("a", true); // Moves to the end.
+        assertPrefix(); // b, c, e
+
+        remove("b");
+        assertPrefix(); // c, e, a
+
+        mWindow.setLimit(10);
+        put("d", true);
+        assertPrefix(); // c, e, a, d
+
+        mWindow.setLimit(1);
+        assertPrefix(); // c
+    }
+
+    @Test
+    public void randomTest() throws Exception {
+        Random random = new Random(0);
+        for (int step = 0; step < 2000; step++) {
+            String key = Character.toString((char) ('a' + random.nextInt(20)));
+            int op = random.nextInt(10);
+            if (op < 6) {
+                put(key, random.nextBoolean());
+            } else if (op < 9) {
+                remove(key);
+            } else {
+                mWindow.setLimit(random.nextInt(8));
+            }
+            if (random.nextInt(4) == 0) {
+                assertPrefix();
+            }
+        }
+        assertPrefix();
+    }
+}
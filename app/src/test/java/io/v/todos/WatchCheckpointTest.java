@@ -0,0 +1,165 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.v.todos.persistence.WatchCheckpoint;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the WatchCheckpoint. Confirms that batches of changes are logged with their
+ * resume marker, that the log survives a reload but drops a torn append, that it is compacted as
+ * it grows, and that only one watch at a time can claim it.
+ */
+public class WatchCheckpointTest {
+    private final File mFile = newFile();
+
+    private static File newFile() {
+        try {
+            File file = File.createTempFile("watch", null);
+            file.delete();
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes();
+    }
+
+    private static Map<String, byte[]> replay(WatchCheckpoint checkpoint) throws IOException {
+        final Map<String, byte[]> rows = new HashMap<>();
+        checkpoint.replay(new WatchCheckpoint.RowVisitor() {
+            @Override
+            public void onRow(String rowName, byte[] value) {
+                rows.put(rowName, value);
+            }
+        });
+        return rows;
+    }
+
+    @Test
+    public void commitTest() throws Exception {
+        final int[] changes = {0};
+        WatchCheckpoint checkpoint = new WatchCheckpoint(mFile);
+        checkpoint.setOnChangeListener(new Runnable() {
+            @Override
+            public void run() {
+                changes[0]++;
+            }
+        });
+        assertEquals(null, checkpoint.replay(null));
+        assertEquals(true, checkpoint.isEmpty());
+
+        Map<String, byte[]> batch = new HashMap<>();
+        batch.put("list", bytes("Chores"));
+        batch.put("tasks_1", bytes("Sweep"));
+        batch.put("tasks_2", bytes("Mop"));
+        checkpoint.commit(batch, bytes("1"));
+
+        batch = new HashMap<>();
+        batch.put("tasks_1", null);
+        batch.put("tasks_2", bytes("Mop the floor"));
+        checkpoint.commit(batch, bytes("2"));
+        assertEquals("2", new String(checkpoint.getResumeMarker()));
+        // Nothing is written until the checkpoint is saved, which replaying does first.
+        assertEquals(false, mFile.exists());
+        Map<String, byte[]> rows = replay(checkpoint);
+        assertEquals(2, rows.size());
+        assertEquals("Mop the floor", new String(rows.get("tasks_2")));
+
+        checkpoint.clear();
+        assertEquals(true, checkpoint.isEmpty());
+        assertEquals(3, changes[0]);
+        checkpoint.save();
+        assertEquals(false, mFile.exists());
+    }
+
+    @Test
+    public void reloadTest() throws Exception {
+        WatchCheckpoint checkpoint = new WatchCheckpoint(mFile);
+        Map<String, byte[]> batch = new HashMap<>();
+        batch.put("list", bytes("Chores"));
+        batch.put("tasks_1", new byte[0]);
+        checkpoint.commit(batch, bytes("1"));
+        checkpoint.save();
+        long length = mFile.length();
+
+        batch = new HashMap<>();
+        batch.put("tasks_2", bytes("Mop"));
+        checkpoint.commit(batch, bytes("2"));
+        checkpoint.save();
+
+        WatchCheckpoint reloaded = new WatchCheckpoint(mFile);
+        Map<String, byte[]> rows = replay(reloaded);
+        assertEquals("2", new String(reloaded.getResumeMarker()));
+        assertEquals("Chores", new String(rows.get("list")));
+        assertEquals(0, rows.get("tasks_1").length);
+        assertEquals(3, rows.size());
+
+        // A torn append is dropped, along with the end of the file.
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.getChannel().truncate(mFile.length() - 2);
+        }
+        WatchCheckpoint torn = new WatchCheckpoint(mFile);
+        assertEquals(2, replay(torn).size());
+        assertEquals("1", new String(torn.getResumeMarker()));
+        assertEquals(length, mFile.length());
+
+        // So a later append is read back.
+        torn.commit(batch, bytes("3"));
+        torn.save();
+        WatchCheckpoint appended = new WatchCheckpoint(mFile);
+        assertEquals(3, replay(appended).size());
+        assertEquals("3", new String(appended.getResumeMarker()));
+
+        // A file that is not a log is dropped.
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(bytes("garbage"));
+        }
+        WatchCheckpoint garbage = new WatchCheckpoint(mFile);
+        assertEquals(0, replay(garbage).size());
+        assertEquals(true, garbage.isEmpty());
+        garbage.save();
+        assertEquals(false, mFile.exists());
+    }
+
+    @Test
+    public void compactionTest() throws Exception {
+        WatchCheckpoint checkpoint = new WatchCheckpoint(mFile);
+        byte[] value = new byte[1000];
+        for (int i = 0; i < 1000; i++) {
+            Map<String, byte[]> batch = new HashMap<>();
+            batch.put("tasks_" + i % 10, value);
+            checkpoint.commit(batch, bytes(Integer.toString(i)));
+            checkpoint.save();
+        }
+        // The log holds each of the 10 rows once, plus about 64 KiB appended since.
+        assertEquals(true, mFile.length() < 10 * 1000 + 2 * 65536);
+
+        WatchCheckpoint reloaded = new WatchCheckpoint(mFile);
+        assertEquals(10, replay(reloaded).size());
+        assertEquals("999", new String(reloaded.getResumeMarker()));
+    }
+
+    @Test
+    public void claimTest() {
+        WatchCheckpoint checkpoint = new WatchCheckpoint(mFile);
+        assertEquals(true, checkpoint.claim());
+        assertEquals(false, checkpoint.claim());
+        checkpoint.release();
+        assertEquals(true, checkpoint.claim());
+    }
+}
@@ -0,0 +1,150 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+import io.v.todos.persistence.WriteAheadLog;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A unit test for the WriteAheadLog. Confirms that pending writes are coalesced, survive a
+ * reload including a torn final record, and are split into non-overlapping batches.
+ */
+public class WriteAheadLogTest {
+    private static List<String> paths(List<WriteAheadLog.Write> writes) {
+        List<String> paths = new ArrayList<>();
+        for (WriteAheadLog.Write write : writes) {
+            paths.add(write.path);
+        }
+        return paths;
+    }
+
+    private static WriteAheadLog reload(byte[] file) throws Exception {
+        return WriteAheadLog.readFrom(new DataInputStream(new ByteArrayInputStream(file)));
+    }
+
+    @Test
+    public void coalesceTest() {
+        WriteAheadLog log = new WriteAheadLog();
+        log.append("lists/a", new ListSpec("A", 1));
+        log.append("tasks/a/1", new TaskSpec("One", 1, false));
+        log.append("tasks/a/2", new TaskSpec("Two", 2, false));
+        WriteAheadLog.Write first = log.append("tasks/a/1", new TaskSpec("One", 1, true));
+        assertEquals(Arrays.asList("lists/a", "tasks/a/2", "tasks/a/1"), paths(log.getPending()));
+
+        // Removing a parent replaces the writes below it, but not those of a sibling that shares
+        // its prefix.
+        log.append("tasks/ab/3", new TaskSpec("Three", 3, false));
+        log.append("tasks/a", null);
+        assertEquals(Arrays.asList("lists/a", "tasks/ab/3", "tasks/a"), paths(log.getPending()));
+        log.acknowledge(Collections.singletonList(log.getPending().get(1)));
+
+        // Acknowledging a replaced write does nothing.
+        log.acknowledge(Collections.singletonList(first));
+        assertEquals(2, log.getPendingCount());
+        log.acknowledge(log.getPending());
+        assertEquals(0, log.getPendingCount());
+    }
+
+    @Test
+    public void reloadTest() throws Exception {
+        WriteAheadLog log = new WriteAheadLog();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        WriteAheadLog.writeHeader(new DataOutputStream(file));
+        WriteAheadLog.Write list = log.append("lists/a", new ListSpec("A", 1));
+        log.append("tasks/a/1", new TaskSpec("One", 1, false));
+        file.write(log.takeUncommitted());
+        log.acknowledge(Collections.singletonList(list));
+        log.append("tasks/a/1", new TaskSpec("One more", 1, true));
+        file.write(log.takeUncommitted());
+
+        WriteAheadLog reloaded = reload(file.toByteArray());
+        List<WriteAheadLog.Write> pending = reloaded.getPending();
+        assertEquals(Arrays.asList("tasks/a/1"), paths(pending));
+        TaskSpec task = (TaskSpec) pending.get(0).value;
+        assertEquals("One more", task.getText());
+        assertEquals(true, task.getDone());
+
+        // A torn final record is dropped.
+        byte[] torn = Arrays.copyOf(file.toByteArray(), file.size() - 3);
+        assertEquals(Arrays.asList("tasks/a/1"), paths(reload(torn).getPending()));
+        assertEquals("One", ((TaskSpec) reload(torn).getPending().get(0).value).getText());
+
+        // New writes continue the sequence.
+        assertEquals(true, reloaded.append("lists/b", null).sequence > pending.get(0).sequence);
+    }
+
+    @Test
+    public void fieldTest() throws Exception {
+        WriteAheadLog log = new WriteAheadLog();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        WriteAheadLog.writeHeader(new DataOutputStream(file));
+        log.append("lists/a/name", "A");
+        log.append("lists/a/updatedAt", 5L);
+        log.append("tasks/a/1/done", true);
+        file.write(log.takeUncommitted());
+
+        List<WriteAheadLog.Write> pending = reload(file.toByteArray()).getPending();
+        assertEquals("A", pending.get(0).value);
+        assertEquals(5L, pending.get(1).value);
+        assertEquals(true, pending.get(2).value);
+
+        // Writing the whole task replaces its field writes.
+        log.append("tasks/a/1", new TaskSpec("One", 1, true));
+        assertEquals(Arrays.asList("lists/a/name", "lists/a/updatedAt", "tasks/a/1"),
+                paths(log.getPending()));
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        WriteAheadLog log = new WriteAheadLog();
+        for (int i = 0; i < 1000; i++) {
+            log.acknowledge(Collections.singletonList(
+                    log.append("tasks/a/" + (i % 10), new TaskSpec("Task " + i, i, false))));
+        }
+        log.append("tasks/a/1", new TaskSpec("Last", 1, false));
+        assertEquals(true, log.needsCompaction());
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        log.writeSnapshotTo(new DataOutputStream(file));
+        assertEquals(false, log.needsCompaction());
+        assertEquals(1, log.getRecordCount());
+        assertEquals(0, log.takeUncommitted().length);
+        assertEquals("Last",
+                ((TaskSpec) reload(file.toByteArray()).getPending().get(0).value).getText());
+    }
+
+    @Test
+    public void batchTest() {
+        WriteAheadLog log = new WriteAheadLog();
+        log.append("tasks/a/1", new TaskSpec("One", 1, false));
+        log.append("tasks/a/2", new TaskSpec("Two", 2, false));
+        log.append("lists/a", new ListSpec("A", 1));
+        log.append("tasks/b", null);
+        log.append("tasks/b/3", new TaskSpec("Three", 3, false));
+        log.append("tasks/c/4", new TaskSpec("Four", 4, false));
+
+        List<List<WriteAheadLog.Write>> batches = WriteAheadLog.toBatches(log.getPending(), 100);
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList("tasks/a/1", "tasks/a/2", "lists/a", "tasks/b"),
+                paths(batches.get(0)));
+        assertEquals(Arrays.asList("tasks/b/3", "tasks/c/4"), paths(batches.get(1)));
+
+        assertEquals(3, WriteAheadLog.toBatches(log.getPending(), 2).size());
+    }
+}
@@ -0,0 +1,473 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package io.v.todos.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.v.todos.model.ListSpec;
+import io.v.todos.model.TaskSpec;
+
+/**
+ * An in-process stand-in for a syncgroup of Syncbase instances on loopback, for measuring sync
+ * convergence and bandwidth without a mounttable or cloud peer. Each replica is an
+ * {@link InMemoryStore}, so {@link InMemoryMain} and {@link InMemoryTodoList} can be wired to it
+ * like to any other store.
+ * <p>
+ * Local writes to a replica are stamped with a Lamport version, encoded as they would be on the
+ * wire and sent to every other replica after a fixed link latency. As in Syncbase, conflicts are
+ * resolved per row by last-writer-wins, and deletes leave tombstones so that they win over older
+ * writes. Tasks that arrive before their list are kept until the list arrives, and when a deleted
+ * list is written again, only its tasks written after the delete come back.
+ * <p>
+ * Replicas can be taken offline, in which case updates to and from them are held until they are
+ * back online, as after a network partition.
+ * <p>
+ * Specs are sent in a plain fixed-width encoding unless {@link #setCompactSpecs(boolean)} selects
+ * the {@link SpecCodec} encoding, so that the two can be compared.
+ * <p>
+ * This class is thread-safe.
+ */
+public class LoopbackSyncGroup {
+    private static final char ROW_SEPARATOR = '/';
+    private static final int KIND_TOMBSTONE = 0, KIND_LIST = 1, KIND_TASK = 2,
+            KIND_COMPACT_LIST = 3, KIND_COMPACT_TASK = 4;
+
+    private static class Version implements Comparable<Version> {
+        final long clock;
+        final int replica;
+
+        Version(long clock, int replica) {
+            this.clock = clock;
+            this.replica = replica;
+        }
+
+        @Override
+        public int compareTo(Version other) {
+            if (clock != other.clock) {
+                return clock < other.clock ? -1 : 1;
+            }
+            return replica < other.replica ? -1 : replica == other.replica ? 0 : 1;
+        }
+
+        @Override
+        public String toString() {
+            return clock + "@" + replica;
+        }
+    }
+
+    /**
+     * A versioned list or task row. Both specs are null for a tombstone.
+     */
+    private static class Row {
+        final Version version;
+        final ListSpec list;
+        final TaskSpec task;
+
+        Row(Version version, ListSpec list, TaskSpec task) {
+            this.version = version;
+            this.list = list;
+            this.task = task;
+        }
+
+        @Override
+        public String toString() {
+            if (list != null) {
+                return version + " list " + list.getName() + " " + list.getUpdatedAt();
+            } else if (task != null) {
+                return version + " task " + task.getText() + " " + task.getAddedAt() + " " +
+                        task.getDone();
+            } else {
+                return version + " deleted";
+            }
+        }
+    }
+
+    /**
+     * A single member of the group.
+     */
+    public class Replica {
+        private final int mId;
+        private final ReplicaStore mStore = new ReplicaStore();
+        // Guarded by this. Rows are keyed by list key, or list key and task key.
+        private final TreeMap<String, Row> mRows = new TreeMap<>();
+        private long mClock;
+
+        /**
+         * Sends local changes to the other replicas.
+         */
+        private class ReplicaStore extends InMemoryStore {
+            // Guarded by this store. Set while a change from another replica is applied, which
+            // must not be sent back out.
+            private boolean mApplying;
+
+            @Override
+            protected void onListChanged(String listKey, ListSpec spec) {
+                if (!mApplying) {
+                    write(listKey, null, spec, null);
+                }
+            }
+
+            @Override
+            protected void onTaskChanged(String listKey, String taskKey, TaskSpec spec) {
+                if (!mApplying) {
+                    write(listKey, taskKey, null, spec);
+                }
+            }
+
+            // Locks the store first, as local writes do.
+            synchronized void applyRemote(String listKey, String taskKey, Row row) {
+                mApplying = true;
+                try {
+                    apply(listKey, taskKey, row);
+                } finally {
+                    mApplying = false;
+                }
+            }
+        }
+
+        private Replica(int id) {
+            mId = id;
+        }
+
+        public InMemoryStore getStore() {
+            return mStore;
+        }
+
+        public void setOnline(boolean online) {
+            LoopbackSyncGroup.this.setOnline(mId, online);
+        }
+
+        private synchronized void write(String listKey, String taskKey, ListSpec list,
+                                        TaskSpec task) {
+            Row row = new Row(new Version(++mClock, mId), list, task);
+            mRows.put(rowKey(listKey, taskKey), row);
+            send(mId, encode(listKey, taskKey, row));
+        }
+
+        private void receive(byte[] message) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            try {
+                String listKey = in.readUTF();
+                String taskKey = in.readBoolean() ? in.readUTF() : null;
+                mStore.applyRemote(listKey, taskKey, decodeRow(in));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private synchronized void apply(String listKey, String taskKey, Row row) {
+            mClock = Math.max(mClock, row.version.clock);
+            String rowKey = rowKey(listKey, taskKey);
+            Row current = mRows.get(rowKey);
+            if (current != null && current.version.compareTo(row.version) >= 0) {
+                return;
+            }
+            mRows.put(rowKey, row);
+
+            if (taskKey != null) {
+                if (row.task == null) {
+                    mStore.removeTask(listKey, taskKey);
+                } else {
+                    // Does nothing until the list arrives.
+                    mStore.putTask(listKey, taskKey, row.task);
+                }
+            } else if (row.list == null) {
+                mStore.removeList(listKey);
+            } else {
+                mStore.putList(listKey, row.list);
+                if (current == null || current.list == null) {
+                    // The list is new here, so apply any tasks that arrived before it. Deleting
+                    // the list deleted its tasks, so skip those from before a tombstone.
+                    String prefix = listKey + ROW_SEPARATOR;
+                    for (Map.Entry<String, Row> task : mRows.subMap(prefix,
+                            prefix + Character.MAX_VALUE).entrySet()) {
+                        if (task.getValue().task != null && (current == null ||
+                                task.getValue().version.compareTo(current.version) > 0)) {
+                            mStore.putTask(listKey, task.getKey().substring(prefix.length()),
+                                    task.getValue().task);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return every row and its version, including tombstones; replicas have converged when
+         * their digests are equal
+         */
+        public synchronized String digest() {
+            StringBuilder digest = new StringBuilder();
+            for (Map.Entry<String, Row> row : mRows.entrySet()) {
+                digest.append(row.getKey()).append(' ').append(row.getValue()).append('\n');
+            }
+            return digest.toString();
+        }
+    }
+
+    /**
+     * Traffic and convergence statistics. A write has converged once every other replica has
+     * received it, whether or not it won there.
+     */
+    public static class Stats {
+        public final long numMessages;
+        public final long numBytes;
+        public final int numConverged;
+        public final long medianConvergenceNanos;
+        public final long maxConvergenceNanos;
+
+        Stats(long numMessages, long numBytes, List<Long> convergenceNanos) {
+            this.numMessages = numMessages;
+            this.numBytes = numBytes;
+            numConverged = convergenceNanos.size();
+            List<Long> sorted = new ArrayList<>(convergenceNanos);
+            Collections.sort(sorted);
+            medianConvergenceNanos = sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2);
+            maxConvergenceNanos = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d bytes, %d writes converged, " +
+                            "convergence median %.2f ms, max %.2f ms", numMessages, numBytes,
+                    numConverged, medianConvergenceNanos / 1e6, maxConvergenceNanos / 1e6);
+        }
+    }
+
+    private static class Transfer {
+        final long writeId;
+        final int from;
+        final int to;
+        final byte[] message;
+
+        Transfer(long writeId, int from, int to, byte[] message) {
+            this.writeId = writeId;
+            this.from = from;
+            this.to = to;
+            this.message = message;
+        }
+    }
+
+    private static class PendingWrite {
+        final long sentAt;
+        int remaining;
+
+        PendingWrite(long sentAt, int remaining) {
+            this.sentAt = sentAt;
+            this.remaining = remaining;
+        }
+    }
+
+    private final ScheduledExecutorService mLinks =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LoopbackSyncGroup links");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final long mLatencyNanos;
+    private final List<Replica> mReplicas = new ArrayList<>();
+    private volatile boolean mCompactSpecs;
+
+    // All of the following are guarded by this. Locks are always taken in the order store,
+    // replica, group, and the group lock is never held while calling into a replica.
+    private final boolean[] mOnline;
+    // Transfers from or to an offline replica, in the order they were sent.
+    private final List<Transfer> mHeld = new ArrayList<>();
+    private final Map<Long, PendingWrite> mPendingWrites = new HashMap<>();
+    private long mNextWriteId;
+    private int mInFlight;
+    private long mNumMessages;
+    private long mNumBytes;
+    private final List<Long> mConvergenceNanos = new ArrayList<>();
+
+    /**
+     * @param latency the one-way latency of the link between any two replicas
+     */
+    public LoopbackSyncGroup(int numReplicas, long latency, TimeUnit unit) {
+        mLatencyNanos = unit.toNanos(latency);
+        mOnline = new boolean[numReplicas];
+        for (int i = 0; i < numReplicas; i++) {
+            mOnline[i] = true;
+            mReplicas.add(new Replica(i));
+        }
+    }
+
+    public Replica getReplica(int index) {
+        return mReplicas.get(index);
+    }
+
+    public int size() {
+        return mReplicas.size();
+    }
+
+    /**
+     * Selects the encoding of specs in messages sent from now on. Replicas read either.
+     */
+    public void setCompactSpecs(boolean compactSpecs) {
+        mCompactSpecs = compactSpecs;
+    }
+
+    private synchronized void send(int from, byte[] message) {
+        long writeId = mNextWriteId++;
+        int receivers = mReplicas.size() - 1;
+        if (receivers == 0) {
+            return;
+        }
+        mPendingWrites.put(writeId, new PendingWrite(System.nanoTime(), receivers));
+        for (int to = 0; to < mReplicas.size(); to++) {
+            if (to != from) {
+                Transfer transfer = new Transfer(writeId, from, to, message);
+                if (mOnline[from] && mOnline[to]) {
+                    schedule(transfer);
+                } else {
+                    mHeld.add(transfer);
+                }
+            }
+        }
+        mNumMessages += receivers;
+        mNumBytes += (long) receivers * message.length;
+    }
+
+    private void schedule(final Transfer transfer) {
+        mInFlight++;
+        mLinks.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mReplicas.get(transfer.to).receive(transfer.message);
+                onReceived(transfer);
+            }
+        }, mLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void onReceived(Transfer transfer) {
+        mInFlight--;
+        PendingWrite write = mPendingWrites.get(transfer.writeId);
+        if (--write.remaining == 0) {
+            mPendingWrites.remove(transfer.writeId);
+            mConvergenceNanos.add(System.nanoTime() - write.sentAt);
+        }
+        notifyAll();
+    }
+
+    private synchronized void setOnline(int replica, boolean online) {
+        mOnline[replica] = online;
+        if (!online) {
+            return;
+        }
+        for (Iterator<Transfer> it = mHeld.iterator(); it.hasNext(); ) {
+            Transfer transfer = it.next();
+            if (mOnline[transfer.from] && mOnline[transfer.to]) {
+                it.remove();
+                schedule(transfer);
+            }
+        }
+    }
+
+    /**
+     * Blocks until every update sent between online replicas has been applied, and every
+     * replica's store has delivered the resulting events.
+     */
+    public void awaitQuiescence() throws InterruptedException {
+        synchronized (this) {
+            while (mInFlight > 0) {
+                wait();
+            }
+        }
+        for (Replica replica : mReplicas) {
+            replica.getStore().awaitDelivery();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mNumMessages, mNumBytes, mConvergenceNanos);
+    }
+
+    public synchronized void resetStats() {
+        mNumMessages = 0;
+        mNumBytes = 0;
+        mConvergenceNanos.clear();
+    }
+
+    private static String rowKey(String listKey, String taskKey) {
+        return taskKey == null ? listKey : listKey + ROW_SEPARATOR + taskKey;
+    }
+
+    private byte[] encode(String listKey, String taskKey, Row row) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(listKey);
+            out.writeBoolean(taskKey != null);
+            if (taskKey != null) {
+                out.writeUTF(taskKey);
+            }
+            out.writeLong(row.version.clock);
+            out.writeInt(row.version.replica);
+            if (row.list != null && mCompactSpecs) {
+                out.writeByte(KIND_COMPACT_LIST);
+                out.write(SpecCodec.encode(row.list));
+            } else if (row.task != null && mCompactSpecs) {
+                out.writeByte(KIND_COMPACT_TASK);
+                out.write(SpecCodec.encode(row.task));
+            } else if (row.list != null) {
+                out.writeByte(KIND_LIST);
+                out.writeUTF(row.list.getName());
+                out.writeLong(row.list.getUpdatedAt());
+            } else if (row.task != null) {
+                out.writeByte(KIND_TASK);
+                out.writeUTF(row.task.getText());
+                out.writeLong(row.task.getAddedAt());
+                out.writeBoolean(row.task.getDone());
+            } else {
+                out.writeByte(KIND_TOMBSTONE);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Row decodeRow(DataInputStream in) throws IOException {
+        Version version = new Version(in.readLong(), in.readInt());
+        switch (in.readByte()) {
+            case KIND_LIST:
+                return new Row(version, new ListSpec(in.readUTF(), in.readLong()), null);
+            case KIND_TASK:
+                return new Row(version, null,
+                        new TaskSpec(in.readUTF(), in.readLong(), in.readBoolean()));
+            // Compact specs take up the rest of the message.
+            case KIND_COMPACT_LIST:
+                return new Row(version, SpecCodec.decodeList(readRest(in)), null);
+            case KIND_COMPACT_TASK:
+                return new Row(version, null, SpecCodec.decodeTask(readRest(in)));
+            default:
+                return new Row(version, null, null);
+        }
+    }
+
+    private static byte[] readRest(DataInputStream in) throws IOException {
+        // Messages are read from memory, so everything is available.
+        byte[] rest = new byte[in.available()];
+        in.readFully(rest);
+        return rest;
+    }
+}